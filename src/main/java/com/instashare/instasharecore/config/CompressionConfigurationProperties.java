@@ -0,0 +1,48 @@
+package com.instashare.instasharecore.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.MediaType;
+
+import java.util.List;
+
+@ConfigurationProperties(prefix = "instashare.compression")
+@Getter
+@Setter
+public class CompressionConfigurationProperties {
+
+  // Runs CompressionWorker on this node
+  private boolean workerEnabled = false;
+
+  // Concurrent consumers of the files queue, a fixed number or a "min-max" range
+  private String workerConcurrency = "2";
+
+  // Deflate level, 1 (fastest) to 9 (smallest)
+  private int level = 6;
+
+  // Compress uploads while they are received when the request does not say otherwise
+  private boolean onIngest = false;
+
+  // Already compressed formats, stored as uploaded
+  private List<MediaType> incompressibleTypes =
+      List.of(
+          MediaType.IMAGE_JPEG,
+          MediaType.IMAGE_PNG,
+          MediaType.IMAGE_GIF,
+          MediaType.parseMediaType("image/webp"),
+          MediaType.parseMediaType("image/avif"),
+          MediaType.parseMediaType("image/heic"),
+          MediaType.parseMediaType("video/*"),
+          MediaType.parseMediaType("audio/*"),
+          MediaType.APPLICATION_PDF,
+          MediaType.parseMediaType("application/zip"),
+          MediaType.parseMediaType("application/gzip"),
+          MediaType.parseMediaType("application/x-gzip"),
+          MediaType.parseMediaType("application/x-bzip2"),
+          MediaType.parseMediaType("application/x-xz"),
+          MediaType.parseMediaType("application/x-7z-compressed"),
+          MediaType.parseMediaType("application/vnd.rar"),
+          MediaType.parseMediaType("application/x-rar-compressed"),
+          MediaType.parseMediaType("application/zstd"));
+}
@@ -4,25 +4,36 @@ import lombok.val;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import java.time.Duration;
 import java.util.Optional;
 
 @Configuration
-@EnableConfigurationProperties(S3ClientConfigurationProperties.class)
+@EnableConfigurationProperties({
+  S3ClientConfigurationProperties.class,
+  StorageConfigurationProperties.class,
+  CompressionConfigurationProperties.class
+})
 public class S3ClientConfig {
 
   @Bean
   public S3AsyncClient s3Client(
       S3ClientConfigurationProperties s3Properties, AwsCredentialsProvider credentialsProvider) {
     val httpClient =
-        NettyNioAsyncHttpClient.builder().writeTimeout(Duration.ZERO).maxConcurrency(64).build();
+        NettyNioAsyncHttpClient.builder()
+            .writeTimeout(Duration.ZERO)
+            .readTimeout(s3Properties.getResponseTimeout())
+            .maxConcurrency(s3Properties.getMaxConnections())
+            .build();
     val serviceConfiguration =
         S3Configuration.builder()
             .checksumValidationEnabled(false)
@@ -40,6 +51,34 @@ public class S3ClientConfig {
     return clientBuilder.build();
   }
 
+  @Bean(destroyMethod = "dispose")
+  public ConnectionProvider s3ConnectionProvider(S3ClientConfigurationProperties s3Properties) {
+    return ConnectionProvider.builder("s3")
+        .maxConnections(s3Properties.getMaxConnections())
+        .build();
+  }
+
+  // Sends the presigned GETs of ObjectReader.readDirect, with the limits of the SDK client
+  @Bean
+  public HttpClient s3HttpClient(
+      S3ClientConfigurationProperties s3Properties, ConnectionProvider s3ConnectionProvider) {
+    return HttpClient.create(s3ConnectionProvider)
+        .responseTimeout(s3Properties.getResponseTimeout());
+  }
+
+  @Bean
+  public S3Presigner s3Presigner(
+      S3ClientConfigurationProperties s3Properties, AwsCredentialsProvider credentialsProvider) {
+    val presignerBuilder =
+        S3Presigner.builder()
+            .region(s3Properties.getRegion())
+            .credentialsProvider(credentialsProvider);
+
+    Optional.ofNullable(s3Properties.getEndpoint()).map(presignerBuilder::endpointOverride);
+
+    return presignerBuilder.build();
+  }
+
   @Bean
   public AwsCredentialsProvider awsCredentialsProvider(
       S3ClientConfigurationProperties s3Properties) {
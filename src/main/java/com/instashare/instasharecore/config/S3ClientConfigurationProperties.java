@@ -3,9 +3,12 @@ package com.instashare.instasharecore.config;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.convert.DurationUnit;
 import software.amazon.awssdk.regions.Region;
 
 import java.net.URI;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 
 @ConfigurationProperties(prefix = "aws.s3")
 @Getter
@@ -22,5 +25,61 @@ public class S3ClientConfigurationProperties {
 
   private String bucket;
 
+  // Connections to S3 of each HTTP client, the SDK's and the one of ObjectReader.readDirect
+  private int maxConnections = 64;
+
+  // Requests fail when S3 sends nothing for this long, before or while sending a response
+  private Duration responseTimeout = Duration.ofSeconds(30);
+
+  // Attempts made again for a direct read that failed before any byte was received
+  private int directReadRetries = 2;
+
   private int multipartMinPartSize = 5 * 1024 * 1024;
+
+  // Upper bound for the part sizes picked by PartSizeAdvisor
+  private long multipartMaxPartSize = 64 * 1024 * 1024;
+
+  // How long uploading a single part should take at the observed throughput
+  private Duration multipartTargetPartDuration = Duration.ofSeconds(2);
+
+  // Raw bodies larger than this, or of unknown length, are uploaded as multipart uploads
+  private long multipartUploadThreshold = 16 * 1024 * 1024;
+
+  // Attempts made for a failed part before the whole upload fails
+  private int multipartPartRetries = 3;
+
+  // Parts of a single upload that may be in flight at the same time
+  private int multipartPartConcurrency = 4;
+
+  // Parts in flight across all uploads of this node
+  private int multipartMaxConcurrentParts = 32;
+
+  // Bytes of upload parts buffered in heap across all uploads of this node
+  private long multipartMaxBufferedBytes = 512 * 1024 * 1024;
+
+  // Uploads waiting longer than this for buffer space are rejected with a 503
+  private Duration multipartBufferWaitTimeout = Duration.ofSeconds(30);
+
+  // Incomplete multipart uploads older than this are aborted by the reaper
+  private Duration abandonedUploadMaxAge = Duration.ofDays(1);
+
+  // How often the reaper looks for abandoned uploads, on one node at a time
+  private Duration reaperInterval = Duration.ofHours(1);
+
+  // Uploads aborted concurrently by the reaper
+  private int reaperBatchSize = 50;
+
+  private Presigned presigned = new Presigned();
+
+  @Getter
+  @Setter
+  public static class Presigned {
+
+    // How long presigned URLs handed to clients stay valid
+    @DurationUnit(ChronoUnit.SECONDS)
+    private Duration expiration = Duration.ofMinutes(1);
+
+    // Downloads redirect to S3 unless the client asks otherwise, see FileController#download
+    private boolean redirectDownloads = false;
+  }
 }
@@ -0,0 +1,94 @@
+package com.instashare.instasharecore.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "instashare.storage")
+@Getter
+@Setter
+public class StorageConfigurationProperties {
+
+  // Files smaller than this are stored in Mongo instead of S3, see FileContent. 0 disables it.
+  private int inlineThreshold = 16 * 1024;
+
+  // Files smaller than this share pack objects with other small files, see PackStore
+  private boolean packingEnabled = true;
+
+  private int packMaxFileSize = 1024 * 1024;
+
+  // A pack is written once it reaches this size or its first file waited packMaxDelay
+  private int packTargetSize = 8 * 1024 * 1024;
+
+  private Duration packMaxDelay = Duration.ofMillis(50);
+
+  // Packs with at least this share of unreferenced bytes are rewritten by the compactor
+  private double packGarbageRatio = 0.5;
+
+  // Retired packs are deleted after this, so downloads already reading them can finish
+  private Duration packRetention = Duration.ofHours(1);
+
+  // How often the compactor runs, on one node at a time, see PackCompactor
+  private Duration packCompactionInterval = Duration.ofMinutes(10);
+
+  // Content-defined chunking, see ContentDefinedChunker
+  private int chunkMinSize = 256 * 1024;
+
+  private int chunkAvgSize = 1024 * 1024;
+
+  private int chunkMaxSize = 4 * 1024 * 1024;
+
+  // Chunks stored or fetched concurrently per file
+  private int chunkConcurrency = 4;
+
+  // Chunks no file references are deleted once their bytes were last sent this long ago, which
+  // leaves clients time to send the manifest. The reaper runs on one node at a time.
+  private Duration chunkGracePeriod = Duration.ofDays(1);
+
+  private Duration chunkReaperInterval = Duration.ofHours(1);
+
+  // Archive entries whose content is requested ahead of the one being sent
+  private int archivePrefetch = 4;
+
+  // Objects larger than a part are downloaded with concurrent ranged GETs, see ObjectReader.
+  // Ranges in flight are buffered whole, a concurrency of 1 reads objects with a single GET.
+  private DataSize downloadPartSize = DataSize.ofMegabytes(8);
+
+  private int downloadConcurrency = 4;
+
+  // Heap the buffered ranges of every download on this node may take. Downloads that would exceed
+  // it read the rest of their object with a single GET instead.
+  private DataSize downloadBufferBudget = DataSize.ofMegabytes(256);
+
+  // Objects up to a part are sent in the buffers they are received in, see ObjectReader.readDirect.
+  // This saves the copy of every byte into the heap, but each download presigns a URL and sends a
+  // GET of its own: concurrent downloads of the same object no longer share one, see SharedReads.
+  private boolean directDownloads = false;
+
+  // Ranges slower than this are fetched again
+  private Duration downloadPartTimeout = Duration.ofSeconds(30);
+
+  private int downloadPartRetries = 2;
+
+  // Concurrent reads of the same object or range share one fetch, see SharedReads. Readers join
+  // until the fetch sent this much, and leave for a fetch of their own when they fall this far
+  // behind the others.
+  private boolean sharedReadsEnabled = true;
+
+  private DataSize sharedReadBuffer = DataSize.ofMegabytes(4);
+
+  // Disk cache of frequently read objects, see ObjectCache. Each instance keeps its files in a
+  // directory of its own below this one and deletes it on shutdown.
+  private boolean cacheEnabled = false;
+
+  private Path cacheDirectory = Path.of(System.getProperty("java.io.tmpdir"), "instashare-cache");
+
+  private DataSize cacheMaxSize = DataSize.ofGigabytes(1);
+
+  // Larger objects are always streamed from S3
+  private DataSize cacheMaxObjectSize = DataSize.ofMegabytes(64);
+}
@@ -0,0 +1,31 @@
+package com.instashare.instasharecore.files;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Content-addressed S3 object, identified by the SHA-256 of its bytes. Files with identical content
+ * point at the same blob through {@link File#getStorageKey()}.
+ */
+@Document(value = "blobs")
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+public class Blob {
+  // Hex encoded SHA-256
+  private @Id String id;
+
+  private String storageKey;
+  private long size;
+  private long refCount;
+  private Instant createdAt;
+
+  // Blobs without references are kept for a grace period after their content was last sent, see
+  // BlobIndex.reapUnreferenced
+  private Instant uploadedAt;
+}
@@ -0,0 +1,193 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.mongodb.client.result.UpdateResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/** Maps content hashes to reference-counted S3 objects. */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class BlobIndex {
+
+  private final ReactiveMongoTemplate mongoTemplate;
+
+  private final BlobRepository blobRepository;
+
+  private final S3AsyncClient s3Client;
+
+  private final S3ClientConfigurationProperties s3Config;
+
+  private final ObjectCache objectCache;
+
+  public Mono<Blob> findByHash(String hash) {
+    return blobRepository.findById(hash);
+  }
+
+  public Flux<Blob> findAllByHash(Collection<String> hashes) {
+    return blobRepository.findAllById(hashes);
+  }
+
+  /** Adds a reference to an existing blob, empty when the content is unknown. */
+  public Mono<Blob> addReference(String hash) {
+    return mongoTemplate.findAndModify(
+        query(where("_id").is(hash)),
+        new Update().inc("refCount", 1),
+        FindAndModifyOptions.options().returnNew(true),
+        Blob.class);
+  }
+
+  /**
+   * Adds {@code references.get(hash)} references to each of the given blobs, with one update per
+   * distinct count. Emits the number of blobs found.
+   */
+  public Mono<Long> addReferences(Map<String, Long> references) {
+    return incReferences(references, 1);
+  }
+
+  /**
+   * Takes back references added by {@link #addReferences(Map)}. Blobs left without references are
+   * deleted by {@link #reapUnreferenced(Instant)}, so chunks can still be claimed by a manifest.
+   */
+  public Mono<Void> removeReferences(Map<String, Long> references) {
+    return incReferences(references, -1).then();
+  }
+
+  private Mono<Long> incReferences(Map<String, Long> references, int sign) {
+    val hashesByCount =
+        references.entrySet().stream()
+            .collect(
+                Collectors.groupingBy(
+                    Map.Entry::getValue,
+                    Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+    return Flux.fromIterable(hashesByCount.entrySet())
+        .concatMap(
+            group ->
+                mongoTemplate.updateMulti(
+                    query(where("_id").in(group.getValue())),
+                    new Update().inc("refCount", sign * group.getKey()),
+                    Blob.class))
+        .map(UpdateResult::getMatchedCount)
+        .reduce(0L, Long::sum);
+  }
+
+  /** Restarts the grace period of a blob whose content was sent again, empty when unknown. */
+  public Mono<Blob> markUploaded(String hash) {
+    return mongoTemplate.findAndModify(
+        query(where("_id").is(hash)),
+        new Update().set("uploadedAt", Instant.now()),
+        FindAndModifyOptions.options().returnNew(true),
+        Blob.class);
+  }
+
+  /**
+   * Registers an object that was just uploaded under {@code storageKey}. When the same content was
+   * already stored the existing blob wins, the new object is deleted and the returned blob points
+   * at the object to use.
+   */
+  public Mono<Blob> register(String hash, String storageKey, long size) {
+    return register(hash, storageKey, size, 1);
+  }
+
+  /**
+   * Same as {@link #register(String, String, long)}, adding {@code references} instead of one.
+   * Chunks uploaded ahead of their manifest are registered without references.
+   */
+  public Mono<Blob> register(String hash, String storageKey, long size, int references) {
+    // A single upsert, concurrent uploads of the same content agree on one object
+    val update =
+        new Update()
+            .setOnInsert("storageKey", storageKey)
+            .setOnInsert("size", size)
+            .setOnInsert("createdAt", Instant.now())
+            .set("uploadedAt", Instant.now())
+            .inc("refCount", references);
+    return mongoTemplate
+        .findAndModify(
+            query(where("_id").is(hash)),
+            update,
+            FindAndModifyOptions.options().upsert(true).returnNew(true),
+            Blob.class)
+        .doOnNext(
+            blob -> {
+              if (!blob.getStorageKey().equals(storageKey)) {
+                log.info(
+                    "Duplicate of object with key: {}, dropping: {}",
+                    blob.getStorageKey(),
+                    storageKey);
+                deleteObject(storageKey);
+              }
+            });
+  }
+
+  /**
+   * Drops a reference to a blob. The last reference deletes the blob and its object, unless a new
+   * reference was added in the meantime.
+   */
+  public Mono<Void> removeReference(String hash) {
+    return mongoTemplate
+        .findAndModify(
+            query(where("_id").is(hash)),
+            new Update().inc("refCount", -1),
+            FindAndModifyOptions.options().returnNew(true),
+            Blob.class)
+        .filter(blob -> blob.getRefCount() <= 0)
+        .flatMap(
+            blob ->
+                mongoTemplate
+                    .findAndRemove(query(where("_id").is(hash).and("refCount").lte(0)), Blob.class)
+                    .doOnNext(removed -> deleteObject(removed.getStorageKey())))
+        .then();
+  }
+
+  /**
+   * Deletes blobs without references whose content was last sent before {@code cutoff}, such as
+   * chunks no manifest used. Emits the deleted blobs.
+   */
+  public Flux<Blob> reapUnreferenced(Instant cutoff) {
+    // Blobs stored before uploadedAt was recorded fall back to their creation time
+    val unreferenced =
+        where("refCount")
+            .lte(0)
+            .orOperator(
+                where("uploadedAt").lt(cutoff),
+                where("uploadedAt").exists(false).and("createdAt").lt(cutoff));
+    return mongoTemplate
+        .find(query(unreferenced), Blob.class)
+        // Conditional, a blob may have been referenced or sent again since it was listed
+        .concatMap(
+            blob ->
+                mongoTemplate.findAndRemove(
+                    query(where("_id").is(blob.getId()).andOperator(unreferenced)), Blob.class))
+        .doOnNext(removed -> deleteObject(removed.getStorageKey()));
+  }
+
+  /** Deletes an object no blob points at, failures are only logged. */
+  public void deleteObject(String storageKey) {
+    objectCache.invalidate(storageKey);
+    val request =
+        DeleteObjectRequest.builder().bucket(s3Config.getBucket()).key(storageKey).build();
+    Mono.fromFuture(() -> s3Client.deleteObject(request))
+        .subscribe(
+            response -> {},
+            error -> log.warn("Unable to delete object with key: {}.", storageKey, error));
+  }
+}
@@ -0,0 +1,5 @@
+package com.instashare.instasharecore.files;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+
+public interface BlobRepository extends ReactiveMongoRepository<Blob, String> {}
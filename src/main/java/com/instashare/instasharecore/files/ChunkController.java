@@ -0,0 +1,81 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.files.dtos.ChunkListRequest;
+import com.instashare.instasharecore.files.dtos.MissingChunksResponse;
+import com.instashare.instasharecore.files.dtos.UploadResult;
+import com.instashare.instasharecore.files.dtos.UploadResultError;
+import com.instashare.instasharecore.files.dtos.UploadStatus;
+import com.instashare.instasharecore.files.exceptions.InvalidChunkException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.validation.Valid;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.regex.Pattern;
+
+/**
+ * Chunk uploads for delta re-uploads. The client splits a file with the same content-defined
+ * chunking as the service, asks which chunks are missing, PUTs only those and then creates the file
+ * from its manifest through {@code POST /v1/files/chunked}. Only chunks the user sent count as
+ * stored, including chunks other users stored before.
+ */
+@RestController
+@RequestMapping("/v1/chunks")
+@RequiredArgsConstructor
+@Slf4j
+public class ChunkController {
+
+  private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+  private final ChunkStore chunkStore;
+
+  private final StorageConfigurationProperties storageConfig;
+
+  private static ResponseEntity<Object> failed(HttpStatus status, String message) {
+    return ResponseEntity.status(status)
+        .body(new UploadResult(UploadStatus.FAILED, new UploadResultError(message)));
+  }
+
+  @PostMapping("/missing")
+  public Mono<MissingChunksResponse> missing(
+      Principal principal, @Valid @RequestBody ChunkListRequest request) {
+    return chunkStore
+        .missing(principal.getName(), request.chunks())
+        .collectList()
+        .map(MissingChunksResponse::new);
+  }
+
+  @PutMapping("/{hash}")
+  public Mono<ResponseEntity<Object>> put(
+      Principal principal,
+      @PathVariable String hash,
+      @RequestHeader HttpHeaders headers,
+      @RequestBody Flux<ByteBuffer> body) {
+    if (!HASH.matcher(hash).matches()) {
+      return Mono.just(failed(HttpStatus.BAD_REQUEST, "Chunk hash must be a hex SHA-256."));
+    }
+    val length = headers.getContentLength();
+    if (length <= 0) {
+      return Mono.just(
+          failed(HttpStatus.BAD_REQUEST, "Required header: [Content-Length] is missing."));
+    }
+    if (length > storageConfig.getChunkMaxSize()) {
+      return Mono.just(failed(HttpStatus.PAYLOAD_TOO_LARGE, "Chunk is too large."));
+    }
+    return chunkStore
+        .put(principal.getName(), hash, length, body)
+        .map(blob -> ResponseEntity.noContent().build())
+        .onErrorResume(
+            InvalidChunkException.class,
+            e -> Mono.just(failed(HttpStatus.BAD_REQUEST, e.getMessage())));
+  }
+}
@@ -0,0 +1,33 @@
+package com.instashare.instasharecore.files;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Records that a user sent the bytes of a chunk. Manifests only use chunks their owner sent, so a
+ * hash alone gives no access to chunks of other users.
+ */
+@Document(value = "chunk_owners")
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+public class ChunkOwner {
+  // See ChunkOwner.id(hash, owner)
+  private @Id String id;
+
+  // Ownership goes away with the chunk, see ChunkStore.reapUnreferenced
+  @Indexed private String hash;
+
+  private String owner;
+  private Instant createdAt;
+
+  static String id(String hash, String owner) {
+    return hash + ":" + owner;
+  }
+}
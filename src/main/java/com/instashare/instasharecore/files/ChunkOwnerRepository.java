@@ -0,0 +1,8 @@
+package com.instashare.instasharecore.files;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Mono;
+
+public interface ChunkOwnerRepository extends ReactiveMongoRepository<ChunkOwner, String> {
+  Mono<Long> deleteAllByHash(String hash);
+}
@@ -0,0 +1,46 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.FixedDelayTask;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+
+/**
+ * Deletes chunks no file references: chunks sent ahead of a manifest that never came, and chunks
+ * whose references were taken back after a failed upload.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ChunkReaper implements SchedulingConfigurer {
+
+  private final ChunkStore chunkStore;
+
+  private final StorageConfigurationProperties storageConfig;
+
+  private final JobLeases jobLeases;
+
+  @Override
+  public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+    val interval = storageConfig.getChunkReaperInterval().toMillis();
+    taskRegistrar.addFixedDelayTask(new FixedDelayTask(this::reap, interval, interval));
+  }
+
+  public void reap() {
+    val cutoff = Instant.now().minus(storageConfig.getChunkGracePeriod());
+    jobLeases
+        .runExclusively(
+            "chunk-reaper",
+            storageConfig.getChunkReaperInterval(),
+            chunkStore.reapUnreferenced(cutoff))
+        .filter(chunks -> chunks > 0)
+        .blockOptional()
+        .ifPresent(chunks -> log.info("Reaped {} unreferenced chunks.", chunks));
+  }
+}
@@ -0,0 +1,315 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.files.exceptions.InvalidChunkException;
+import com.instashare.instasharecore.files.exceptions.UploadFailedException;
+import com.instashare.instasharecore.files.util.ContentDefinedChunker;
+import com.instashare.instasharecore.files.util.ContentHash;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Stores file content as content-defined chunks, each one a {@link Blob}. A file is then a manifest
+ * of chunk hashes, and a new version of a file only adds the chunks around the edits.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ChunkStore {
+
+  static final String KEY_PREFIX = "chunks/";
+
+  private final S3AsyncClient s3Client;
+
+  private final S3ClientConfigurationProperties s3Config;
+
+  private final StorageConfigurationProperties storageConfig;
+
+  private final BlobIndex blobIndex;
+
+  private final UploadThrottle uploadThrottle;
+
+  private final ObjectReader objectReader;
+
+  private final ChunkOwnerRepository chunkOwnerRepository;
+
+  public ContentDefinedChunker newChunker() {
+    return new ContentDefinedChunker(
+        storageConfig.getChunkMinSize(),
+        storageConfig.getChunkAvgSize(),
+        storageConfig.getChunkMaxSize());
+  }
+
+  /**
+   * Splits {@code content} and uploads the chunks that are not stored yet, adding a reference for
+   * every occurrence of a chunk and granting {@code owner} the chunks. Emits the chunks in content
+   * order. References added before a failure are taken back.
+   */
+  public Mono<List<Blob>> store(String owner, Flux<DataBuffer> content) {
+    val chunker = newChunker();
+    val referenced = new ConcurrentLinkedQueue<String>();
+    return content
+        .concatMapIterable(
+            buffer -> {
+              try {
+                return chunker.update(buffer.asByteBuffer());
+              } finally {
+                DataBufferUtils.release(buffer);
+              }
+            })
+        .concatWith(Mono.fromSupplier(chunker::finish))
+        .flatMapSequential(
+            chunk -> storeChunk(chunk).doOnNext(blob -> referenced.add(blob.getId())),
+            storageConfig.getChunkConcurrency(),
+            1)
+        .collectList()
+        .flatMap(chunks -> grant(owner, chunks).thenReturn(chunks))
+        .onErrorResume(error -> release(List.copyOf(referenced)).then(Mono.error(error)))
+        .doOnCancel(
+            () ->
+                release(List.copyOf(referenced))
+                    .subscribe(
+                        unused -> {},
+                        error -> log.warn("Unable to release chunks of cancelled upload.", error)));
+  }
+
+  private Mono<Blob> storeChunk(byte[] chunk) {
+    val digest = ContentHash.newDigest();
+    digest.update(chunk);
+    val hash = ContentHash.hex(digest);
+    return blobIndex
+        .addReference(hash)
+        .switchIfEmpty(
+            Mono.defer(
+                () -> {
+                  // A fresh key, the reaper may still be deleting the object of a chunk it just
+                  // reaped. Concurrent uploads of a new chunk are resolved by BlobIndex.register
+                  val storageKey = KEY_PREFIX + UUID.randomUUID();
+                  return putObject(storageKey, chunk.length, Flux.just(ByteBuffer.wrap(chunk)))
+                      .then(blobIndex.register(hash, storageKey, chunk.length));
+                }));
+  }
+
+  /**
+   * Adds a reference for every occurrence of a chunk in {@code hashes}. False, with no references
+   * added, when some chunk is no longer stored.
+   */
+  public Mono<Boolean> addReferences(List<String> hashes) {
+    val references = occurrences(hashes);
+    return blobIndex
+        .addReferences(references)
+        .flatMap(
+            found ->
+                found == references.size()
+                    ? Mono.just(true)
+                    : blobIndex.removeReferences(references).thenReturn(false));
+  }
+
+  /** Takes back the references of {@link #addReferences(List)} or {@link #store}. */
+  public Mono<Void> release(List<String> hashes) {
+    return hashes.isEmpty() ? Mono.empty() : blobIndex.removeReferences(occurrences(hashes));
+  }
+
+  private static Map<String, Long> occurrences(List<String> hashes) {
+    return hashes.stream()
+        .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+  }
+
+  /** Stored chunks from {@code hashes} that {@code owner} sent, by hash. */
+  public Mono<Map<String, Blob>> findOwned(String owner, Collection<String> hashes) {
+    return chunkOwnerRepository
+        .findAllById(hashes.stream().map(hash -> ChunkOwner.id(hash, owner)).toList())
+        .map(ChunkOwner::getHash)
+        .collectList()
+        .flatMapMany(blobIndex::findAllByHash)
+        .collectMap(Blob::getId);
+  }
+
+  /**
+   * Hashes from {@code hashes} that are not stored or {@code owner} did not send, in request order.
+   */
+  public Flux<String> missing(String owner, Collection<String> hashes) {
+    val requested = new LinkedHashSet<>(hashes);
+    return findOwned(owner, requested)
+        .flatMapIterable(
+            owned -> requested.stream().filter(hash -> !owned.containsKey(hash)).toList());
+  }
+
+  private Mono<Void> grant(String owner, List<Blob> chunks) {
+    val now = Instant.now();
+    return chunkOwnerRepository
+        .saveAll(
+            chunks.stream()
+                .map(Blob::getId)
+                .distinct()
+                .map(hash -> new ChunkOwner(ChunkOwner.id(hash, owner), hash, owner, now))
+                .toList())
+        .then();
+  }
+
+  /**
+   * Stores a chunk uploaded by {@code owner}. The chunk gets no reference until a manifest uses it,
+   * and is rejected when its bytes do not match {@code hash}. The bytes of a chunk that is already
+   * stored are only hashed, sending them is what grants the chunk to the owner.
+   */
+  public Mono<Blob> put(String owner, String hash, long length, Flux<ByteBuffer> content) {
+    val digest = ContentHash.newDigest();
+    val hashed =
+        Flux.defer(
+            () -> {
+              digest.reset();
+              return content.doOnNext(buffer -> digest.update(buffer.duplicate()));
+            });
+    return blobIndex
+        .findByHash(hash)
+        .map(Optional::of)
+        .defaultIfEmpty(Optional.empty())
+        .flatMap(
+            stored -> {
+              if (stored.isPresent()) {
+                return hashed
+                    .then(verify(digest, hash))
+                    .then(Mono.defer(() -> blobIndex.markUploaded(hash)))
+                    .switchIfEmpty(
+                        Mono.error(
+                            new InvalidChunkException(
+                                "Chunk was deleted while sent, send it again.")));
+              }
+              // Unverified bytes never go under a key other chunks may point at
+              val storageKey = KEY_PREFIX + UUID.randomUUID();
+              return putObject(storageKey, length, hashed)
+                  .then(verify(digest, hash))
+                  .onErrorResume(
+                      InvalidChunkException.class,
+                      e -> {
+                        deleteObject(storageKey);
+                        return Mono.error(e);
+                      })
+                  .then(blobIndex.register(hash, storageKey, length, 0));
+            })
+        .flatMap(blob -> grant(owner, List.of(blob)).thenReturn(blob));
+  }
+
+  private static Mono<Void> verify(MessageDigest digest, String hash) {
+    return Mono.defer(
+        () ->
+            ContentHash.hex(digest).equals(hash)
+                ? Mono.empty()
+                : Mono.error(new InvalidChunkException("Chunk does not match hash.")));
+  }
+
+  /**
+   * Deletes chunks without references whose bytes were last sent before {@code cutoff}, together
+   * with their owners. Emits the number of deleted chunks.
+   */
+  public Mono<Long> reapUnreferenced(Instant cutoff) {
+    return blobIndex
+        .reapUnreferenced(cutoff)
+        .concatMap(blob -> chunkOwnerRepository.deleteAllByHash(blob.getId()).thenReturn(blob))
+        .count();
+  }
+
+  /** Streams the content of the given chunks, fetching the next chunks while one is sent. */
+  public Flux<ByteBuffer> read(List<String> hashes) {
+    return blobIndex
+        .findAllByHash(new HashSet<>(hashes))
+        .collectMap(Blob::getId, Blob::getStorageKey)
+        .flatMapMany(
+            storageKeys ->
+                Flux.fromIterable(hashes)
+                    .flatMapSequential(
+                        hash -> {
+                          val storageKey = storageKeys.get(hash);
+                          if (storageKey == null) {
+                            return Flux.error(new IllegalStateException("Missing chunk: " + hash));
+                          }
+                          return objectReader.read(storageKey);
+                        },
+                        storageConfig.getChunkConcurrency()));
+  }
+
+  /** Streams {@code length} bytes of the given chunks, starting at {@code offset}. */
+  public Flux<ByteBuffer> read(List<String> hashes, long offset, long length) {
+    return blobIndex
+        .findAllByHash(new HashSet<>(hashes))
+        .collectMap(Blob::getId)
+        .flatMapMany(
+            blobs -> {
+              List<Flux<ByteBuffer>> pieces = new ArrayList<>();
+              val end = offset + length;
+              long chunkStart = 0;
+              for (val hash : hashes) {
+                val blob = blobs.get(hash);
+                if (blob == null) {
+                  return Flux.error(new IllegalStateException("Missing chunk: " + hash));
+                }
+                val chunkEnd = chunkStart + blob.getSize();
+                if (chunkEnd > offset && chunkStart < end) {
+                  val from = Math.max(offset, chunkStart) - chunkStart;
+                  val to = Math.min(end, chunkEnd) - chunkStart;
+                  pieces.add(objectReader.read(blob.getStorageKey(), from, to - from));
+                }
+                chunkStart = chunkEnd;
+              }
+              return Flux.fromIterable(pieces)
+                  .flatMapSequential(piece -> piece, storageConfig.getChunkConcurrency());
+            });
+  }
+
+  private Mono<Void> putObject(String storageKey, long length, Flux<ByteBuffer> content) {
+    val request =
+        PutObjectRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(storageKey)
+            .contentLength(length)
+            .build();
+    return uploadThrottle
+        .withPartSlot(
+            Mono.fromFuture(
+                () -> s3Client.putObject(request, AsyncRequestBody.fromPublisher(content))))
+        .flatMap(
+            response -> {
+              val httpResponse = response.sdkHttpResponse();
+              if (httpResponse == null || !httpResponse.isSuccessful()) {
+                log.error("Unable to upload chunk with key: {}.", storageKey);
+                return Mono.error(new UploadFailedException(response));
+              }
+              return Mono.empty();
+            });
+  }
+
+  private void deleteObject(String storageKey) {
+    val request =
+        DeleteObjectRequest.builder().bucket(s3Config.getBucket()).key(storageKey).build();
+    Mono.fromFuture(() -> s3Client.deleteObject(request))
+        .subscribe(
+            response -> {},
+            error -> log.warn("Unable to delete rejected chunk with key: {}.", storageKey, error));
+  }
+}
@@ -0,0 +1,42 @@
+package com.instashare.instasharecore.files;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Compresses RAW files as their uploaded events arrive. Any number of nodes may run it, the queue
+ * spreads the files among their consumers.
+ */
+@Component
+@ConditionalOnProperty(prefix = "instashare.compression", name = "worker-enabled")
+@RequiredArgsConstructor
+@Slf4j
+public class CompressionWorker {
+
+  private final FileService fileService;
+
+  // Listener threads are not event loops, so blocking here bounds the compressions in flight to
+  // the number of consumers
+  @RabbitListener(
+      queues = "#{destinationInfo.routingKey()}",
+      concurrency = "${instashare.compression.worker-concurrency:2}")
+  public void onFileUploaded(String fileKey) {
+    try {
+      fileService
+          .compress(fileKey)
+          .doOnSuccess(
+              file -> {
+                if (file == null) log.debug("Nothing to compress for file with key: {}", fileKey);
+              })
+          .block();
+    } catch (RuntimeException e) {
+      // Not requeued, a file that cannot be read would be retried forever. It stays RAW.
+      log.error("Unable to compress file with key: {}.", fileKey, e);
+      throw new AmqpRejectAndDontRequeueException(e);
+    }
+  }
+}
@@ -1,18 +1,27 @@
 package com.instashare.instasharecore.files;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
+import lombok.Builder;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.time.Instant;
+import java.util.List;
+
 @Document(value = "files")
 @AllArgsConstructor
 @NoArgsConstructor
+@Builder(toBuilder = true)
 @Getter
 @CompoundIndex(name = "owner_fileName_idx", def = "{'owner' : 1, 'fileName' : 1}", unique = true)
+// Content is only created from hashes of files the owner already has
+@CompoundIndex(name = "owner_contentHash_idx", def = "{'owner' : 1, 'contentHash' : 1}")
 public class File {
   private @Id String id;
 
@@ -22,4 +31,78 @@ public class File {
   @Setter private FileStatus fileStatus;
   private Long size;
   private String mimeType;
+
+  // Part size picked for multipart uploads, null when stored with a single request
+  private Long partSize;
+
+  // Hex encoded SHA-256 of the uploaded bytes
+  private String contentHash;
+
+  // Hex encoded SHA-256 of the stored bytes when they differ from the uploaded ones, e.g. for
+  // compressed files. Older compressed files have the hash of their stored bytes in contentHash.
+  @JsonIgnore private String storedHash;
+
+  // S3 key of the content, shared by files with identical content. Null for files stored before
+  // deduplication, whose content lives under their id. Id of the FileContent of INLINE files.
+  @JsonIgnore @Setter private String storageKey;
+
+  // Bytes stored in S3 when they differ from size, e.g. for compressed files
+  private Long storedSize;
+
+  // Encoding of the stored bytes, "gzip" for compressed files and null when stored as uploaded.
+  // Older compressed files predate this field.
+  private String contentEncoding;
+
+  // Where the content of PACKED files starts, see Pack
+  @JsonIgnore
+  @Indexed(sparse = true)
+  private String packId;
+
+  @JsonIgnore private Long packOffset;
+
+  // Null for files stored before chunking was introduced, which are all OBJECT
+  private StorageMode storageMode;
+
+  // Ordered chunk hashes of CHUNKED files, see ChunkStore
+  @JsonIgnore private List<String> chunks;
+
+  // S3 ETag of the content, only kept for files uploaded without computing a content hash
+  @JsonIgnore private String objectETag;
+
+  // When the stored bytes last changed, null for files stored before it was tracked
+  private Instant lastModified;
+
+  public StorageMode getStorageMode() {
+    return storageMode != null ? storageMode : StorageMode.OBJECT;
+  }
+
+  @JsonIgnore
+  public String getObjectKey() {
+    return storageKey != null ? storageKey : id;
+  }
+
+  // Hash of the Blob the content of OBJECT files is stored in
+  @JsonIgnore
+  public String getBlobHash() {
+    return storedHash != null ? storedHash : contentHash;
+  }
+
+  // Strong validator of the stored bytes, null when neither hash nor S3 ETag is known
+  @JsonIgnore
+  public String getETag() {
+    return contentHash != null ? "\"" + contentHash + "\"" : objectETag;
+  }
+
+  // Compressing a file adds a .gz suffix, downloads use the name it was uploaded with
+  @JsonIgnore
+  public String getDownloadName() {
+    if (contentEncoding != null && fileName.endsWith(".gz"))
+      return fileName.substring(0, fileName.length() - ".gz".length());
+    return fileName;
+  }
+
+  @JsonIgnore
+  public long getStoredLength() {
+    return storedSize != null ? storedSize : size;
+  }
 }
@@ -0,0 +1,22 @@
+package com.instashare.instasharecore.files;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Content of an INLINE file, kept out of the {@link File} document so listing files does not load
+ * it.
+ */
+@Document(value = "file_contents")
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+public class FileContent {
+  // Same id as the file
+  private @Id String id;
+
+  private byte[] data;
+}
@@ -1,17 +1,24 @@
 package com.instashare.instasharecore.files;
 
 import com.instashare.instasharecore.files.dtos.*;
+import com.instashare.instasharecore.files.util.AcceptEncoding;
+import com.instashare.instasharecore.files.util.ByteRanges;
 import com.instashare.instasharecore.files.util.SimpleUploadInfo;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.http.codec.multipart.Part;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -30,6 +37,8 @@ import static org.springframework.http.HttpStatus.FORBIDDEN;
 @Slf4j
 public class FileController {
 
+  private static final int MAX_ARCHIVE_FILES = 1000;
+
   private final FileService fileService;
 
   @GetMapping
@@ -46,33 +55,190 @@ public class FileController {
     return fileService.countByOwner(principal.getName());
   }
 
+  // Many files in one response, with one metadata query and the next entries fetched while the
+  // current one is sent. The archive is streamed, so its length is unknown.
+  @GetMapping("/archive")
+  public Mono<ResponseEntity<Flux<ByteBuffer>>> archive(
+      Principal principal, @RequestParam List<String> ids) {
+    val fileKeys = ids.stream().distinct().collect(Collectors.toList());
+    if (fileKeys.isEmpty() || fileKeys.size() > MAX_ARCHIVE_FILES)
+      return Mono.just(ResponseEntity.badRequest().build());
+    return fileService
+        .getAllByIdsAndOwner(fileKeys, principal.getName())
+        .collectMap(File::getId)
+        .map(
+            filesById -> {
+              if (filesById.size() < fileKeys.size())
+                return ResponseEntity.notFound().<Flux<ByteBuffer>>build();
+              val files = fileKeys.stream().map(filesById::get).collect(Collectors.toList());
+              if (files.stream().anyMatch(file -> file.getFileStatus().equals(FileStatus.RAW)))
+                return ResponseEntity.status(FORBIDDEN).<Flux<ByteBuffer>>build();
+              return ResponseEntity.ok()
+                  .contentType(MediaType.parseMediaType("application/zip"))
+                  .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files.zip\"")
+                  .body(fileService.archive(files));
+            });
+  }
+
   @GetMapping("/{fileKey}")
-  public Mono<ResponseEntity<Flux<ByteBuffer>>> download(
-      Principal principal, @PathVariable String fileKey) {
+  public Mono<ResponseEntity<Flux<DataBuffer>>> download(
+      Principal principal,
+      @PathVariable String fileKey,
+      @RequestParam(
+              name = "redirect",
+              defaultValue = "${aws.s3.presigned.redirect-downloads:false}")
+          boolean redirect,
+      ServerWebExchange exchange) {
     val userEmail = principal.getName();
+    val headers = exchange.getRequest().getHeaders();
     return fileService
         .getByIdAndOwner(fileKey, userEmail)
         .flatMap(
             file -> {
               if (file.getFileStatus().equals(FileStatus.RAW))
-                return Mono.just(ResponseEntity.status(FORBIDDEN).body(Flux.<ByteBuffer>empty()));
+                return Mono.just(ResponseEntity.status(FORBIDDEN).body(Flux.<DataBuffer>empty()));
+              val representation = Representation.negotiate(file, headers);
+              // Answered from the metadata alone, S3 is not involved. Files stored before
+              // lastModified was tracked are only validated by their ETag.
+              val lastModified = file.getLastModified();
+              val answered =
+                  lastModified != null
+                      ? exchange.checkNotModified(representation.etag(), lastModified)
+                      : exchange.checkNotModified(representation.etag());
+              // 304, or 412 for a failed If-Match or If-Unmodified-Since
+              if (answered)
+                return Mono.just(
+                    ResponseEntity.status(exchange.getResponse().getRawStatusCode())
+                        .headers(validators(representation))
+                        .<Flux<DataBuffer>>build());
+              val served = Mono.defer(() -> serve(representation, headers));
+              // S3 can only send the stored bytes
+              if (!redirect || representation.decoded()) return served;
+              // The transfer leaves this node, S3 serves Range requests itself
               return fileService
-                  .download(file)
+                  .presignDownload(file)
                   .map(
-                      downloadResult ->
-                          ResponseEntity.ok()
-                              .header(HttpHeaders.CONTENT_TYPE, downloadResult.getContentType())
-                              .header(
-                                  HttpHeaders.CONTENT_LENGTH,
-                                  Long.toString(downloadResult.getContentLength()))
-                              .header(
-                                  HttpHeaders.CONTENT_DISPOSITION,
-                                  downloadResult.getContentDisposition())
-                              .body(downloadResult.getResponse()));
+                      location ->
+                          ResponseEntity.status(HttpStatus.FOUND)
+                              .location(location)
+                              .headers(validators(representation))
+                              .<Flux<DataBuffer>>build())
+                  .switchIfEmpty(served);
             })
         .switchIfEmpty(Mono.just(ResponseEntity.notFound().build()));
   }
 
+  private Mono<ResponseEntity<Flux<DataBuffer>>> serve(
+      Representation representation, HttpHeaders headers) {
+    val file = representation.file();
+    // Ranges of decompressed content would have to inflate everything before them, and several
+    // ranges of gzip encoded content cannot carry a single Content-Encoding
+    if (!representation.decoded()) {
+      val ranges = ByteRanges.requested(headers, representation.etag());
+      if (ranges.size() == 1 || (ranges.size() > 1 && file.getContentEncoding() == null))
+        return Mono.just(partialDownload(representation, ranges));
+    }
+    return fileService
+        .download(file, representation.decoded())
+        .map(
+            downloadResult -> {
+              val response =
+                  ResponseEntity.ok()
+                      .headers(validators(representation))
+                      .header(HttpHeaders.CONTENT_TYPE, downloadResult.getContentType())
+                      .header(
+                          HttpHeaders.CONTENT_LENGTH,
+                          Long.toString(downloadResult.getContentLength()))
+                      .header(
+                          HttpHeaders.CONTENT_DISPOSITION, downloadResult.getContentDisposition())
+                      .header(
+                          HttpHeaders.ACCEPT_RANGES, representation.decoded() ? "none" : "bytes");
+              if (downloadResult.getContentEncoding() != null)
+                response.header(HttpHeaders.CONTENT_ENCODING, downloadResult.getContentEncoding());
+              return response.body(downloadResult.dataBuffers());
+            });
+  }
+
+  // Files are private, caches may keep them but have to revalidate every time
+  private static HttpHeaders validators(Representation representation) {
+    val file = representation.file();
+    val headers = new HttpHeaders();
+    headers.setCacheControl(CacheControl.noCache().cachePrivate());
+    if (representation.etag() != null) headers.setETag(representation.etag());
+    if (file.getLastModified() != null) headers.setLastModified(file.getLastModified());
+    if (file.getContentEncoding() != null) headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+    return headers;
+  }
+
+  private ResponseEntity<Flux<DataBuffer>> partialDownload(
+      Representation representation, List<HttpRange> ranges) {
+    val file = representation.file();
+    val length = file.getStoredLength();
+    List<ByteRanges.Segment> segments;
+    try {
+      segments = ByteRanges.resolve(ranges, length);
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+          .header(HttpHeaders.CONTENT_RANGE, ByteRanges.unsatisfiedRange(length))
+          .body(Flux.empty());
+    }
+    val contentType = file.getMimeType();
+    val response =
+        ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+            .headers(validators(representation))
+            .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+            .header(
+                HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=\"" + file.getDownloadName() + "\"");
+    if (segments.size() == 1) {
+      val segment = segments.get(0);
+      if (file.getContentEncoding() != null)
+        response.header(HttpHeaders.CONTENT_ENCODING, file.getContentEncoding());
+      return response
+          .header(HttpHeaders.CONTENT_TYPE, contentType)
+          .header(HttpHeaders.CONTENT_RANGE, ByteRanges.contentRange(segment, length))
+          .header(HttpHeaders.CONTENT_LENGTH, Long.toString(segment.length()))
+          .body(
+              fileService
+                  .readRange(file, segment.start(), segment.length())
+                  .map(DefaultDataBufferFactory.sharedInstance::wrap));
+    }
+    val boundary = ByteRanges.newBoundary();
+    return response
+        .header(HttpHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary)
+        .header(
+            HttpHeaders.CONTENT_LENGTH,
+            Long.toString(ByteRanges.multipartLength(boundary, contentType, segments, length)))
+        .body(
+            ByteRanges.multipartBody(
+                    boundary,
+                    contentType,
+                    segments,
+                    length,
+                    (offset, count) -> fileService.readRange(file, offset, count))
+                .map(DefaultDataBufferFactory.sharedInstance::wrap));
+  }
+
+  /**
+   * What is sent for a file: its stored bytes, or the decompressed content when the client does not
+   * accept the encoding the file is stored with.
+   */
+  private record Representation(File file, boolean decoded) {
+
+    static Representation negotiate(File file, HttpHeaders headers) {
+      val encoding = file.getContentEncoding();
+      return new Representation(
+          file, encoding != null && !AcceptEncoding.accepts(headers, encoding));
+    }
+
+    // Both representations need distinct strong validators
+    String etag() {
+      val etag = file.getETag();
+      if (!decoded || etag == null) return etag;
+      return etag.substring(0, etag.length() - 1) + "-identity\"";
+    }
+  }
+
   @PatchMapping("/{fileKey}")
   public Mono<ResponseEntity<File>> rename(
       Principal principal,
@@ -91,18 +257,13 @@ public class FileController {
       Principal principal,
       @RequestHeader HttpHeaders headers,
       @RequestBody Flux<ByteBuffer> body,
-      @RequestParam String filename) {
+      @RequestParam String filename,
+      @RequestParam(defaultValue = "false") boolean chunked,
+      @RequestParam(defaultValue = "${instashare.compression.on-ingest:false}") boolean compress) {
 
     val userEmail = principal.getName();
+    // -1 for chunked requests, the service streams those as multipart uploads
     val length = headers.getContentLength();
-    if (length <= 0) {
-      return Mono.just(
-          ResponseEntity.badRequest()
-              .body(
-                  new UploadResult(
-                      UploadStatus.FAILED,
-                      new UploadResultError("Required header: [Content-Length] is missing."))));
-    }
 
     return fileService
         .existsByOwnerAndFileName(principal.getName(), filename)
@@ -122,7 +283,10 @@ public class FileController {
                   "Upload attempt. Info: MediaType {}, Length: {}",
                   uploadInfo.getMediaType(),
                   length);
-              val uploadFuture = fileService.uploadSimple(uploadInfo);
+              Mono<File> uploadFuture;
+              if (chunked) uploadFuture = fileService.uploadChunked(uploadInfo);
+              else if (compress) uploadFuture = fileService.uploadCompressed(uploadInfo);
+              else uploadFuture = fileService.upload(uploadInfo);
               return uploadFuture.map(
                   file ->
                       ResponseEntity.ok()
@@ -133,28 +297,109 @@ public class FileController {
             });
   }
 
+  // Lets clients skip uploading content they already stored in another file. A 404 means none of
+  // the caller's files has that content, whether or not other users store it.
+  @PostMapping("/by-hash")
+  public Mono<ResponseEntity<UploadResult>> createFromHash(
+      Principal principal, @Valid @RequestBody CreateFromHashRequest request) {
+    val userEmail = principal.getName();
+    val mimeType = ofNullable(request.mimeType()).orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+    return fileService
+        .existsByOwnerAndFileName(userEmail, request.fileName())
+        .flatMap(
+            exists -> {
+              if (exists) {
+                return Mono.just(
+                    ResponseEntity.status(HttpStatus.CONFLICT)
+                        .body(
+                            new UploadResult(
+                                UploadStatus.FAILED, new UploadResultError("File name in use."))));
+              }
+              return fileService
+                  .createFromHash(userEmail, request.fileName(), request.sha256(), mimeType)
+                  .map(
+                      file ->
+                          ResponseEntity.status(HttpStatus.CREATED)
+                              .body(
+                                  new UploadResult(
+                                      UploadStatus.COMPLETED,
+                                      new UploadResultCompleted(List.of(file.getId())))))
+                  .switchIfEmpty(
+                      Mono.just(
+                          ResponseEntity.status(HttpStatus.NOT_FOUND)
+                              .body(
+                                  new UploadResult(
+                                      UploadStatus.FAILED,
+                                      new UploadResultError("Unknown content.")))));
+            });
+  }
+
+  // Last step of a delta upload: the client chunks the file, uploads the chunks reported missing by
+  // /v1/chunks/missing and then sends the manifest. A 404 means some chunk is not stored or was not
+  // sent by the user.
+  @PostMapping("/chunked")
+  public Mono<ResponseEntity<UploadResult>> createChunked(
+      Principal principal, @Valid @RequestBody CreateChunkedFileRequest request) {
+    val userEmail = principal.getName();
+    val mimeType = ofNullable(request.mimeType()).orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+    return fileService
+        .existsByOwnerAndFileName(userEmail, request.fileName())
+        .flatMap(
+            exists -> {
+              if (exists) {
+                return Mono.just(
+                    ResponseEntity.status(HttpStatus.CONFLICT)
+                        .body(
+                            new UploadResult(
+                                UploadStatus.FAILED, new UploadResultError("File name in use."))));
+              }
+              return fileService
+                  .createChunked(userEmail, request.fileName(), mimeType, request.chunks())
+                  .map(
+                      file ->
+                          ResponseEntity.status(HttpStatus.CREATED)
+                              .body(
+                                  new UploadResult(
+                                      UploadStatus.COMPLETED,
+                                      new UploadResultCompleted(List.of(file.getId())))))
+                  .switchIfEmpty(
+                      Mono.just(
+                          ResponseEntity.status(HttpStatus.NOT_FOUND)
+                              .body(
+                                  new UploadResult(
+                                      UploadStatus.FAILED,
+                                      new UploadResultError("Unknown chunks.")))));
+            });
+  }
+
   @RequestMapping(
       consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
       method = {RequestMethod.POST, RequestMethod.PUT})
   public Mono<ResponseEntity<UploadResult>> uploadMultipart(
-      Principal principal, @RequestBody Flux<Part> parts) {
+      Principal principal,
+      @RequestBody Flux<Part> parts,
+      @RequestParam(defaultValue = "${instashare.compression.on-ingest:false}") boolean compress) {
     return parts
         .ofType(FilePart.class)
-        .filterWhen(
-            filePart ->
-                fileService
-                    .existsByOwnerAndFileName(principal.getName(), filePart.filename())
-                    .map(it -> !it))
-        .flatMap(part -> fileService.uploadPart(part, principal.getName()))
-        .collect(Collectors.toList())
+        // Parts are buffered by the codec, so the whole form can be checked at once
+        .collectList()
+        .flatMap(fileParts -> fileService.uploadParts(fileParts, principal.getName(), compress))
         .map(
-            files -> {
-              val fileKeys = files.stream().map(File::getId).collect(Collectors.toList());
+            uploaded -> {
+              val fileKeys =
+                  uploaded.files().stream().map(File::getId).collect(Collectors.toList());
               if (fileKeys.isEmpty())
                 return ResponseEntity.status(HttpStatus.CONFLICT)
                     .body(
                         new UploadResult(
                             UploadStatus.FAILED, new UploadResultError("File name in use")));
+              // Some files were saved, their keys are sent along with the parts that failed
+              if (!uploaded.failed().isEmpty())
+                return ResponseEntity.status(HttpStatus.MULTI_STATUS)
+                    .body(
+                        new UploadResult(
+                            UploadStatus.PARTIAL,
+                            new UploadResultPartial(fileKeys, uploaded.failed())));
               return ResponseEntity.status(HttpStatus.CREATED)
                   .body(
                       new UploadResult(
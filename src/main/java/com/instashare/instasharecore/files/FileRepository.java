@@ -5,6 +5,8 @@ import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 public interface FileRepository extends ReactiveMongoRepository<File, String> {
 
   Mono<File> save(File file);
@@ -14,10 +16,22 @@ public interface FileRepository extends ReactiveMongoRepository<File, String> {
   @Query(value = "{ 'owner': ?0, 'fileName': ?1 }", exists = true)
   Mono<Boolean> existsByOwnerAndFileName(String owner, String fileName);
 
+  @Query(value = "{ 'owner': ?0, 'fileName': { $in: ?1 } }", exists = true)
+  Mono<Boolean> existsByOwnerAndFileNameIn(String owner, Collection<String> fileNames);
+
+  @Query(value = "{ 'owner': ?0, 'fileName': { $in: ?1 } }", fields = "{ 'fileName': 1 }")
+  Flux<File> findAllByOwnerAndFileNameIn(String owner, Collection<String> fileNames);
+
+  Flux<File> findAllByOwnerAndContentHash(String owner, String contentHash);
+
   Flux<File> findAllByOwner(String owner);
 
+  Flux<File> findAllByPackId(String packId);
+
   Mono<File> findByIdAndOwner(String fileKey, String owner);
 
+  Flux<File> findAllByIdInAndOwner(Collection<String> fileKeys, String owner);
+
   @Query(value = "{ 'owner': ?0}", count = true)
   Mono<Long> countByOwner(String name);
 }
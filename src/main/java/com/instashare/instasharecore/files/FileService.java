@@ -2,26 +2,96 @@ package com.instashare.instasharecore.files;
 
 import com.instashare.instasharecore.files.util.DownloadResult;
 import com.instashare.instasharecore.files.util.SimpleUploadInfo;
+import com.instashare.instasharecore.files.util.UploadedParts;
 import org.springframework.http.codec.multipart.FilePart;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
 public interface FileService {
   Mono<File> uploadSimple(SimpleUploadInfo simpleUploadInfo);
 
+  /**
+   * Uploads a raw body. Small bodies of known length go through {@link #uploadSimple}, anything
+   * else (including bodies without a Content-Length) through the multipart engine.
+   */
+  Mono<File> upload(SimpleUploadInfo simpleUploadInfo);
+
+  /**
+   * Uploads a raw body gzip-compressed while it is received, storing it directly as COMPRESSED.
+   * Incompressible media types are stored as uploaded.
+   */
+  Mono<File> uploadCompressed(SimpleUploadInfo simpleUploadInfo);
+
+  /**
+   * Uploads a raw body as content-defined chunks, storing only the chunks not stored yet. Meant for
+   * files that are uploaded again after small edits.
+   */
+  Mono<File> uploadChunked(SimpleUploadInfo simpleUploadInfo);
+
+  /** Creates a file from a manifest of chunks the owner sent, empty when some chunk is unknown. */
+  Mono<File> createChunked(String owner, String fileName, String mimeType, List<String> chunks);
+
   Mono<Boolean> existsByFileName(String fileName);
 
   Mono<Boolean> existsByOwnerAndFileName(String owner, String filename);
 
   Flux<File> getAll(String owner);
 
-  Mono<DownloadResult> download(File file);
+  /**
+   * The content of a file as stored, with its content encoding, or decompressed while it is sent
+   * when {@code decode} is set.
+   */
+  Mono<DownloadResult> download(File file, boolean decode);
+
+  /**
+   * A short-lived URL to download a file straight from S3. Empty when its content is not stored as
+   * an object of its own.
+   */
+  Mono<URI> presignDownload(File file);
+
+  /** Streams {@code length} stored bytes of a file starting at {@code offset}. */
+  Flux<ByteBuffer> readRange(File file, long offset, long length);
 
   Mono<File> getByIdAndOwner(String fileKey, String owner);
 
+  /** The files of {@code owner} among {@code fileKeys}, in no particular order. */
+  Flux<File> getAllByIdsAndOwner(Collection<String> fileKeys, String owner);
+
+  /**
+   * Streams a ZIP archive of {@code files} in the given order, compressed files are added
+   * decompressed. The content of the next entries is requested while the current one is sent.
+   */
+  Flux<ByteBuffer> archive(List<File> files);
+
   Mono<File> rename(File file, String newName);
 
   Mono<File> uploadPart(FilePart filePart, String owner);
 
+  /**
+   * Uploads the files of a form, skipping those whose name is in use. Name conflicts are resolved
+   * with one query and the metadata is written with one bulk insert. With {@code compress} the
+   * files are compressed while received, like {@link #uploadCompressed}. Parts that fail are
+   * reported with the saved files, the request only fails when no file was saved.
+   */
+  Mono<UploadedParts> uploadParts(List<FilePart> fileParts, String owner, boolean compress);
+
+  /**
+   * Creates a file from content the owner already stored, empty when none of the owner's files has
+   * that hash.
+   */
+  Mono<File> createFromHash(String owner, String fileName, String contentHash, String mimeType);
+
+  /**
+   * Rewrites the content of a RAW file gzip-compressed and marks it COMPRESSED. Inline and packed
+   * files, and files of incompressible types, are marked STORED as they are. Empty when the file is
+   * gone or not RAW anymore.
+   */
+  Mono<File> compress(String fileKey);
+
   Mono<Long> countByOwner(String name);
 }
@@ -2,5 +2,7 @@ package com.instashare.instasharecore.files;
 
 public enum FileStatus {
   COMPRESSED,
-  RAW
+  RAW,
+  // Stored as is, nothing to wait for before downloading
+  STORED
 }
@@ -0,0 +1,25 @@
+package com.instashare.instasharecore.files;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/** Lease of a scheduled job held by one node, see JobLeases. */
+@Document(value = "job_leases")
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+public class JobLease {
+  // Name of the job
+  private @Id String id;
+
+  // Random id of the node holding the lease
+  private String holder;
+
+  // A node that died without releasing the lease holds it until then
+  private Instant expiresAt;
+}
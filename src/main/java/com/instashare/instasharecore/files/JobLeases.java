@@ -0,0 +1,66 @@
+package com.instashare.instasharecore.files;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Runs scheduled jobs on one node at a time. Every node schedules the jobs, the one taking a job's
+ * lease in Mongo runs it and the others skip that run. Leases are kept until they expire, not
+ * released when the run finishes, so a job runs once per lease duration across all nodes. A job
+ * whose node died runs again elsewhere, and a run outlasting its lease may overlap with the next one.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class JobLeases {
+
+  private final ReactiveMongoTemplate mongoTemplate;
+
+  private final String holder = UUID.randomUUID().toString();
+
+  /**
+   * Runs {@code job} after taking the lease of {@code name} for {@code duration}, empty when another
+   * node holds it. Scheduled jobs pass their interval, so other nodes skip until the next run.
+   */
+  public <T> Mono<T> runExclusively(String name, Duration duration, Mono<T> job) {
+    return acquire(name, duration).filter(acquired -> acquired).flatMap(acquired -> job);
+  }
+
+  Mono<Boolean> acquire(String name, Duration duration) {
+    return Mono.defer(
+        () -> {
+          val now = Instant.now();
+          val available =
+              new Criteria().orOperator(where("expiresAt").lt(now), where("holder").is(holder));
+          return mongoTemplate
+              .findAndModify(
+                  query(where("_id").is(name).andOperator(available)),
+                  new Update().set("holder", holder).set("expiresAt", now.plus(duration)),
+                  FindAndModifyOptions.options().upsert(true).returnNew(true),
+                  JobLease.class)
+              .map(lease -> true)
+              // The lease exists and is held by another node, so the upsert tried to insert it
+              .onErrorResume(DuplicateKeyException.class, e -> Mono.just(false))
+              .defaultIfEmpty(false)
+              .doOnNext(
+                  acquired -> {
+                    if (!acquired) log.debug("Job: {} is leased by another node.", name);
+                  });
+        });
+  }
+}
@@ -0,0 +1,111 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.FixedDelayTask;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.Part;
+
+import java.time.Instant;
+
+/**
+ * Aborts multipart uploads nobody is going to complete: uploads whose node died, and sessions that
+ * expired. Uploads that still have a resumable session are left alone.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class MultipartUploadReaper implements SchedulingConfigurer {
+
+  private final S3AsyncClient s3Client;
+
+  private final S3ClientConfigurationProperties s3Config;
+
+  private final UploadSessionRepository uploadSessionRepository;
+
+  private final JobLeases jobLeases;
+
+  @Override
+  public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+    val interval = s3Config.getReaperInterval().toMillis();
+    taskRegistrar.addFixedDelayTask(new FixedDelayTask(this::reap, interval, interval));
+  }
+
+  public void reap() {
+    jobLeases
+        .runExclusively(
+            "multipart-upload-reaper", s3Config.getReaperInterval(), reapAbandonedUploads())
+        .blockOptional()
+        .ifPresent(
+            result ->
+                log.info(
+                    "Reaped {} abandoned multipart uploads, {} bytes reclaimed.",
+                    result.uploads(),
+                    result.bytes()));
+  }
+
+  public Mono<ReapResult> reapAbandonedUploads() {
+    val cutoff = Instant.now().minus(s3Config.getAbandonedUploadMaxAge());
+    val request = ListMultipartUploadsRequest.builder().bucket(s3Config.getBucket()).build();
+
+    return Flux.from(s3Client.listMultipartUploadsPaginator(request).uploads())
+        .filter(upload -> upload.initiated().isBefore(cutoff))
+        .filterWhen(
+            upload -> uploadSessionRepository.existsByUploadId(upload.uploadId()).map(it -> !it))
+        .buffer(s3Config.getReaperBatchSize())
+        .concatMap(
+            batch -> Flux.fromIterable(batch).flatMap(this::abort, s3Config.getReaperBatchSize()))
+        .reduce(ReapResult.NONE, ReapResult::plus);
+  }
+
+  private Mono<ReapResult> abort(MultipartUpload upload) {
+    val partsRequest =
+        ListPartsRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(upload.key())
+            .uploadId(upload.uploadId())
+            .build();
+    val abortRequest =
+        AbortMultipartUploadRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(upload.key())
+            .uploadId(upload.uploadId())
+            .build();
+
+    return Flux.from(s3Client.listPartsPaginator(partsRequest).parts())
+        .map(Part::size)
+        .reduce(0L, Long::sum)
+        .flatMap(
+            bytes ->
+                Mono.fromFuture(() -> s3Client.abortMultipartUpload(abortRequest))
+                    .thenReturn(new ReapResult(1, bytes)))
+        .doOnNext(
+            result ->
+                log.debug(
+                    "Aborted upload of file with key: {}, {} bytes.", upload.key(), result.bytes()))
+        .onErrorResume(
+            error -> {
+              log.warn("Unable to abort upload of file with key: {}.", upload.key(), error);
+              return Mono.just(ReapResult.NONE);
+            });
+  }
+
+  public record ReapResult(long uploads, long bytes) {
+    static final ReapResult NONE = new ReapResult(0, 0);
+
+    ReapResult plus(ReapResult other) {
+      return new ReapResult(uploads + other.uploads, bytes + other.bytes);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Disk cache of the S3 objects read most, e.g. popular files and packs of small files. Objects are
+ * never overwritten, changed content gets a new key and the old object is deleted, so an entry
+ * stays valid until {@link #invalidate} is called for its key.
+ *
+ * <p>An object is admitted when it misses a second time while its key is still in a bounded list of
+ * recent misses, which keeps objects read once from evicting popular ones. Beyond the size limit
+ * the least recently used entries are evicted. Entries are memory mapped once when they are filled
+ * and hits are handed to the response without being copied into the heap.
+ *
+ * <p>Each instance keeps its files in a directory of its own below the configured one, so instances
+ * sharing a directory never delete each other's entries.
+ */
+@Component
+@Slf4j
+public class ObjectCache {
+
+  // Recent misses remembered for admission
+  private static final int DOORKEEPER_SIZE = 10_000;
+
+  // Hits are emitted in slices so slow clients pull them as they read
+  private static final int SLICE_SIZE = 1024 * 1024;
+
+  private final boolean enabled;
+
+  private final Path directory;
+
+  private final long maxSize;
+
+  private final long maxObjectSize;
+
+  // In access order, the first entry is the least recently used one
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final Map<String, Boolean> doorkeeper =
+      new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > DOORKEEPER_SIZE;
+        }
+      };
+
+  private final Set<String> filling = new HashSet<>();
+
+  private long size;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final Counter bytesSaved;
+
+  private final Counter evictions;
+
+  public ObjectCache(StorageConfigurationProperties storageConfig, MeterRegistry meterRegistry) {
+    this.enabled = storageConfig.isCacheEnabled();
+    this.directory = storageConfig.getCacheDirectory().resolve(UUID.randomUUID().toString());
+    this.maxSize = storageConfig.getCacheMaxSize().toBytes();
+    // A mapped buffer holds at most 2GB
+    this.maxObjectSize =
+        Math.min(
+            storageConfig.getCacheMaxObjectSize().toBytes(), Math.min(maxSize, Integer.MAX_VALUE));
+
+    FunctionCounter.builder("instashare.cache.requests", hits, LongAdder::sum)
+        .tag("result", "hit")
+        .register(meterRegistry);
+    FunctionCounter.builder("instashare.cache.requests", misses, LongAdder::sum)
+        .tag("result", "miss")
+        .register(meterRegistry);
+    Gauge.builder("instashare.cache.hit.ratio", this, ObjectCache::hitRatio)
+        .register(meterRegistry);
+    Gauge.builder("instashare.cache.size", this, ObjectCache::size)
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    this.bytesSaved =
+        Counter.builder("instashare.cache.bytes.saved")
+            .baseUnit("bytes")
+            .description("Bytes served from disk instead of S3")
+            .register(meterRegistry);
+    this.evictions = Counter.builder("instashare.cache.evictions").register(meterRegistry);
+  }
+
+  @PostConstruct
+  void open() throws IOException {
+    if (!enabled) return;
+    Files.createDirectories(directory);
+  }
+
+  // The index only lives in memory, the files are useless to a later run
+  @PreDestroy
+  void close() throws IOException {
+    if (!enabled) return;
+    FileSystemUtils.deleteRecursively(directory);
+  }
+
+  /** The cached object mapped into memory, empty on a miss. */
+  public Optional<CachedObject> get(String key) {
+    if (!enabled) return Optional.empty();
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    if (entry == null) {
+      misses.increment();
+      return Optional.empty();
+    }
+    hits.increment();
+    return Optional.of(new CachedObject(entry.contentType(), entry.content()));
+  }
+
+  /**
+   * Records a miss of an object of {@code length} bytes. True when the object is admitted, its
+   * content is then expected in {@link #fill}.
+   */
+  public synchronized boolean admit(String key, long length) {
+    if (!enabled || length > maxObjectSize) return false;
+    if (entries.containsKey(key) || filling.contains(key)) return false;
+    if (doorkeeper.remove(key) == null) {
+      doorkeeper.put(key, true);
+      return false;
+    }
+    filling.add(key);
+    return true;
+  }
+
+  /** Writes an admitted object to disk in the background. */
+  public void fill(String key, String contentType, Flux<ByteBuffer> content) {
+    val path = directory.resolve(UUID.randomUUID().toString());
+    DataBufferUtils.write(content.map(DefaultDataBufferFactory.sharedInstance::wrap), path)
+        .then(Mono.fromCallable(() -> map(path)))
+        .subscribe(
+            mapped -> add(key, new Entry(path, mapped.capacity(), contentType, mapped)),
+            error -> {
+              log.warn("Unable to cache object with key: {}.", key, error);
+              synchronized (this) {
+                filling.remove(key);
+              }
+              delete(path);
+            });
+  }
+
+  /** Drops the entry of a deleted object. */
+  public void invalidate(String key) {
+    if (!enabled) return;
+    Entry entry;
+    synchronized (this) {
+      filling.remove(key);
+      doorkeeper.remove(key);
+      entry = entries.remove(key);
+      if (entry != null) size -= entry.length();
+    }
+    if (entry != null) delete(entry.path());
+  }
+
+  private void add(String key, Entry entry) {
+    val evicted = new ArrayList<Path>();
+    synchronized (this) {
+      // Invalidated while it was written
+      if (!filling.remove(key)) {
+        evicted.add(entry.path());
+      } else {
+        entries.put(key, entry);
+        size += entry.length();
+        val iterator = entries.values().iterator();
+        while (size > maxSize) {
+          val eldest = iterator.next();
+          iterator.remove();
+          size -= eldest.length();
+          evicted.add(eldest.path());
+          evictions.increment();
+        }
+      }
+    }
+    evicted.forEach(this::delete);
+  }
+
+  private static MappedByteBuffer map(Path path) throws IOException {
+    try (val channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  private void delete(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      log.warn("Unable to delete cached file: {}.", path, e);
+    }
+  }
+
+  private synchronized long size() {
+    return size;
+  }
+
+  private double hitRatio() {
+    val hitCount = hits.sum();
+    val total = hitCount + misses.sum();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  // The mapping is shared by every hit, reads only slice it
+  private record Entry(Path path, long length, String contentType, ByteBuffer content) {}
+
+  /**
+   * A cache hit. Mappings stay readable after their file was evicted, the space of the file is
+   * freed once the last hit reading it is collected.
+   */
+  public class CachedObject {
+    private final String contentType;
+
+    private final ByteBuffer content;
+
+    private CachedObject(String contentType, ByteBuffer content) {
+      this.contentType = contentType;
+      this.content = content;
+    }
+
+    public String contentType() {
+      return contentType;
+    }
+
+    public long length() {
+      return content.capacity();
+    }
+
+    public Flux<ByteBuffer> read() {
+      return read(0, length());
+    }
+
+    public Flux<ByteBuffer> read(long offset, long length) {
+      val end = (int) Math.min(offset + length, content.capacity());
+      return Flux.generate(
+          () -> (int) offset,
+          (position, sink) -> {
+            if (position >= end) {
+              sink.complete();
+              return position;
+            }
+            val sliceLength = Math.min(SLICE_SIZE, end - position);
+            sink.next(content.slice(position, sliceLength));
+            bytesSaved.increment(sliceLength);
+            return position + sliceLength;
+          });
+    }
+  }
+}
@@ -0,0 +1,314 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.files.exceptions.DownloadFailedException;
+import com.instashare.instasharecore.files.util.AsyncPermits;
+import io.netty.buffer.ByteBufAllocator;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.core.io.buffer.PooledDataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.util.retry.Retry;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams S3 objects, or byte ranges of them, for every storage mode. Objects read often are served
+ * from the {@link ObjectCache}. Objects and ranges larger than a download part are fetched with
+ * concurrent ranged GETs, as a single S3 connection is much slower than the network. Concurrent
+ * reads of the same object or range share their fetch through {@link SharedReads}. The ranges
+ * buffered by all downloads of the node are bounded by the download buffer budget.
+ */
+@Component
+@Slf4j
+public class ObjectReader {
+
+  private final S3AsyncClient s3Client;
+
+  private final S3ClientConfigurationProperties s3Config;
+
+  private final StorageConfigurationProperties storageConfig;
+
+  private final ObjectCache objectCache;
+
+  private final SharedReads sharedReads;
+
+  private final S3Presigner s3Presigner;
+
+  // Sends the presigned GETs of readDirect, its pooled buffers are passed on as they are
+  private final HttpClient httpClient;
+
+  private final NettyDataBufferFactory bufferFactory =
+      new NettyDataBufferFactory(ByteBufAllocator.DEFAULT);
+
+  // Bytes of the ranges buffered by every download of this node, see continued
+  private final AsyncPermits partBuffers;
+
+  public ObjectReader(
+      S3AsyncClient s3Client,
+      S3ClientConfigurationProperties s3Config,
+      StorageConfigurationProperties storageConfig,
+      ObjectCache objectCache,
+      SharedReads sharedReads,
+      S3Presigner s3Presigner,
+      HttpClient s3HttpClient) {
+    this.s3Client = s3Client;
+    this.s3Config = s3Config;
+    this.storageConfig = storageConfig;
+    this.objectCache = objectCache;
+    this.sharedReads = sharedReads;
+    this.s3Presigner = s3Presigner;
+    this.httpClient = s3HttpClient;
+    this.partBuffers = new AsyncPermits(storageConfig.getDownloadBufferBudget().toBytes());
+  }
+
+  /** Streams an object along with the content type and length it was stored with. */
+  public Mono<StoredObject> open(String key) {
+    return Mono.defer(
+        () -> {
+          val cached = objectCache.get(key);
+          if (cached.isPresent()) {
+            val object = cached.get();
+            return Mono.just(
+                new StoredObject(object.contentType(), object.length(), object.read()));
+          }
+          return sharedReads.open(
+              key,
+              () -> fetchObject(key),
+              (object, offset) -> fetchRange(key, offset, object.length() - offset));
+        });
+  }
+
+  public Flux<ByteBuffer> read(String key) {
+    return open(key).flatMapMany(StoredObject::content);
+  }
+
+  /** Streams {@code length} bytes of the object starting at {@code offset}. */
+  public Flux<ByteBuffer> read(String key, long offset, long length) {
+    if (length <= 0) return Flux.empty();
+    return Flux.defer(
+        () -> {
+          val cached = objectCache.get(key);
+          if (cached.isPresent()) return cached.get().read(offset, length);
+          return sharedReads.read(
+              key + " " + range(offset, offset + length),
+              length,
+              () -> fetchRange(key, offset, length),
+              position -> fetchRange(key, offset + position, length - position));
+        });
+  }
+
+  private Mono<StoredObject> fetchObject(String key) {
+    if (!parallel())
+      return get(key, request(key).build()).map(response -> stored(response, response.flux));
+    // The first part tells the object length, larger objects continue with ranged GETs
+    val partSize = partSize();
+    return get(key, request(key).range(range(0, partSize)).build())
+        .map(
+            response ->
+                stored(
+                    response,
+                    continued(key, response, partSize, objectLength(response.sdkResponse))))
+        // Empty objects have no range to read
+        .onErrorResume(
+            ObjectReader::unsatisfiable,
+            e -> get(key, request(key).build()).map(response -> stored(response, response.flux)));
+  }
+
+  private Flux<ByteBuffer> fetchRange(String key, long offset, long length) {
+    if (length <= 0) return Flux.empty();
+    val end = offset + length;
+    val firstEnd = parallel() ? Math.min(offset + partSize(), end) : end;
+    val request = request(key).range(range(offset, firstEnd)).build();
+    return get(key, request).flatMapMany(response -> continued(key, response, firstEnd, end));
+  }
+
+  /**
+   * Streams an object of {@code length} bytes in the pooled buffers it is received in, for a
+   * response that writes and releases them. The SDK copies every buffer it receives into the heap,
+   * this path allocates next to nothing per byte but reads with a single GET and without {@link
+   * SharedReads}. The request is only sent on subscription, so the length comes from the caller.
+   */
+  public Flux<DataBuffer> readDirect(String key, long length, String contentType) {
+    return Flux.<DataBuffer>defer(
+            () -> {
+              val cached = objectCache.get(key);
+              if (cached.isPresent())
+                return cached.get().read().map(DefaultDataBufferFactory.sharedInstance::wrap);
+              if (objectCache.admit(key, length)) {
+                objectCache.fill(
+                    key, contentType, fetch(request(key).build()).flatMapMany(whole -> whole.flux));
+              }
+              val presignRequest =
+                  GetObjectPresignRequest.builder()
+                      .signatureDuration(s3Config.getPresigned().getExpiration())
+                      .getObjectRequest(request(key).build())
+                      .build();
+              val received = new AtomicBoolean();
+              return httpClient
+                  .get()
+                  .uri(s3Presigner.presignGetObject(presignRequest).url().toString())
+                  .response(
+                      (response, body) -> {
+                        val status = response.status();
+                        if (status.code() != HttpStatus.OK.value())
+                          return Flux.<DataBuffer>error(
+                              new DownloadFailedException(
+                                  status.code(), Optional.of(status.reasonPhrase())));
+                        return body.retain().map(bufferFactory::wrap);
+                      })
+                  .doOnNext(buffer -> received.set(true))
+                  // Bytes already passed on cannot be taken back
+                  .retryWhen(
+                      Retry.max(s3Config.getDirectReadRetries())
+                          .filter(error -> !received.get() && retryable(error))
+                          .onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+            })
+        .doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+  }
+
+  private boolean parallel() {
+    return storageConfig.getDownloadConcurrency() > 1;
+  }
+
+  private long partSize() {
+    return storageConfig.getDownloadPartSize().toBytes();
+  }
+
+  private static StoredObject stored(FluxResponse response, Flux<ByteBuffer> content) {
+    return new StoredObject(
+        response.sdkResponse.contentType(), objectLength(response.sdkResponse), content);
+  }
+
+  // The first response is streamed while the bytes from offset to end are fetched alongside it.
+  // Ranges are only fetched concurrently while the budget has room for the ones buffered, which
+  // are held until the download ends.
+  private Flux<ByteBuffer> continued(String key, FluxResponse first, long offset, long end) {
+    if (offset >= end) return first.flux;
+    val eTag = first.sdkResponse.eTag();
+    return Flux.defer(
+        () -> {
+          val partSize = partSize();
+          val partCount = (end - offset + partSize - 1) / partSize;
+          val buffered = Math.min(storageConfig.getDownloadConcurrency() - 1, partCount) * partSize;
+          if (partBuffers.tryAcquire(buffered)) {
+            return Flux.mergeSequential(first.flux, parts(key, eTag, offset, end))
+                .doFinally(signal -> partBuffers.release(buffered));
+          }
+          log.debug("Download buffer budget exhausted, reading object with key: {} whole.", key);
+          val request = request(key).range(range(offset, end)).ifMatch(eTag).build();
+          return Flux.mergeSequential(
+              first.flux, fetch(request).flatMapMany(response -> response.flux));
+        });
+  }
+
+  /**
+   * Fetches the bytes from {@code offset} to {@code end} as ranged GETs, at most one less than the
+   * download concurrency at a time, and emits them in order. Ranges are buffered whole, so a slow
+   * one can be fetched again without emitting anything twice, and the next ones are only requested
+   * as the client reads the previous ones.
+   */
+  private Flux<ByteBuffer> parts(String key, String eTag, long offset, long end) {
+    val partSize = partSize();
+    return Flux.range(0, (int) ((end - offset + partSize - 1) / partSize))
+        .flatMapSequential(
+            i -> {
+              val start = offset + i * partSize;
+              return part(key, eTag, start, Math.min(start + partSize, end));
+            },
+            storageConfig.getDownloadConcurrency() - 1,
+            1)
+        .concatMapIterable(buffers -> buffers);
+  }
+
+  private Mono<List<ByteBuffer>> part(String key, String eTag, long start, long end) {
+    // The object must not change between ranges
+    val request = request(key).range(range(start, end)).ifMatch(eTag).build();
+    return fetch(request)
+        .flatMap(response -> response.flux.collectList())
+        .timeout(storageConfig.getDownloadPartTimeout())
+        .retryWhen(
+            Retry.max(storageConfig.getDownloadPartRetries())
+                .filter(TimeoutException.class::isInstance)
+                .doBeforeRetry(
+                    signal ->
+                        log.warn(
+                            "Range {}-{} of object with key: {} timed out, fetching it again.",
+                            start,
+                            end - 1,
+                            key)));
+  }
+
+  private static String range(long start, long end) {
+    return "bytes=" + start + "-" + (end - 1);
+  }
+
+  // Connection failures, timeouts and server errors
+  private static boolean retryable(Throwable error) {
+    return !(error instanceof DownloadFailedException)
+        || ((DownloadFailedException) error).getStatusCode() >= 500;
+  }
+
+  private static boolean unsatisfiable(Throwable error) {
+    return error instanceof S3Exception
+        && ((S3Exception) error).statusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value();
+  }
+
+  private GetObjectRequest.Builder request(String key) {
+    return GetObjectRequest.builder().bucket(s3Config.getBucket()).key(key);
+  }
+
+  private Mono<FluxResponse> get(String key, GetObjectRequest request) {
+    return fetch(request)
+        .doOnNext(
+            response -> {
+              if (objectCache.admit(key, objectLength(response.sdkResponse))) {
+                // A whole copy for the cache, independent of what this reader consumes
+                objectCache.fill(
+                    key,
+                    response.sdkResponse.contentType(),
+                    fetch(request(key).build()).flatMapMany(whole -> whole.flux));
+              }
+            });
+  }
+
+  private Mono<FluxResponse> fetch(GetObjectRequest request) {
+    return Mono.fromFuture(() -> s3Client.getObject(request, new FluxResponseProvider()))
+        .map(
+            response -> {
+              val httpResponse = response.sdkResponse.sdkHttpResponse();
+              if (httpResponse == null || !httpResponse.isSuccessful()) {
+                throw new DownloadFailedException(response.sdkResponse);
+              }
+              return response;
+            });
+  }
+
+  // Ranged responses carry the object length in Content-Range, e.g. "bytes 0-9/100"
+  private static long objectLength(GetObjectResponse response) {
+    val contentRange = response.contentRange();
+    if (contentRange == null) return response.contentLength();
+    return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+  }
+
+  public record StoredObject(String contentType, long length, Flux<ByteBuffer> content) {}
+}
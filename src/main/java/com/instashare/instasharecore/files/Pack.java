@@ -0,0 +1,32 @@
+package com.instashare.instasharecore.files;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * S3 object holding the content of many small files back to back, see PackStore. Files point into
+ * it with {@link File#getPackId()} and {@link File#getPackOffset()}.
+ */
+@Document(value = "packs")
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+public class Pack {
+  private @Id String id;
+
+  private String storageKey;
+  private long size;
+
+  // Bytes no file points at anymore, an estimate the compactor checks against the live files
+  private long garbageBytes;
+
+  private Instant createdAt;
+
+  // Set once the live content was moved to other packs, the object is deleted after a grace period
+  private Instant retiredAt;
+}
@@ -0,0 +1,177 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.FixedDelayTask;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Rewrites packs that are mostly garbage, moving their live files into new packs, and deletes the
+ * packs retired that way once no download can still be reading them. Runs on one node at a time.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PackCompactor implements SchedulingConfigurer {
+
+  private final StorageConfigurationProperties storageConfig;
+
+  private final PackStore packStore;
+
+  private final PackRepository packRepository;
+
+  private final FileRepository fileRepository;
+
+  private final ReactiveMongoTemplate mongoTemplate;
+
+  private final JobLeases jobLeases;
+
+  @Override
+  public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+    val interval = storageConfig.getPackCompactionInterval().toMillis();
+    taskRegistrar.addFixedDelayTask(new FixedDelayTask(this::compact, interval, interval));
+  }
+
+  // Nodes compacting the same packs at once would copy their files twice
+  public void compact() {
+    jobLeases
+        .runExclusively("pack-compactor", storageConfig.getPackCompactionInterval(), compactPacks())
+        .blockOptional()
+        .ifPresent(
+            result ->
+                log.info(
+                    "Compacted {} packs, moved {} files, deleted {} retired packs.",
+                    result.rewritten(),
+                    result.moved(),
+                    result.deleted()));
+  }
+
+  public Mono<CompactResult> compactPacks() {
+    val rewrites =
+        packRepository
+            .findAllByRetiredAtIsNullAndGarbageBytesGreaterThan(0)
+            .filter(pack -> pack.getGarbageBytes() >= garbageLimit(pack))
+            .concatMap(this::rewrite);
+    val deletions =
+        packRepository
+            .findAllByRetiredAtBefore(Instant.now().minus(storageConfig.getPackRetention()))
+            .concatMap(this::deleteRetired);
+    return rewrites.concatWith(deletions).reduce(CompactResult.NONE, CompactResult::plus);
+  }
+
+  private double garbageLimit(Pack pack) {
+    return storageConfig.getPackGarbageRatio() * pack.getSize();
+  }
+
+  private Mono<CompactResult> rewrite(Pack pack) {
+    return fileRepository
+        .findAllByPackId(pack.getId())
+        .collectList()
+        .flatMap(
+            files -> {
+              // The garbage counter is an estimate, the live files are the truth
+              val live = files.stream().mapToLong(File::getStoredLength).sum();
+              val garbage = pack.getSize() - live;
+              if (garbage < garbageLimit(pack)) {
+                return mongoTemplate
+                    .updateFirst(
+                        query(where("_id").is(pack.getId())),
+                        new Update().set("garbageBytes", garbage),
+                        Pack.class)
+                    .thenReturn(CompactResult.NONE);
+              }
+              if (files.isEmpty()) {
+                return packStore.retire(pack).thenReturn(new CompactResult(1, 0, 0));
+              }
+              return packStore
+                  .readAll(pack)
+                  .flatMapMany(content -> moveFiles(pack, files, content))
+                  .reduce(0L, (moved, one) -> moved + one)
+                  .flatMap(
+                      moved -> packStore.retire(pack).thenReturn(new CompactResult(1, moved, 0)));
+            })
+        .onErrorResume(
+            error -> {
+              log.warn("Unable to compact pack: {}.", pack.getId(), error);
+              return Mono.just(CompactResult.NONE);
+            });
+  }
+
+  private Flux<Long> moveFiles(Pack pack, List<File> files, byte[] content) {
+    return Flux.fromIterable(files)
+        .flatMap(
+            file -> {
+              val offset = file.getPackOffset().intValue();
+              val data = Arrays.copyOfRange(content, offset, offset + (int) file.getStoredLength());
+              return packStore.append(data).flatMap(location -> relocate(pack, file, location));
+            });
+  }
+
+  // Only moves files still pointing at the old location
+  private Mono<Long> relocate(Pack pack, File file, PackStore.Location location) {
+    return mongoTemplate
+        .updateFirst(
+            query(
+                where("_id")
+                    .is(file.getId())
+                    .and("packId")
+                    .is(pack.getId())
+                    .and("packOffset")
+                    .is(file.getPackOffset())),
+            new Update().set("packId", location.packId()).set("packOffset", location.offset()),
+            File.class)
+        .flatMap(
+            result -> {
+              if (result.getModifiedCount() > 0) return Mono.just(1L);
+              return packStore.addGarbage(location.packId(), location.length()).thenReturn(0L);
+            });
+  }
+
+  private Mono<CompactResult> deleteRetired(Pack pack) {
+    return fileRepository
+        .findAllByPackId(pack.getId())
+        .hasElements()
+        .flatMap(
+            referenced -> {
+              if (referenced) {
+                // Some file could not be moved, keep the pack until a later run moves it
+                return mongoTemplate
+                    .updateFirst(
+                        query(where("_id").is(pack.getId())),
+                        new Update().unset("retiredAt"),
+                        Pack.class)
+                    .thenReturn(CompactResult.NONE);
+              }
+              return packStore.delete(pack).thenReturn(new CompactResult(0, 0, 1));
+            })
+        .onErrorResume(
+            error -> {
+              log.warn("Unable to delete pack: {}.", pack.getId(), error);
+              return Mono.just(CompactResult.NONE);
+            });
+  }
+
+  public record CompactResult(long rewritten, long moved, long deleted) {
+    static final CompactResult NONE = new CompactResult(0, 0, 0);
+
+    CompactResult plus(CompactResult other) {
+      return new CompactResult(
+          rewritten + other.rewritten, moved + other.moved, deleted + other.deleted);
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package com.instashare.instasharecore.files;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
+
+import java.time.Instant;
+
+public interface PackRepository extends ReactiveMongoRepository<Pack, String> {
+
+  Flux<Pack> findAllByRetiredAtIsNullAndGarbageBytesGreaterThan(long garbageBytes);
+
+  Flux<Pack> findAllByRetiredAtBefore(Instant retiredAt);
+}
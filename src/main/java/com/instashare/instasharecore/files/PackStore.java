@@ -0,0 +1,211 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.files.exceptions.UploadFailedException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Packs the content of small files into shared S3 objects. Appends from concurrent uploads are
+ * grouped and written with a single PutObject once the pack is full or its first file waited long
+ * enough, and files are read back with ranged GETs.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PackStore {
+
+  static final String KEY_PREFIX = "packs/";
+
+  private final S3AsyncClient s3Client;
+
+  private final S3ClientConfigurationProperties s3Config;
+
+  private final StorageConfigurationProperties storageConfig;
+
+  private final ReactiveMongoTemplate mongoTemplate;
+
+  private final PackRepository packRepository;
+
+  private final UploadThrottle uploadThrottle;
+
+  private final ObjectReader objectReader;
+
+  private final ObjectCache objectCache;
+
+  // Pack being filled, guarded by this
+  private OpenPack open;
+
+  /** Emits where {@code data} was stored once the pack holding it is written. */
+  public Mono<Location> append(byte[] data) {
+    return append(data, () -> {});
+  }
+
+  /**
+   * Same as {@link #append(byte[])}, running {@code written} once the PutObject of the pack ended.
+   * It runs even when the append was cancelled, the pack holds the bytes until then.
+   */
+  public Mono<Location> append(byte[] data, Runnable written) {
+    return Mono.create(
+        sink -> {
+          val entry = new Entry(data, sink, written);
+          sink.onCancel(() -> entry.cancelled = true);
+          OpenPack created = null;
+          OpenPack full = null;
+          synchronized (this) {
+            if (open == null) {
+              open = new OpenPack();
+              created = open;
+            }
+            open.add(entry);
+            if (open.size >= storageConfig.getPackTargetSize()) {
+              full = open;
+              open = null;
+            }
+          }
+          if (full != null) {
+            write(full);
+          } else if (created != null) {
+            val pending = created;
+            Mono.delay(storageConfig.getPackMaxDelay()).subscribe(tick -> writeIfOpen(pending));
+          }
+        });
+  }
+
+  private void writeIfOpen(OpenPack pack) {
+    synchronized (this) {
+      if (open != pack) return;
+      open = null;
+    }
+    write(pack);
+  }
+
+  private void write(OpenPack pack) {
+    val id = UUID.randomUUID().toString();
+    val storageKey = KEY_PREFIX + id;
+    val request =
+        PutObjectRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(storageKey)
+            .contentLength(pack.size)
+            .build();
+    val content = Flux.fromIterable(pack.entries).map(entry -> ByteBuffer.wrap(entry.data));
+    uploadThrottle
+        .withPartSlot(
+            Mono.fromFuture(
+                () -> s3Client.putObject(request, AsyncRequestBody.fromPublisher(content))))
+        .flatMap(
+            response -> {
+              val httpResponse = response.sdkHttpResponse();
+              if (httpResponse == null || !httpResponse.isSuccessful()) {
+                return Mono.error(new UploadFailedException(response));
+              }
+              // Entries whose upload was cancelled meanwhile are garbage from the start
+              val garbage =
+                  pack.entries.stream()
+                      .filter(entry -> entry.cancelled)
+                      .mapToLong(entry -> entry.data.length)
+                      .sum();
+              return packRepository.save(
+                  new Pack(id, storageKey, pack.size, garbage, Instant.now(), null));
+            })
+        .subscribe(
+            saved -> {
+              log.debug("Pack: {} written with {} files.", id, pack.entries.size());
+              // Before the appends complete, their callers see the bytes released
+              pack.entries.forEach(entry -> entry.written.run());
+              pack.entries.forEach(
+                  entry -> entry.sink.success(new Location(id, entry.offset, entry.data.length)));
+            },
+            error -> {
+              log.error("Unable to write pack: {}.", id, error);
+              pack.entries.forEach(entry -> entry.written.run());
+              pack.entries.forEach(entry -> entry.sink.error(error));
+            });
+  }
+
+  /** Streams {@code length} bytes of a pack starting at {@code offset}. */
+  public Flux<ByteBuffer> read(String packId, long offset, long length) {
+    return objectReader.read(KEY_PREFIX + packId, offset, length);
+  }
+
+  /** Reads a whole pack, packs are small enough to be held in memory. */
+  public Mono<byte[]> readAll(Pack pack) {
+    val request =
+        GetObjectRequest.builder().bucket(s3Config.getBucket()).key(pack.getStorageKey()).build();
+    return Mono.fromFuture(() -> s3Client.getObject(request, AsyncResponseTransformer.toBytes()))
+        .map(response -> response.asByteArray());
+  }
+
+  /** Records that a file stopped pointing at {@code length} bytes of a pack. */
+  public Mono<Void> addGarbage(String packId, long length) {
+    return mongoTemplate
+        .updateFirst(
+            query(where("_id").is(packId)), new Update().inc("garbageBytes", length), Pack.class)
+        .then();
+  }
+
+  public Mono<Void> retire(Pack pack) {
+    return mongoTemplate
+        .updateFirst(
+            query(where("_id").is(pack.getId())),
+            new Update().set("retiredAt", Instant.now()),
+            Pack.class)
+        .then();
+  }
+
+  public Mono<Void> delete(Pack pack) {
+    objectCache.invalidate(pack.getStorageKey());
+    val request =
+        DeleteObjectRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(pack.getStorageKey())
+            .build();
+    return Mono.fromFuture(() -> s3Client.deleteObject(request)).then(packRepository.delete(pack));
+  }
+
+  public record Location(String packId, long offset, long length) {}
+
+  private static class OpenPack {
+    final List<Entry> entries = new ArrayList<>();
+    long size;
+
+    void add(Entry entry) {
+      entry.offset = size;
+      entries.add(entry);
+      size += entry.data.length;
+    }
+  }
+
+  @RequiredArgsConstructor
+  private static class Entry {
+    final byte[] data;
+    final MonoSink<Location> sink;
+    final Runnable written;
+    long offset;
+    volatile boolean cancelled;
+  }
+}
@@ -0,0 +1,75 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.files.util.PartSizing;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Picks the part size of each multipart upload.
+ *
+ * <p>Parts are sized so that one takes about {@code multipartTargetPartDuration} at the throughput
+ * observed for recent parts: small enough to keep the per-upload window busy and to make retries
+ * cheap, large enough to amortize the per-request latency. The S3 part count limit always wins.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PartSizeAdvisor {
+
+  private static final long MB = 1024 * 1024;
+
+  // Weight of the newest observation in the moving average
+  private static final double ALPHA = 0.2;
+
+  private final S3ClientConfigurationProperties s3Config;
+
+  // Bytes per second of a single part upload, 0 until the first part completes
+  private volatile double throughput;
+
+  private static long roundUpToMb(long size) {
+    return (size + MB - 1) / MB * MB;
+  }
+
+  /**
+   * @param declaredSize size of the content, or a negative value when unknown
+   */
+  public PartSizing sizingFor(long declaredSize) {
+    val minPartSize = (long) s3Config.getMultipartMinPartSize();
+    val maxPartSize = Math.max(minPartSize, s3Config.getMultipartMaxPartSize());
+    long partSize =
+        throughput == 0
+            ? minPartSize
+            : (long) (throughput * s3Config.getMultipartTargetPartDuration().toMillis() / 1000);
+    partSize = Math.max(minPartSize, Math.min(maxPartSize, partSize));
+
+    if (declaredSize < 0) {
+      // Parts are buffered in heap, the parts in flight of one upload and the one being read must
+      // fit the node's buffer budget
+      val growthLimit =
+          s3Config.getMultipartMaxBufferedBytes() / (s3Config.getMultipartPartConcurrency() + 1);
+      return new PartSizing(
+          roundUpToMb(partSize), true, Math.min(PartSizing.MAX_PART_SIZE, growthLimit / MB * MB));
+    }
+
+    // Keep every slot of the window busy, there is no point in parts nobody uploads in parallel
+    val spread =
+        (declaredSize + s3Config.getMultipartPartConcurrency() - 1)
+            / s3Config.getMultipartPartConcurrency();
+    partSize = Math.max(minPartSize, Math.min(partSize, spread));
+    partSize = Math.max(partSize, (declaredSize + PartSizing.MAX_PARTS - 1) / PartSizing.MAX_PARTS);
+    return new PartSizing(Math.min(roundUpToMb(partSize), PartSizing.MAX_PART_SIZE));
+  }
+
+  public void recordPart(long bytes, Duration elapsed) {
+    if (bytes < MB || elapsed.isZero()) return;
+    val observed = bytes * 1000.0 / Math.max(1, elapsed.toMillis());
+    val current = throughput;
+    throughput = current == 0 ? observed : ALPHA * observed + (1 - ALPHA) * current;
+    log.trace("Part throughput: observed={} B/s, average={} B/s", observed, throughput);
+  }
+}
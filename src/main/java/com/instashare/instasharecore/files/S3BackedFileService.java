@@ -1,41 +1,79 @@
 package com.instashare.instasharecore.files;
 
+import com.instashare.instasharecore.config.CompressionConfigurationProperties;
 import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
 import com.instashare.instasharecore.events.DestinationInfo;
 import com.instashare.instasharecore.files.exceptions.DownloadFailedException;
 import com.instashare.instasharecore.files.exceptions.UploadFailedException;
+import com.instashare.instasharecore.files.util.ContentHash;
 import com.instashare.instasharecore.files.util.DownloadResult;
+import com.instashare.instasharecore.files.util.Gzip;
+import com.instashare.instasharecore.files.util.PartSizing;
 import com.instashare.instasharecore.files.util.SimpleUploadInfo;
+import com.instashare.instasharecore.files.util.UploadedParts;
+import com.instashare.instasharecore.files.util.ZipStream;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.springframework.amqp.core.AmqpTemplate;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.http.SdkHttpResponse;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 
+import java.net.URI;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.util.Optional.of;
 import static java.util.Optional.ofNullable;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class S3BackedFileService implements FileService {
 
+  private static final Duration PART_RETRY_BACKOFF = Duration.ofMillis(200);
+
+  private static final MediaType GZIP = MediaType.parseMediaType("application/gzip");
+
   private final S3AsyncClient s3Client;
 
   private final S3ClientConfigurationProperties s3Config;
@@ -46,21 +84,39 @@ public class S3BackedFileService implements FileService {
 
   private final DestinationInfo destinationInfo;
 
-  private static ByteBuffer concatBuffers(List<DataBuffer> buffers) {
-    log.debug("Creating ByteBuffer from {} chunks", buffers.size());
+  private final UploadThrottle uploadThrottle;
 
-    val partSize = buffers.stream().map(DataBuffer::readableByteCount).reduce(0, Integer::sum);
-    val partData = ByteBuffer.allocate(partSize);
-    buffers.forEach((buffer) -> partData.put(buffer.asByteBuffer()));
-    // Reset read pointer to first byte
-    partData.rewind();
+  private final PartSizeAdvisor partSizeAdvisor;
 
-    log.debug("PartData: size={}", partData.capacity());
-    return partData;
-  }
+  private final BlobIndex blobIndex;
+
+  private final ChunkStore chunkStore;
+
+  private final ReactiveMongoTemplate mongoTemplate;
+
+  private final CompressionConfigurationProperties compressionConfig;
+
+  private final StorageConfigurationProperties storageConfig;
+
+  private final FileContentRepository fileContentRepository;
+
+  private final PackStore packStore;
+
+  private final ObjectReader objectReader;
+
+  private final S3Presigner s3Presigner;
 
   @Override
   public Mono<File> uploadSimple(@NonNull SimpleUploadInfo simpleUploadInfo) {
+    val digest = ContentHash.newDigest();
+    val content =
+        Flux.defer(
+            () -> {
+              digest.reset();
+              return simpleUploadInfo
+                  .getContent()
+                  .doOnNext(buffer -> digest.update(buffer.duplicate()));
+            });
     val uploadFuture =
         s3Client.putObject(
             PutObjectRequest.builder()
@@ -69,7 +125,7 @@ public class S3BackedFileService implements FileService {
                 .contentType(simpleUploadInfo.getMediaType())
                 .key(simpleUploadInfo.getFileKey())
                 .build(),
-            AsyncRequestBody.fromPublisher(simpleUploadInfo.getContent()));
+            AsyncRequestBody.fromPublisher(content));
 
     return Mono.fromFuture(uploadFuture)
         .flatMap(
@@ -79,16 +135,20 @@ public class S3BackedFileService implements FileService {
                 return Mono.error(new UploadFailedException(response));
               }
               val file =
-                  new File(
-                      simpleUploadInfo.getFileKey(),
-                      simpleUploadInfo.getFileName(),
-                      simpleUploadInfo.getOwner(),
-                      FileStatus.RAW,
-                      simpleUploadInfo.getContentLength(),
-                      simpleUploadInfo.getMediaType());
+                  File.builder()
+                      .id(simpleUploadInfo.getFileKey())
+                      .fileName(simpleUploadInfo.getFileName())
+                      .owner(simpleUploadInfo.getOwner())
+                      .fileStatus(FileStatus.RAW)
+                      .size(simpleUploadInfo.getContentLength())
+                      .mimeType(simpleUploadInfo.getMediaType())
+                      .contentHash(ContentHash.hex(digest))
+                      .storageKey(simpleUploadInfo.getFileKey())
+                      .lastModified(Instant.now())
+                      .build();
               log.info(
                   "File with key: {} was successfully uploaded.", simpleUploadInfo.getFileKey());
-              return fileRepository.save(file);
+              return deduplicate(file).flatMap(fileRepository::save);
             })
         .doOnSuccess(
             file -> {
@@ -100,92 +160,776 @@ public class S3BackedFileService implements FileService {
 
   // This method does not require any temporary storage
   public Mono<File> uploadPart(FilePart filePart, String owner) {
+    return storePart(filePart, owner)
+        .flatMap(fileRepository::save)
+        .doOnSuccess(this::publishUploaded);
+  }
+
+  @Override
+  public Mono<UploadedParts> uploadParts(List<FilePart> fileParts, String owner, boolean compress) {
+    return fileRepository
+        .findAllByOwnerAndFileNameIn(owner, namesWithVariants(fileParts, FilePart::filename))
+        .map(File::getFileName)
+        .collect(Collectors.toSet())
+        .flatMap(
+            namesInUse -> {
+              // Later parts with the name of an earlier one would fail the unique index
+              val accepted = new LinkedHashMap<String, FilePart>();
+              for (val filePart : fileParts) {
+                val name = filePart.filename();
+                if (namesInUse.contains(name) || namesInUse.contains(name + ".gz")) continue;
+                accepted.putIfAbsent(name, filePart);
+              }
+              // A failed part does not drop the others, it is reported with the saved files
+              val failure = new AtomicReference<Throwable>();
+              val partNames = new ConcurrentHashMap<String, String>();
+              return Flux.fromIterable(accepted.values())
+                  .flatMap(
+                      filePart ->
+                          (compress
+                                  ? storePartCompressed(filePart, owner)
+                                  : storePart(filePart, owner))
+                              .doOnNext(file -> partNames.put(file.getId(), filePart.filename()))
+                              .onErrorResume(
+                                  error -> {
+                                    if (!failure.compareAndSet(null, error))
+                                      failure.get().addSuppressed(error);
+                                    return Mono.empty();
+                                  }))
+                  .collectList()
+                  .filter(files -> !files.isEmpty())
+                  .flatMapMany(this::insertAll)
+                  .doOnNext(this::publishUploaded)
+                  .collectList()
+                  .flatMap(
+                      files -> {
+                        // Nothing was saved, so no file is lost by failing the whole request
+                        if (files.isEmpty() && failure.get() != null)
+                          return Mono.error(failure.get());
+                        // Parts that failed to store or to insert
+                        val saved =
+                            files.stream()
+                                .map(file -> partNames.get(file.getId()))
+                                .collect(Collectors.toSet());
+                        val failed =
+                            accepted.keySet().stream()
+                                .filter(name -> !saved.contains(name))
+                                .toList();
+                        return Mono.just(new UploadedParts(files, failed));
+                      });
+            });
+  }
+
+  // One bulk insert for the metadata of the whole request. When it fails, the files it did not
+  // insert are saved one by one, and the content of files that still fail, such as files whose
+  // name was taken by a concurrent request, is released.
+  private Flux<File> insertAll(List<File> files) {
+    return fileRepository
+        .insert(files)
+        .onErrorResume(
+            error -> {
+              log.warn(
+                  "Bulk insert of {} files failed, saving them one by one.", files.size(), error);
+              return Flux.fromIterable(files)
+                  .concatMap(
+                      file ->
+                          fileRepository
+                              .existsById(file.getId())
+                              .flatMap(
+                                  inserted ->
+                                      inserted
+                                          ? Mono.just(file)
+                                          : fileRepository
+                                              .insert(file)
+                                              .onErrorResume(
+                                                  insertError -> {
+                                                    log.warn(
+                                                        "Unable to save file with key: {}.",
+                                                        file.getId(),
+                                                        insertError);
+                                                    return releaseContent(file).then(Mono.empty());
+                                                  })));
+            });
+  }
+
+  // The stored names a file name conflicts with, compressed files get a .gz suffix
+  private <T> List<String> namesWithVariants(List<T> items, Function<T, String> name) {
+    return items.stream()
+        .map(name)
+        .flatMap(fileName -> Stream.of(fileName, fileName + ".gz"))
+        .distinct()
+        .toList();
+  }
 
+  private Mono<File> storePart(FilePart filePart, String owner) {
     val fileKey = UUID.randomUUID().toString();
     val filename = of(filePart.filename()).orElse(fileKey);
-    val metadata = Map.of("filename", filename);
     val mediaType =
         ofNullable(filePart.headers().getContentType()).orElse(MediaType.APPLICATION_OCTET_STREAM);
+    return storeStream(
+        fileKey,
+        filename,
+        owner,
+        mediaType,
+        filePart.headers().getContentLength(),
+        filePart.content());
+  }
 
-    // Create multipart upload request
-    val uploadRequest =
-        s3Client.createMultipartUpload(
-            CreateMultipartUploadRequest.builder()
-                .contentType(mediaType.toString())
-                .key(fileKey)
-                .metadata(metadata)
-                .bucket(s3Config.getBucket())
-                .build());
+  private Mono<File> storePartCompressed(FilePart filePart, String owner) {
+    val fileKey = UUID.randomUUID().toString();
+    val filename = of(filePart.filename()).orElse(fileKey);
+    val mediaType =
+        ofNullable(filePart.headers().getContentType()).orElse(MediaType.APPLICATION_OCTET_STREAM);
+    if (!compressible(mediaType)) return storePartAsIs(filePart, owner);
+    return storeCompressed(fileKey, filename, owner, mediaType, filePart.content());
+  }
+
+  private Mono<File> storePartAsIs(FilePart filePart, String owner) {
+    return storePart(filePart, owner)
+        .map(file -> file.toBuilder().fileStatus(FileStatus.STORED).build());
+  }
+
+  @Override
+  public Mono<File> uploadCompressed(@NonNull SimpleUploadInfo simpleUploadInfo) {
+    val mediaType = MediaType.parseMediaType(simpleUploadInfo.getMediaType());
+    Mono<File> stored;
+    if (compressible(mediaType)) {
+      stored =
+          storeCompressed(
+              simpleUploadInfo.getFileKey(),
+              simpleUploadInfo.getFileName(),
+              simpleUploadInfo.getOwner(),
+              mediaType,
+              simpleUploadInfo
+                  .getContent()
+                  .<DataBuffer>map(DefaultDataBufferFactory.sharedInstance::wrap));
+    } else {
+      stored =
+          storeStream(
+                  simpleUploadInfo.getFileKey(),
+                  simpleUploadInfo.getFileName(),
+                  simpleUploadInfo.getOwner(),
+                  mediaType,
+                  simpleUploadInfo.getContentLength(),
+                  simpleUploadInfo
+                      .getContent()
+                      .<DataBuffer>map(DefaultDataBufferFactory.sharedInstance::wrap))
+              .map(file -> file.toBuilder().fileStatus(FileStatus.STORED).build());
+    }
+    return stored.flatMap(fileRepository::save);
+  }
+
+  // Bytes cross the network once, instead of being stored raw and rewritten by the worker
+  private Mono<File> storeCompressed(
+      String fileKey,
+      String filename,
+      String owner,
+      MediaType mediaType,
+      Flux<DataBuffer> content) {
+    val originalSize = new AtomicLong();
+    // The uploaded bytes are hashed too, createFromHash matches what clients hash
+    val digest = ContentHash.newDigest();
+    // Deflated straight from the received buffers, each one is released once the deflater is done
+    // with it. Buffers still queued are released by the discard hook of storeStream.
+    val compressed =
+        Gzip.compress(
+                content.doOnNext(
+                    buffer -> {
+                      originalSize.addAndGet(buffer.readableByteCount());
+                      digest.update(buffer.asByteBuffer());
+                    }),
+                DataBuffer::asByteBuffer,
+                DataBufferUtils::release,
+                compressionConfig.getLevel())
+            .<DataBuffer>map(DefaultDataBufferFactory.sharedInstance::wrap);
+    return storeStream(fileKey, filename + ".gz", owner, GZIP, -1, compressed)
+        .map(
+            file ->
+                file.toBuilder()
+                    .fileStatus(FileStatus.COMPRESSED)
+                    .mimeType(mediaType.toString())
+                    .size(originalSize.get())
+                    .contentHash(ContentHash.hex(digest))
+                    .storedHash(file.getBlobHash())
+                    .storedSize(file.getSize())
+                    .contentEncoding("gzip")
+                    .build());
+  }
+
+  private boolean compressible(MediaType mediaType) {
+    return compressionConfig.getIncompressibleTypes().stream()
+        .noneMatch(type -> type.includes(mediaType));
+  }
+
+  private void publishUploaded(File file) {
+    // Publish file uploaded event, only RAW files wait for the compression worker
+    if (file != null && file.getFileStatus() == FileStatus.RAW)
+      amqpTemplate.convertAndSend(
+          destinationInfo.exchange(), destinationInfo.routingKey(), file.getId());
+  }
+
+  @Override
+  public Mono<File> upload(@NonNull SimpleUploadInfo simpleUploadInfo) {
+    val length = simpleUploadInfo.getContentLength();
+    if (length >= 0
+        && length >= smallFileThreshold()
+        && length <= s3Config.getMultipartUploadThreshold()) {
+      return uploadSimple(simpleUploadInfo);
+    }
+    // Unknown, small or large length: switch to the streaming engine, which stores small content
+    // inline or packed and large content with parallel, retryable parts
+    log.debug(
+        "Streaming upload of file with key: {}, length: {}", simpleUploadInfo.getFileKey(), length);
+    val content =
+        simpleUploadInfo
+            .getContent()
+            .<DataBuffer>map(DefaultDataBufferFactory.sharedInstance::wrap);
+    return uploadStream(
+        simpleUploadInfo.getFileKey(),
+        simpleUploadInfo.getFileName(),
+        simpleUploadInfo.getOwner(),
+        MediaType.parseMediaType(simpleUploadInfo.getMediaType()),
+        length,
+        content);
+  }
+
+  @Override
+  public Mono<File> uploadChunked(@NonNull SimpleUploadInfo simpleUploadInfo) {
+    val digest = ContentHash.newDigest();
+    val content =
+        simpleUploadInfo
+            .getContent()
+            .doOnNext(buffer -> digest.update(buffer.duplicate()))
+            .<DataBuffer>map(DefaultDataBufferFactory.sharedInstance::wrap);
+    return chunkStore
+        .store(simpleUploadInfo.getOwner(), content)
+        .flatMap(
+            chunks -> {
+              val file =
+                  chunkedFile(
+                          simpleUploadInfo.getFileKey(),
+                          simpleUploadInfo.getFileName(),
+                          simpleUploadInfo.getOwner(),
+                          simpleUploadInfo.getMediaType(),
+                          chunks)
+                      .contentHash(ContentHash.hex(digest))
+                      .build();
+              log.info(
+                  "File with key: {} was successfully uploaded in {} chunks.",
+                  file.getId(),
+                  chunks.size());
+              return saveChunked(file);
+            });
+  }
+
+  @Override
+  public Mono<File> createChunked(
+      String owner, String fileName, String mimeType, List<String> chunks) {
+    val distinct = new HashSet<>(chunks);
+    // Only chunks the owner sent, a hash alone gives no access to chunks of other users
+    return chunkStore
+        .findOwned(owner, distinct)
+        .filter(blobs -> blobs.size() == distinct.size())
+        .flatMap(
+            blobs ->
+                chunkStore
+                    .addReferences(chunks)
+                    .filter(Boolean::booleanValue)
+                    .flatMap(
+                        referenced -> {
+                          val file =
+                              chunkedFile(
+                                      UUID.randomUUID().toString(),
+                                      fileName,
+                                      owner,
+                                      mimeType,
+                                      chunks.stream().map(blobs::get).toList())
+                                  .build();
+                          log.info(
+                              "File with key: {} created from {} stored chunks.",
+                              file.getId(),
+                              chunks.size());
+                          return saveChunked(file);
+                        }));
+  }
+
+  private Mono<File> saveChunked(File file) {
+    return fileRepository
+        .save(file)
+        .onErrorResume(error -> chunkStore.release(file.getChunks()).then(Mono.error(error)));
+  }
+
+  // Chunked files are not compressed afterwards, so no uploaded event is published for them
+  private File.FileBuilder chunkedFile(
+      String fileKey, String fileName, String owner, String mimeType, List<Blob> chunks) {
+    return File.builder()
+        .id(fileKey)
+        .fileName(fileName)
+        .owner(owner)
+        .fileStatus(FileStatus.STORED)
+        .size(chunks.stream().mapToLong(Blob::getSize).sum())
+        .mimeType(mimeType)
+        .storageMode(StorageMode.CHUNKED)
+        .chunks(chunks.stream().map(Blob::getId).toList())
+        .lastModified(Instant.now());
+  }
+
+  private Mono<File> uploadStream(
+      String fileKey,
+      String filename,
+      String owner,
+      MediaType mediaType,
+      long declaredSize,
+      Flux<DataBuffer> content) {
+    return storeStream(fileKey, filename, owner, mediaType, declaredSize, content)
+        .flatMap(fileRepository::save)
+        .doOnSuccess(this::publishUploaded);
+  }
+
+  // Uploads the content and returns its metadata, which the caller still has to save
+  private Mono<File> storeStream(
+      String fileKey,
+      String filename,
+      String owner,
+      MediaType mediaType,
+      long declaredSize,
+      Flux<DataBuffer> content) {
+    val metadata = Map.of("filename", filename);
 
     // Will hold the upload state
-    val uploadState = new UploadState(s3Config.getBucket(), fileKey);
+    val uploadState =
+        new UploadState(s3Config.getBucket(), fileKey, partSizeAdvisor.sizingFor(declaredSize));
 
-    return Mono.fromFuture(uploadRequest)
-        .flatMapMany(
-            response -> {
-              if (transmissionFailed(response.sdkHttpResponse())) {
-                return Mono.error(new UploadFailedException(response));
-              }
-              uploadState.uploadId = response.uploadId();
-              log.debug("UploadId: {}", response.uploadId());
-              return filePart.content();
-            })
+    return content
+        // Hashed here, before parts are uploaded concurrently and possibly more than once
+        .doOnNext(buffer -> uploadState.digest.update(buffer.asByteBuffer()))
+        // Buffer space is reserved before a buffer is passed on, so nothing more is read from the
+        // client while the node is out of space. The reservation of a part grows as it is read,
+        // doubling up to the part size, so small uploads only hold what they buffer.
+        .concatMap(
+            buffer -> {
+              val partSize = uploadState.sizing.sizeOfPart(uploadState.closedParts + 1);
+              val reservation = uploadState.partReservation.get();
+              val reserved = reservation == null ? 0 : reservation.getBytes();
+              val needed = uploadState.buffered + buffer.readableByteCount() - reserved;
+              if (needed <= 0) return Mono.just(buffer);
+              // The last buffer of a part may end past the part size
+              val step = Math.max(needed, Math.min(reserved, partSize - reserved));
+              return (reservation == null
+                      ? uploadThrottle
+                          .reserveBuffer(step)
+                          .doOnNext(uploadState.partReservation::set)
+                      : reservation.grow(step))
+                  .thenReturn(buffer)
+                  // The buffer was taken from the queue, so it is not discarded by concatMap
+                  .doOnError(error -> DataBufferUtils.release(buffer))
+                  .doOnCancel(() -> DataBufferUtils.release(buffer));
+            },
+            1)
         .bufferUntil(
             buffer -> {
               uploadState.buffered += buffer.readableByteCount();
-              if (uploadState.buffered >= s3Config.getMultipartMinPartSize()) {
+              if (uploadState.buffered
+                  >= uploadState.sizing.sizeOfPart(uploadState.closedParts + 1)) {
                 uploadState.buffered = 0;
+                uploadState.closedParts++;
                 return true;
               }
               return false;
             })
-        .map(S3BackedFileService::concatBuffers)
-        .flatMap(buffer -> uploadPart(uploadState, buffer))
-        .onBackpressureBuffer()
-        .reduce(
-            uploadState,
-            (state, completedPart) -> {
-              state.completedParts.put(completedPart.partNumber(), completedPart);
-              return state;
+        // Part numbers follow the byte order of the stream, so they are assigned before the
+        // parts are handed to the concurrent stage
+        .map(
+            buffers ->
+                new PendingPart(
+                    uploadState.partCounter.incrementAndGet(),
+                    buffers,
+                    uploadState.partReservation.getAndSet(null)))
+        .doOnNext(part -> uploadState.size.addAndGet(part.size()))
+        .switchOnFirst(
+            (first, parts) -> {
+              // A first part below the threshold can only be emitted when the content ended
+              if (first.hasValue() && first.get().size() >= uploadState.sizing.sizeOfPart(1)) {
+                return uploadMultipart(uploadState, mediaType, metadata, parts);
+              }
+              return putObject(uploadState, mediaType, metadata, parts);
             })
-        .flatMap(this::completeUpload)
+        // Buffers still queued when the upload is cancelled or fails
+        .doOnDiscard(PendingPart.class, PendingPart::release)
+        .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+        // Reservations of a part that never got complete
+        .doFinally(signal -> uploadState.releaseReservations())
+        .then(
+            Mono.defer(
+                () -> {
+                  val packed = uploadState.storageMode == StorageMode.PACKED;
+                  // Size comes from the bytes counted while streaming, no HEAD request needed
+                  val file =
+                      File.builder()
+                          .id(fileKey)
+                          .fileName(filename)
+                          .owner(owner)
+                          // Not worth compressing small files, and compressing a packed one
+                          // would only leave its bytes as garbage in the pack
+                          .fileStatus(
+                              uploadState.storageMode == StorageMode.OBJECT
+                                  ? FileStatus.RAW
+                                  : FileStatus.STORED)
+                          .size(uploadState.size.get())
+                          .mimeType(mediaType.toString())
+                          .partSize(uploadState.multipart ? uploadState.sizing.partSize() : null)
+                          .contentHash(ContentHash.hex(uploadState.digest))
+                          .storageKey(fileKey)
+                          .storageMode(uploadState.storageMode)
+                          .packId(packed ? uploadState.packLocation.packId() : null)
+                          .packOffset(packed ? uploadState.packLocation.offset() : null)
+                          .lastModified(Instant.now())
+                          .build();
+                  log.info("File with key: {} was successfully uploaded.", fileKey);
+                  // Only whole objects are shared between files
+                  return uploadState.storageMode == StorageMode.OBJECT
+                      ? deduplicate(file)
+                      : Mono.just(file);
+                }));
+  }
+
+  // Small content fits in a single request, so the multipart round trips are skipped
+  private Mono<Void> putObject(
+      UploadState uploadState,
+      MediaType mediaType,
+      Map<String, String> metadata,
+      Flux<PendingPart> parts) {
+    // Only a part that ended the content can be smaller than the first part size, so there is at
+    // most one
+    return parts
+        .singleOrEmpty()
+        .defaultIfEmpty(new PendingPart(1, List.of(), null))
         .flatMap(
+            part -> {
+              if (part.size() < storageConfig.getInlineThreshold()) {
+                return storeInline(uploadState, part);
+              }
+              if (storageConfig.isPackingEnabled()
+                  && part.size() < storageConfig.getPackMaxFileSize()) {
+                return storePacked(uploadState, part);
+              }
+              return uploadThrottle
+                  .withPartSlot(
+                      Mono.fromFuture(
+                          () ->
+                              s3Client.putObject(
+                                  PutObjectRequest.builder()
+                                      .bucket(uploadState.bucket)
+                                      .key(uploadState.fileKey)
+                                      .contentType(mediaType.toString())
+                                      .contentLength(part.size())
+                                      .metadata(metadata)
+                                      .build(),
+                                  AsyncRequestBody.fromPublisher(part.content()))))
+                  .doFinally(signal -> part.release())
+                  .flatMap(
+                      response -> {
+                        if (transmissionFailed(response.sdkHttpResponse())) {
+                          log.error("Unable to upload file with key: {}.", uploadState.fileKey);
+                          return Mono.error(new UploadFailedException(response));
+                        }
+                        return Mono.empty();
+                      });
+            });
+  }
+
+  // Saves an S3 request on upload and on every download
+  private Mono<Void> storeInline(UploadState uploadState, PendingPart part) {
+    val data = part.copy();
+    uploadState.storageMode = StorageMode.INLINE;
+    return fileContentRepository
+        .save(new FileContent(uploadState.fileKey, data))
+        .doFinally(signal -> part.releaseReservation())
+        .then();
+  }
+
+  // One PutObject for many small files
+  private Mono<Void> storePacked(UploadState uploadState, PendingPart part) {
+    // The copy counts against the buffer space until the pack is written, also when the upload is
+    // cancelled meanwhile
+    return packStore
+        .append(part.copy(), part::releaseReservation)
+        .doOnNext(
+            location -> {
+              uploadState.packLocation = location;
+              uploadState.storageMode = StorageMode.PACKED;
+            })
+        .then();
+  }
+
+  private long smallFileThreshold() {
+    return storageConfig.isPackingEnabled()
+        ? storageConfig.getPackMaxFileSize()
+        : storageConfig.getInlineThreshold();
+  }
+
+  private Mono<Void> uploadMultipart(
+      UploadState uploadState,
+      MediaType mediaType,
+      Map<String, String> metadata,
+      Flux<PendingPart> parts) {
+    // Create multipart upload request
+    val uploadRequest =
+        CreateMultipartUploadRequest.builder()
+            .contentType(mediaType.toString())
+            .key(uploadState.fileKey)
+            .metadata(metadata)
+            .bucket(uploadState.bucket)
+            .build();
+
+    return Mono.fromFuture(() -> s3Client.createMultipartUpload(uploadRequest))
+        .flatMapMany(
             response -> {
               if (transmissionFailed(response.sdkHttpResponse())) {
                 return Mono.error(new UploadFailedException(response));
               }
-              val sizeRequest =
-                  s3Client.headObject(
-                      HeadObjectRequest.builder()
-                          .bucket(s3Config.getBucket())
-                          .key(fileKey)
-                          .build());
-              return Mono.fromFuture(sizeRequest);
+              uploadState.uploadId = response.uploadId();
+              uploadState.multipart = true;
+              log.debug(
+                  "UploadId: {}, part size: {}, growing: {}",
+                  response.uploadId(),
+                  uploadState.sizing.partSize(),
+                  uploadState.sizing.growing());
+              return parts;
             })
+        .flatMap(
+            part ->
+                uploadThrottle
+                    .withPartSlot(
+                        uploadPart(uploadState, part)
+                            .retryWhen(
+                                Retry.backoff(
+                                        s3Config.getMultipartPartRetries(), PART_RETRY_BACKOFF)
+                                    .doBeforeRetry(
+                                        retry ->
+                                            log.warn(
+                                                "Retrying part={} of file with key: {}",
+                                                part.partNumber(),
+                                                uploadState.fileKey))))
+                    .doFinally(signal -> part.release()),
+            s3Config.getMultipartPartConcurrency())
+        .doOnNext(
+            completedPart ->
+                uploadState.completedParts.put(completedPart.partNumber(), completedPart))
+        .then(Mono.defer(() -> completeUpload(uploadState)))
         .flatMap(
             response -> {
               if (transmissionFailed(response.sdkHttpResponse())) {
                 return Mono.error(new UploadFailedException(response));
               }
-              val file =
-                  new File(
-                      fileKey,
-                      filename,
-                      owner,
-                      FileStatus.RAW,
-                      response.contentLength(),
-                      mediaType.toString());
-              log.info("File with key: {} was successfully uploaded.", fileKey);
+              return Mono.<Void>empty();
+            })
+        // Parts of a failed upload are stored (and billed) until the upload is aborted
+        .onErrorResume(error -> abortUpload(uploadState).then(Mono.error(error)))
+        .doOnCancel(() -> abortUpload(uploadState).subscribe());
+  }
+
+  private Mono<Void> abortUpload(UploadState state) {
+    if (state.uploadId == null) return Mono.empty();
+    val request =
+        AbortMultipartUploadRequest.builder()
+            .bucket(state.bucket)
+            .key(state.fileKey)
+            .uploadId(state.uploadId)
+            .build();
+    return Mono.fromFuture(() -> s3Client.abortMultipartUpload(request))
+        .doOnSuccess(response -> log.info("Aborted upload of file with key: {}.", state.fileKey))
+        // The reaper picks up whatever could not be aborted here
+        .onErrorResume(
+            error -> {
+              log.warn("Unable to abort upload of file with key: {}.", state.fileKey, error);
+              return Mono.empty();
+            })
+        .then();
+  }
+
+  // Points the file at the stored copy when its content is already known
+  private Mono<File> deduplicate(File file) {
+    return blobIndex
+        .register(file.getBlobHash(), file.getStorageKey(), file.getSize())
+        .map(
+            blob -> {
+              file.setStorageKey(blob.getStorageKey());
+              return file;
+            });
+  }
+
+  @Override
+  public Mono<File> createFromHash(
+      String owner, String fileName, String contentHash, String mimeType) {
+    // A hash alone is no proof of having the content, so only the owner's own content is shared.
+    // Other users' identical uploads are still deduplicated once their bytes were hashed.
+    return fileRepository
+        .findAllByOwnerAndContentHash(owner, contentHash)
+        // Only whole objects are shared between files
+        .filter(source -> source.getStorageMode() == StorageMode.OBJECT)
+        .concatMap(
+            source ->
+                blobIndex
+                    .addReference(source.getBlobHash())
+                    .map(blob -> fromStoredContent(source, blob, fileName, mimeType)))
+        .next()
+        .flatMap(
+            file -> {
+              log.info(
+                  "File with key: {} created from stored content: {}.",
+                  file.getId(),
+                  file.getStorageKey());
               return fileRepository.save(file);
             })
         .doOnSuccess(
             file -> {
               // Publish file uploaded event
-              amqpTemplate.convertAndSend(
-                  destinationInfo.exchange(), destinationInfo.routingKey(), file.getId());
+              if (file != null)
+                amqpTemplate.convertAndSend(
+                    destinationInfo.exchange(), destinationInfo.routingKey(), file.getId());
             });
   }
 
+  // A new file with the stored content of source, compressed content stays compressed
+  private static File fromStoredContent(File source, Blob blob, String fileName, String mimeType) {
+    return File.builder()
+        .id(UUID.randomUUID().toString())
+        .fileName(fileName)
+        .owner(source.getOwner())
+        .fileStatus(
+            source.getFileStatus() == FileStatus.COMPRESSED
+                ? FileStatus.COMPRESSED
+                : FileStatus.RAW)
+        .size(source.getSize())
+        .mimeType(mimeType)
+        .contentHash(source.getContentHash())
+        .storedHash(source.getStoredHash())
+        .storageKey(blob.getStorageKey())
+        .storedSize(source.getStoredSize())
+        .contentEncoding(source.getContentEncoding())
+        .lastModified(Instant.now())
+        .build();
+  }
+
+  @Override
+  public Mono<File> compress(String fileKey) {
+    return fileRepository
+        .findById(fileKey)
+        .filter(
+            file ->
+                file.getFileStatus() == FileStatus.RAW
+                    && file.getStorageMode() != StorageMode.CHUNKED)
+        .flatMap(
+            file -> {
+              // Small files stored RAW before they were skipped are marked like incompressible ones
+              if (file.getStorageMode() != StorageMode.OBJECT
+                  || !compressible(MediaType.parseMediaType(file.getMimeType()))) {
+                return mongoTemplate.findAndModify(
+                    query(where("_id").is(file.getId()).and("fileStatus").is(FileStatus.RAW)),
+                    new Update().set("fileStatus", FileStatus.STORED),
+                    FindAndModifyOptions.options().returnNew(true),
+                    File.class);
+              }
+              // Read, compressed and written back part by part, the multipart engine takes care of
+              // the unknown compressed length
+              val content =
+                  Gzip.compress(readContent(file), compressionConfig.getLevel())
+                      .<DataBuffer>map(DefaultDataBufferFactory.sharedInstance::wrap);
+              return storeStream(
+                      UUID.randomUUID().toString(),
+                      file.getFileName() + ".gz",
+                      file.getOwner(),
+                      GZIP,
+                      -1,
+                      content)
+                  .flatMap(compressed -> markCompressed(file, compressed, true));
+            });
+  }
+
+  // The conditional update lets only one worker win when a file is compressed twice. A file renamed
+  // while it was compressed is updated again without the rename.
+  private Mono<File> markCompressed(File file, File compressed, boolean rename) {
+    val update =
+        new Update()
+            .set("fileStatus", FileStatus.COMPRESSED)
+            .set("storageKey", compressed.getStorageKey())
+            .set("storageMode", compressed.getStorageMode())
+            .set("packId", compressed.getPackId())
+            .set("packOffset", compressed.getPackOffset())
+            .set("storedSize", compressed.getSize())
+            // The file now references the compressed content, contentHash still identifies the
+            // uploaded bytes for createFromHash
+            .set("storedHash", compressed.getBlobHash())
+            .set("contentEncoding", "gzip")
+            .set("lastModified", Instant.now());
+    val query = query(where("_id").is(file.getId()).and("fileStatus").is(FileStatus.RAW));
+    if (rename) {
+      // Only the name read before compressing gets the suffix, a name given meanwhile is kept
+      query.addCriteria(where("fileName").is(file.getFileName()));
+      update.set("fileName", file.getFileName() + ".gz");
+    }
+    return mongoTemplate
+        .findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), File.class)
+        .flatMap(
+            updated -> {
+              log.info(
+                  "File with key: {} compressed from {} to {} bytes.",
+                  file.getId(),
+                  file.getSize(),
+                  compressed.getSize());
+              return releaseContent(file).thenReturn(updated);
+            })
+        .switchIfEmpty(
+            Mono.defer(
+                () ->
+                    rename
+                        ? markCompressed(file, compressed, false)
+                        : releaseContent(compressed).then(Mono.empty())))
+        // The owner already has a file with the .gz name
+        .onErrorResume(
+            DuplicateKeyException.class,
+            error -> rename ? markCompressed(file, compressed, false) : Mono.error(error));
+  }
+
+  // Drops what a file was pointing at once it points elsewhere
+  private Mono<Void> releaseContent(File file) {
+    return switch (file.getStorageMode()) {
+      case INLINE -> fileContentRepository.deleteById(file.getObjectKey());
+      case PACKED -> packStore.addGarbage(file.getPackId(), file.getStoredLength());
+      case CHUNKED -> Mono.empty();
+        // Content of files stored before deduplication is not shared
+      case OBJECT -> file.getBlobHash() != null
+          ? blobIndex.removeReference(file.getBlobHash())
+          : Mono.fromRunnable(() -> blobIndex.deleteObject(file.getObjectKey()));
+    };
+  }
+
+  @Override
+  public Flux<ByteBuffer> readRange(File file, long offset, long length) {
+    return switch (file.getStorageMode()) {
+      case INLINE -> fileContentRepository
+          .findById(file.getObjectKey())
+          .map(content -> ByteBuffer.wrap(content.getData(), (int) offset, (int) length).slice())
+          .flux();
+      case PACKED -> packStore.read(file.getPackId(), file.getPackOffset() + offset, length);
+      case CHUNKED -> chunkStore.read(file.getChunks(), offset, length);
+      case OBJECT -> objectReader.read(file.getObjectKey(), offset, length);
+    };
+  }
+
+  private Flux<ByteBuffer> readContent(File file) {
+    return switch (file.getStorageMode()) {
+      case INLINE -> fileContentRepository
+          .findById(file.getObjectKey())
+          .map(content -> ByteBuffer.wrap(content.getData()))
+          .flux();
+      case PACKED -> packStore.read(file.getPackId(), file.getPackOffset(), file.getStoredLength());
+      case CHUNKED -> chunkStore.read(file.getChunks());
+      case OBJECT -> objectReader.read(file.getObjectKey());
+    };
+  }
+
   @Override
   public Mono<Long> countByOwner(String name) {
     return fileRepository.countByOwner(name);
@@ -195,30 +939,43 @@ public class S3BackedFileService implements FileService {
     return httpResponse == null || !httpResponse.isSuccessful();
   }
 
-  private Mono<CompletedPart> uploadPart(UploadState uploadState, ByteBuffer buffer) {
-    val partNumber = ++uploadState.partCounter;
-    val request =
-        s3Client.uploadPart(
-            UploadPartRequest.builder()
-                .bucket(uploadState.bucket)
-                .key(uploadState.fileKey)
-                .partNumber(partNumber)
-                .uploadId(uploadState.uploadId)
-                .contentLength((long) buffer.capacity())
-                .build(),
-            AsyncRequestBody.fromPublisher(Mono.just(buffer)));
+  private Mono<CompletedPart> uploadPart(UploadState uploadState, PendingPart part) {
+    return Mono.defer(
+        () -> {
+          val started = System.nanoTime();
+          val request =
+              s3Client.uploadPart(
+                  UploadPartRequest.builder()
+                      .bucket(uploadState.bucket)
+                      .key(uploadState.fileKey)
+                      .partNumber(part.partNumber())
+                      .uploadId(uploadState.uploadId)
+                      .contentLength(part.size())
+                      .build(),
+                  AsyncRequestBody.fromPublisher(part.content()));
 
-    return Mono.fromFuture(request)
-        .map(
-            (response) -> {
-              val sdkHttpResponse = response.sdkHttpResponse();
-              if (sdkHttpResponse == null || !sdkHttpResponse.isSuccessful()) {
-                log.error("Unable to upload file with key: {}.", uploadState.fileKey);
-                throw new UploadFailedException(response);
-              }
-              log.info("[I230] uploadPart complete: part={}, etag={}", partNumber, response.eTag());
-              return CompletedPart.builder().eTag(response.eTag()).partNumber(partNumber).build();
-            });
+          return Mono.fromFuture(request)
+              .doOnSuccess(
+                  response ->
+                      partSizeAdvisor.recordPart(
+                          part.size(), Duration.ofNanos(System.nanoTime() - started)))
+              .map(
+                  (response) -> {
+                    val sdkHttpResponse = response.sdkHttpResponse();
+                    if (sdkHttpResponse == null || !sdkHttpResponse.isSuccessful()) {
+                      log.error("Unable to upload file with key: {}.", uploadState.fileKey);
+                      throw new UploadFailedException(response);
+                    }
+                    log.info(
+                        "[I230] uploadPart complete: part={}, etag={}",
+                        part.partNumber(),
+                        response.eTag());
+                    return CompletedPart.builder()
+                        .eTag(response.eTag())
+                        .partNumber(part.partNumber())
+                        .build();
+                  });
+        });
   }
 
   private Mono<CompleteMultipartUploadResponse> completeUpload(UploadState state) {
@@ -248,13 +1005,7 @@ public class S3BackedFileService implements FileService {
 
   @Override
   public Mono<Boolean> existsByOwnerAndFileName(String owner, String filename) {
-    return fileRepository
-        .existsByOwnerAndFileName(owner, filename)
-        .flatMap(
-            exists -> {
-              if (exists) return Mono.just(true);
-              else return fileRepository.existsByOwnerAndFileName(owner, filename + ".gz");
-            });
+    return fileRepository.existsByOwnerAndFileNameIn(owner, List.of(filename, filename + ".gz"));
   }
 
   @Override
@@ -263,24 +1014,146 @@ public class S3BackedFileService implements FileService {
   }
 
   @Override
-  public Mono<DownloadResult> download(@NonNull File file) {
-    val request = GetObjectRequest.builder().bucket(s3Config.getBucket()).key(file.getId()).build();
-    return Mono.fromFuture(s3Client.getObject(request, new FluxResponseProvider()))
+  public Mono<DownloadResult> download(@NonNull File file, boolean decode) {
+    return downloadStored(file)
         .map(
-            response -> {
-              val httpResponse = response.sdkResponse.sdkHttpResponse();
-              if (httpResponse == null || !httpResponse.isSuccessful()) {
-                throw new DownloadFailedException(response.sdkResponse);
-              }
-              return DownloadResult.builder()
-                  .contentType(response.sdkResponse.contentType())
-                  .contentLength(response.sdkResponse.contentLength())
-                  .contentDisposition("attachment; filename=\"" + file.getFileName() + "\"")
-                  .response(response.flux)
+            stored -> {
+              if (file.getContentEncoding() == null) return stored;
+              // Compressed files keep the type they were uploaded with
+              val result = stored.toBuilder().contentType(file.getMimeType());
+              if (!decode) return result.contentEncoding(file.getContentEncoding()).build();
+              return result
+                  .contentLength(file.getSize())
+                  .response(Gzip.decompress(stored.getResponse()))
+                  .directResponse(null)
                   .build();
             });
   }
 
+  @Override
+  public Flux<ByteBuffer> archive(@NonNull List<File> files) {
+    return Flux.defer(
+        () -> {
+          val opened = new OpenedBodies();
+          val entries =
+              Flux.fromIterable(files)
+                  // Opening an entry sends its request, the body is only read once it is written
+                  .flatMapSequential(
+                      file ->
+                          download(file, true)
+                              .switchIfEmpty(
+                                  Mono.error(
+                                      new DownloadFailedException(
+                                          HttpStatus.NOT_FOUND.value(),
+                                          of("Missing content of file: " + file.getId()))))
+                              .map(
+                                  downloadResult ->
+                                      new ZipStream.Entry(
+                                          file.getDownloadName(),
+                                          downloadResult.getContentLength(),
+                                          file.getLastModified(),
+                                          opened.add(downloadResult))),
+                      storageConfig.getArchivePrefetch(),
+                      1);
+          return ZipStream.write(entries).doFinally(signal -> opened.close());
+        });
+  }
+
+  private Mono<DownloadResult> downloadStored(File file) {
+    if (file.getStorageMode() == StorageMode.PACKED) {
+      return Mono.just(
+          DownloadResult.builder()
+              .contentType(file.getMimeType())
+              .contentLength(file.getStoredLength())
+              .contentDisposition("attachment; filename=\"" + file.getDownloadName() + "\"")
+              .response(readContent(file))
+              .build());
+    }
+    if (file.getStorageMode() == StorageMode.INLINE) {
+      return fileContentRepository
+          .findById(file.getObjectKey())
+          .map(
+              content ->
+                  DownloadResult.builder()
+                      .contentType(file.getMimeType())
+                      .contentLength((long) content.getData().length)
+                      .contentDisposition("attachment; filename=\"" + file.getDownloadName() + "\"")
+                      .response(Flux.just(ByteBuffer.wrap(content.getData())))
+                      .build());
+    }
+    if (file.getStorageMode() == StorageMode.CHUNKED) {
+      return Mono.just(
+          DownloadResult.builder()
+              .contentType(file.getMimeType())
+              .contentLength(file.getSize())
+              .contentDisposition("attachment; filename=\"" + file.getDownloadName() + "\"")
+              .response(chunkStore.read(file.getChunks()))
+              .build());
+    }
+    // Objects read with a single GET anyway skip the copy the SDK makes of every buffer
+    if (storageConfig.isDirectDownloads()
+        && file.getSize() != null
+        && file.getStoredLength() <= storageConfig.getDownloadPartSize().toBytes()) {
+      val direct =
+          objectReader.readDirect(file.getObjectKey(), file.getStoredLength(), file.getMimeType());
+      return Mono.just(
+          DownloadResult.builder()
+              .contentType(file.getMimeType())
+              .contentLength(file.getStoredLength())
+              .contentDisposition("attachment; filename=\"" + file.getDownloadName() + "\"")
+              .directResponse(direct)
+              .response(direct.map(S3BackedFileService::copy))
+              .build());
+    }
+    return objectReader
+        .open(file.getObjectKey())
+        .map(
+            object ->
+                DownloadResult.builder()
+                    .contentType(object.contentType())
+                    .contentLength(object.length())
+                    .contentDisposition("attachment; filename=\"" + file.getDownloadName() + "\"")
+                    .response(object.content())
+                    .started(true)
+                    .build());
+  }
+
+  // For consumers of heap buffers, e.g. archives and decompression, it costs what the SDK does
+  private static ByteBuffer copy(DataBuffer buffer) {
+    try {
+      val copy = ByteBuffer.allocate(buffer.readableByteCount());
+      return copy.put(buffer.asByteBuffer()).flip();
+    } finally {
+      DataBufferUtils.release(buffer);
+    }
+  }
+
+  @Override
+  public Mono<URI> presignDownload(@NonNull File file) {
+    // Other modes share or split their objects
+    if (file.getStorageMode() != StorageMode.OBJECT) return Mono.empty();
+    return Mono.fromCallable(
+        () -> {
+          val request =
+              GetObjectRequest.builder()
+                  .bucket(s3Config.getBucket())
+                  .key(file.getObjectKey())
+                  .responseContentDisposition(
+                      "attachment; filename=\"" + file.getDownloadName() + "\"")
+                  // Clients are only redirected when they accept the stored encoding
+                  .responseContentEncoding(file.getContentEncoding())
+                  .responseContentType(
+                      file.getContentEncoding() != null ? file.getMimeType() : null)
+                  .build();
+          val presignRequest =
+              GetObjectPresignRequest.builder()
+                  .signatureDuration(s3Config.getPresigned().getExpiration())
+                  .getObjectRequest(request)
+                  .build();
+          return s3Presigner.presignGetObject(presignRequest).url().toURI();
+        });
+  }
+
   @Override
   public Mono<File> rename(File file, String newName) {
     file.setFileName(newName);
@@ -292,13 +1165,109 @@ public class S3BackedFileService implements FileService {
     return fileRepository.findByIdAndOwner(fileKey, owner);
   }
 
+  @Override
+  public Flux<File> getAllByIdsAndOwner(Collection<String> fileKeys, String owner) {
+    return fileRepository.findAllByIdInAndOwner(fileKeys, owner);
+  }
+
+  // Parts upload concurrently, so everything they touch is thread-safe. completedParts is sorted
+  // by part number, which is the order CompleteMultipartUpload expects.
   @RequiredArgsConstructor
   private static class UploadState {
     final String bucket;
     final String fileKey;
-    String uploadId;
-    int partCounter;
-    Map<Integer, CompletedPart> completedParts = new HashMap<>();
-    int buffered = 0;
+    final PartSizing sizing;
+    final MessageDigest digest = ContentHash.newDigest();
+    final AtomicInteger partCounter = new AtomicInteger();
+    final Map<Integer, CompletedPart> completedParts = new ConcurrentSkipListMap<>();
+    final AtomicLong size = new AtomicLong();
+    // Held by the part being read until it is handed to its PendingPart
+    final AtomicReference<UploadThrottle.BufferReservation> partReservation =
+        new AtomicReference<>();
+    volatile String uploadId;
+    volatile boolean multipart;
+    volatile StorageMode storageMode = StorageMode.OBJECT;
+    volatile PackStore.Location packLocation;
+    // Only touched by the sequential buffering stages
+    long buffered = 0;
+    int closedParts = 0;
+
+    void releaseReservations() {
+      val reservation = partReservation.getAndSet(null);
+      if (reservation != null) reservation.release();
+    }
+  }
+
+  // Bodies of archive entries opened ahead hold a pooled S3 connection until they are subscribed
+  // to. flatMapSequential drops the entries it queued without calling a discard hook when the
+  // archive is cancelled or fails, so the bodies not written yet are cancelled here.
+  private static class OpenedBodies {
+    private final Set<Flux<ByteBuffer>> pending = new HashSet<>();
+    private boolean closed;
+
+    Flux<ByteBuffer> add(DownloadResult downloadResult) {
+      val body = downloadResult.getResponse();
+      // Bodies whose request was not sent yet are simply never subscribed
+      if (!downloadResult.isStarted()) return body;
+      synchronized (this) {
+        if (!closed) {
+          pending.add(body);
+          return Flux.defer(() -> written(body));
+        }
+      }
+      // Opened after the archive ended
+      body.subscribe().dispose();
+      return body;
+    }
+
+    private synchronized Flux<ByteBuffer> written(Flux<ByteBuffer> body) {
+      pending.remove(body);
+      return body;
+    }
+
+    void close() {
+      List<Flux<ByteBuffer>> unwritten;
+      synchronized (this) {
+        closed = true;
+        unwritten = List.copyOf(pending);
+        pending.clear();
+      }
+      unwritten.forEach(body -> body.subscribe().dispose());
+    }
+  }
+
+  // The part body is streamed straight from the buffers received from the client, without copying
+  // them into a single array. The buffers and their buffer space are owned by the part until
+  // release() is called.
+  private record PendingPart(
+      int partNumber, List<DataBuffer> buffers, UploadThrottle.BufferReservation reservation) {
+
+    long size() {
+      return buffers.stream().mapToLong(DataBuffer::readableByteCount).sum();
+    }
+
+    // A fresh view per subscription, the SDK may subscribe again when it retries a request
+    Flux<ByteBuffer> content() {
+      return Flux.fromIterable(buffers).map(DataBuffer::asByteBuffer);
+    }
+
+    void release() {
+      buffers.forEach(DataBufferUtils::release);
+      releaseReservation();
+    }
+
+    // Copies the content into one array and releases the buffers. The copy still counts against
+    // the buffer space until releaseReservation() is called.
+    byte[] copy() {
+      val data = new byte[(int) size()];
+      val target = ByteBuffer.wrap(data);
+      buffers.forEach(buffer -> target.put(buffer.asByteBuffer()));
+      buffers.forEach(DataBufferUtils::release);
+      return data;
+    }
+
+    void releaseReservation() {
+      if (reservation != null) reservation.release();
+    }
   }
 }
@@ -0,0 +1,304 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.events.DestinationInfo;
+import com.instashare.instasharecore.files.dtos.PresignedPartUrl;
+import com.instashare.instasharecore.files.exceptions.InvalidUploadSessionException;
+import com.instashare.instasharecore.files.exceptions.UploadFailedException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.UploadPartPresignRequest;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class S3BackedUploadSessionService implements UploadSessionService {
+
+  private final S3AsyncClient s3Client;
+
+  private final S3ClientConfigurationProperties s3Config;
+
+  private final UploadSessionRepository uploadSessionRepository;
+
+  private final ReactiveMongoTemplate mongoTemplate;
+
+  private final FileRepository fileRepository;
+
+  private final AmqpTemplate amqpTemplate;
+
+  private final DestinationInfo destinationInfo;
+
+  private final UploadThrottle uploadThrottle;
+
+  private final PartSizeAdvisor partSizeAdvisor;
+
+  private final S3Presigner s3Presigner;
+
+  @Override
+  public Mono<UploadSession> create(
+      String owner, String fileName, String mimeType, long declaredSize) {
+    val fileKey = UUID.randomUUID().toString();
+    val request =
+        CreateMultipartUploadRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(fileKey)
+            .contentType(mimeType)
+            .metadata(Map.of("filename", fileName))
+            .build();
+
+    // Parts of a session have a fixed size, the client needs to know it upfront
+    val partSize = partSizeAdvisor.sizingFor(declaredSize).partSize();
+
+    return Mono.fromFuture(() -> s3Client.createMultipartUpload(request))
+        .flatMap(
+            response -> {
+              if (transmissionFailed(response.sdkHttpResponse())) {
+                return Mono.error(new UploadFailedException(response));
+              }
+              val now = Instant.now();
+              val session =
+                  new UploadSession(
+                      null,
+                      owner,
+                      fileName,
+                      mimeType,
+                      fileKey,
+                      response.uploadId(),
+                      partSize,
+                      new HashMap<>(),
+                      now,
+                      now);
+              return uploadSessionRepository.save(session);
+            })
+        .doOnSuccess(
+            session ->
+                log.info(
+                    "Upload session: {} created for file with key: {}, part size: {}.",
+                    session.getId(),
+                    session.getFileKey(),
+                    session.getPartSize()));
+  }
+
+  @Override
+  public Mono<UploadSession> getByIdAndOwner(String sessionId, String owner) {
+    return uploadSessionRepository.findByIdAndOwner(sessionId, owner);
+  }
+
+  @Override
+  public Mono<UploadSession> uploadPart(
+      UploadSession session, int partNumber, long contentLength, Flux<ByteBuffer> content) {
+    if (contentLength > session.getPartSize()) {
+      return Mono.error(
+          new InvalidUploadSessionException(
+              "Parts must not be larger than " + session.getPartSize() + " bytes."));
+    }
+    val request =
+        UploadPartRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(session.getFileKey())
+            .uploadId(session.getUploadId())
+            .partNumber(partNumber)
+            .contentLength(contentLength)
+            .build();
+
+    return uploadThrottle
+        .withPartSlot(
+            Mono.fromFuture(
+                () -> s3Client.uploadPart(request, AsyncRequestBody.fromPublisher(content))))
+        .flatMap(
+            response -> {
+              if (transmissionFailed(response.sdkHttpResponse())) {
+                return Mono.error(new UploadFailedException(response));
+              }
+              log.debug(
+                  "Upload session: {} received part={}, etag={}",
+                  session.getId(),
+                  partNumber,
+                  response.eTag());
+              // A single atomic $set, parts of the same session may arrive on different nodes.
+              // Re-sending a part simply replaces it.
+              val part = new UploadSessionPart(partNumber, response.eTag(), contentLength);
+              return mongoTemplate.findAndModify(
+                  query(where("_id").is(session.getId())),
+                  new Update().set("parts." + partNumber, part).set("updatedAt", Instant.now()),
+                  FindAndModifyOptions.options().returnNew(true),
+                  UploadSession.class);
+            });
+  }
+
+  @Override
+  public Mono<List<PresignedPartUrl>> presignParts(
+      UploadSession session, List<Integer> partNumbers) {
+    val urls =
+        partNumbers.stream()
+            .map(
+                partNumber -> {
+                  val request =
+                      UploadPartRequest.builder()
+                          .bucket(s3Config.getBucket())
+                          .key(session.getFileKey())
+                          .uploadId(session.getUploadId())
+                          .partNumber(partNumber)
+                          .build();
+                  val presigned =
+                      s3Presigner.presignUploadPart(
+                          UploadPartPresignRequest.builder()
+                              .signatureDuration(s3Config.getPresigned().getExpiration())
+                              .uploadPartRequest(request)
+                              .build());
+                  return new PresignedPartUrl(
+                      partNumber, presigned.url().toString(), presigned.expiration());
+                })
+            .toList();
+    // Keeps the session from expiring while the client uploads on its own
+    return mongoTemplate
+        .updateFirst(
+            query(where("_id").is(session.getId())),
+            new Update().set("updatedAt", Instant.now()),
+            UploadSession.class)
+        .thenReturn(urls);
+  }
+
+  // S3 is the source of truth for the parts, clients may upload some of them through presigned
+  // URLs and those are never recorded in the session
+  @Override
+  public Mono<File> complete(UploadSession session) {
+    return listParts(session).flatMap(parts -> complete(session, parts));
+  }
+
+  private Mono<File> complete(UploadSession session, List<UploadSessionPart> parts) {
+    if (parts.isEmpty()) {
+      return Mono.error(new InvalidUploadSessionException("No parts were uploaded."));
+    }
+    for (int i = 0; i < parts.size(); i++) {
+      val part = parts.get(i);
+      if (part.getPartNumber() != i + 1) {
+        return Mono.error(new InvalidUploadSessionException("Missing part: " + (i + 1) + "."));
+      }
+      if (i < parts.size() - 1 && part.getSize() != session.getPartSize()) {
+        return Mono.error(
+            new InvalidUploadSessionException(
+                "Part " + part.getPartNumber() + " must be " + session.getPartSize() + " bytes."));
+      }
+    }
+    val completedParts =
+        parts.stream()
+            .map(
+                part ->
+                    CompletedPart.builder()
+                        .partNumber(part.getPartNumber())
+                        .eTag(part.getETag())
+                        .build())
+            .collect(Collectors.toList());
+    val request =
+        CompleteMultipartUploadRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(session.getFileKey())
+            .uploadId(session.getUploadId())
+            .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+            .build();
+
+    return Mono.fromFuture(() -> s3Client.completeMultipartUpload(request))
+        .flatMap(
+            response -> {
+              if (transmissionFailed(response.sdkHttpResponse())) {
+                return Mono.error(new UploadFailedException(response));
+              }
+              return verify(session);
+            })
+        .flatMap(
+            head -> {
+              val file =
+                  File.builder()
+                      .id(session.getFileKey())
+                      .fileName(session.getFileName())
+                      .owner(session.getOwner())
+                      .fileStatus(FileStatus.RAW)
+                      .size(head.contentLength())
+                      .mimeType(session.getMimeType())
+                      .partSize(session.getPartSize())
+                      // No content hash is computed for resumable uploads
+                      .objectETag(head.eTag())
+                      .lastModified(Instant.now())
+                      .build();
+              log.info("File with key: {} was successfully uploaded.", file.getId());
+              return fileRepository.save(file);
+            })
+        .flatMap(file -> uploadSessionRepository.delete(session).thenReturn(file))
+        .doOnSuccess(
+            file -> {
+              // Publish file uploaded event
+              amqpTemplate.convertAndSend(
+                  destinationInfo.exchange(), destinationInfo.routingKey(), file.getId());
+            });
+  }
+
+  private Mono<List<UploadSessionPart>> listParts(UploadSession session) {
+    val request =
+        ListPartsRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(session.getFileKey())
+            .uploadId(session.getUploadId())
+            .build();
+    return Flux.from(s3Client.listPartsPaginator(request).parts())
+        .map(part -> new UploadSessionPart(part.partNumber(), part.eTag(), part.size()))
+        .sort(Comparator.comparingInt(UploadSessionPart::getPartNumber))
+        .collectList();
+  }
+
+  // The object is the source of truth for size and ETag, clients may have uploaded parts themselves
+  private Mono<HeadObjectResponse> verify(UploadSession session) {
+    val request =
+        HeadObjectRequest.builder().bucket(s3Config.getBucket()).key(session.getFileKey()).build();
+    return Mono.fromFuture(() -> s3Client.headObject(request))
+        .flatMap(
+            head -> {
+              if (transmissionFailed(head.sdkHttpResponse())) {
+                return Mono.error(new UploadFailedException(head));
+              }
+              return Mono.just(head);
+            });
+  }
+
+  @Override
+  public Mono<Void> abort(UploadSession session) {
+    val request =
+        AbortMultipartUploadRequest.builder()
+            .bucket(s3Config.getBucket())
+            .key(session.getFileKey())
+            .uploadId(session.getUploadId())
+            .build();
+    return Mono.fromFuture(() -> s3Client.abortMultipartUpload(request))
+        .then(uploadSessionRepository.delete(session))
+        .doOnSuccess(ignored -> log.info("Upload session: {} aborted.", session.getId()));
+  }
+
+  private boolean transmissionFailed(SdkHttpResponse httpResponse) {
+    return httpResponse == null || !httpResponse.isSuccessful();
+  }
+}
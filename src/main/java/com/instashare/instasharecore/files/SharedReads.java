@@ -0,0 +1,392 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.files.ObjectReader.StoredObject;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.val;
+import org.reactivestreams.Subscription;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Operators;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * Shares one S3 fetch between concurrent reads of the same object or range, e.g. a widely shared
+ * file downloaded by many clients at once.
+ *
+ * <p>A read joins the fetch in progress while that fetch has sent at most the shared read buffer,
+ * which is kept to be replayed to late readers. Every reader queues at most about that much ahead
+ * of what it consumed, the fetch waits for the slowest one only until the others catch up with
+ * their queues. A reader falling further behind is moved to a fetch of its own, starting where it
+ * stopped, so slow clients neither hold the others back nor buffer without bound.
+ */
+@Component
+public class SharedReads {
+
+  private final boolean enabled;
+
+  private final long bufferSize;
+
+  private final Map<String, Flight> flights = new HashMap<>();
+
+  private final Counter joined;
+
+  private final Counter detached;
+
+  public SharedReads(StorageConfigurationProperties storageConfig, MeterRegistry meterRegistry) {
+    this.enabled = storageConfig.isSharedReadsEnabled();
+    this.bufferSize = storageConfig.getSharedReadBuffer().toBytes();
+    this.joined =
+        Counter.builder("instashare.shared.reads.joined")
+            .description("Reads served by a fetch already in progress")
+            .register(meterRegistry);
+    this.detached =
+        Counter.builder("instashare.shared.reads.detached")
+            .description("Slow reads moved to a fetch of their own")
+            .register(meterRegistry);
+  }
+
+  /**
+   * Opens {@code key} through the fetch in progress for it, or starts one with {@code opener}.
+   * {@code resume} streams the object from an offset on, for readers leaving the shared fetch.
+   */
+  public Mono<StoredObject> open(
+      String key,
+      Supplier<Mono<StoredObject>> opener,
+      BiFunction<StoredObject, Long, Flux<ByteBuffer>> resume) {
+    if (!enabled) return Mono.defer(opener);
+    return Mono.defer(
+        () -> {
+          Flight flight;
+          synchronized (this) {
+            flight = flights.get(key);
+            if (flight == null) {
+              val started = new Flight(key);
+              started.opened = opener.get().doOnError(e -> remove(key, started)).cache();
+              flights.put(key, started);
+              flight = started;
+            } else {
+              joined.increment();
+            }
+          }
+          val shared = flight;
+          return shared.opened.map(
+              object ->
+                  new StoredObject(
+                      object.contentType(),
+                      object.length(),
+                      shared.read(object.content(), offset -> resume.apply(object, offset))));
+        });
+  }
+
+  /**
+   * Streams a range through the fetch in progress for {@code key}, or starts one with {@code
+   * source}. {@code resume} streams the range from an offset within it on.
+   */
+  public Flux<ByteBuffer> read(
+      String key,
+      long length,
+      Supplier<Flux<ByteBuffer>> source,
+      LongFunction<Flux<ByteBuffer>> resume) {
+    return open(
+            key,
+            () -> Mono.just(new StoredObject(null, length, Flux.defer(source))),
+            (object, offset) -> resume.apply(offset))
+        .flatMapMany(StoredObject::content);
+  }
+
+  private synchronized void remove(String key, Flight flight) {
+    flights.remove(key, flight);
+  }
+
+  /**
+   * One upstream fetch and the readers attached to it. Guarded by its own monitor, readers are only
+   * signalled outside of it: a slow or re-entrant subscriber must not hold up the other readers or
+   * the fetch.
+   */
+  private class Flight extends BaseSubscriber<ByteBuffer> {
+    private final String key;
+
+    private final List<Reader> readers = new ArrayList<>();
+
+    // Readers with signals ready to be emitted by flush()
+    private final Set<Reader> ready = new LinkedHashSet<>();
+
+    // Everything sent so far, dropped once it outgrows the buffer and nobody can join anymore
+    private List<ByteBuffer> sent = new ArrayList<>();
+
+    private long sentBytes;
+
+    private Mono<StoredObject> opened;
+
+    private boolean started;
+
+    private boolean requested;
+
+    private boolean pulling;
+
+    private boolean pullAgain;
+
+    private boolean done;
+
+    private Throwable error;
+
+    Flight(String key) {
+      this.key = key;
+    }
+
+    Flux<ByteBuffer> read(Flux<ByteBuffer> content, LongFunction<Flux<ByteBuffer>> resume) {
+      val reader = new Reader();
+      return Flux.<ByteBuffer>create(sink -> attach(reader, sink, content))
+          .concatWith(
+              Flux.defer(() -> reader.detached ? resume.apply(reader.position) : Flux.empty()));
+    }
+
+    private void attach(Reader reader, FluxSink<ByteBuffer> sink, Flux<ByteBuffer> content) {
+      boolean late = false;
+      boolean start = false;
+      synchronized (this) {
+        // Too late to replay what was sent, or nobody is fetching anymore
+        if (sent == null || error != null || (started && !done && readers.isEmpty())) {
+          reader.detached = true;
+          late = true;
+        } else {
+          reader.sink = sink;
+          for (val buffer : sent) reader.enqueue(buffer);
+          readers.add(reader);
+          start = !started;
+          started = true;
+        }
+      }
+      if (late) {
+        sink.complete();
+        return;
+      }
+      sink.onRequest(n -> demand(reader, n));
+      sink.onCancel(() -> leave(reader));
+      if (start) {
+        content.subscribe(this);
+        return;
+      }
+      synchronized (this) {
+        drain(reader);
+        pull();
+      }
+      flush();
+    }
+
+    private void demand(Reader reader, long n) {
+      synchronized (this) {
+        reader.demand = Operators.addCap(reader.demand, n);
+        drain(reader);
+        pull();
+      }
+      flush();
+    }
+
+    private void leave(Reader reader) {
+      synchronized (this) {
+        readers.remove(reader);
+        reader.queue.clear();
+        reader.out.clear();
+        if (readers.isEmpty() && !done) {
+          remove(key, this);
+          cancel();
+        } else {
+          pull();
+        }
+      }
+      flush();
+    }
+
+    @Override
+    protected void hookOnSubscribe(Subscription subscription) {
+      synchronized (this) {
+        pull();
+      }
+      flush();
+    }
+
+    @Override
+    protected void hookOnNext(ByteBuffer buffer) {
+      synchronized (this) {
+        requested = false;
+        if (sent != null) {
+          sent.add(buffer);
+          sentBytes += buffer.remaining();
+          if (sentBytes > bufferSize) {
+            sent = null;
+            remove(key, this);
+          }
+        }
+        for (val reader : readers) reader.enqueue(buffer);
+        val least = readers.stream().mapToLong(reader -> reader.queued).min().orElse(0);
+        for (val reader : List.copyOf(readers)) {
+          if (reader.queued > bufferSize && least <= bufferSize) detach(reader);
+          else drain(reader);
+        }
+        pull();
+      }
+      flush();
+    }
+
+    @Override
+    protected void hookOnComplete() {
+      finish(null);
+    }
+
+    @Override
+    protected void hookOnError(Throwable throwable) {
+      finish(throwable);
+    }
+
+    private void finish(Throwable throwable) {
+      synchronized (this) {
+        done = true;
+        error = throwable;
+        remove(key, this);
+        List.copyOf(readers).forEach(this::drain);
+      }
+      flush();
+    }
+
+    private void detach(Reader reader) {
+      readers.remove(reader);
+      reader.queue.clear();
+      reader.queued = 0;
+      reader.detached = true;
+      detached.increment();
+      reader.complete = true;
+      ready.add(reader);
+    }
+
+    // Moves what the reader asked for to its outbox, flush() emits it
+    private void drain(Reader reader) {
+      if (error != null) {
+        readers.remove(reader);
+        reader.error = error;
+        ready.add(reader);
+        return;
+      }
+      while (reader.demand > 0 && !reader.queue.isEmpty()) {
+        val buffer = reader.queue.poll();
+        reader.queued -= buffer.remaining();
+        reader.position += buffer.remaining();
+        reader.demand--;
+        reader.out.add(buffer);
+      }
+      if (done && reader.queue.isEmpty() && readers.remove(reader)) reader.complete = true;
+      if (!reader.out.isEmpty() || reader.complete) ready.add(reader);
+    }
+
+    // Emits the signals of ready readers. Called once the monitor is released, a call nested in a
+    // synchronized block leaves them to the outermost one.
+    private void flush() {
+      if (Thread.holdsLock(this)) return;
+      while (true) {
+        Reader reader;
+        synchronized (this) {
+          val next = ready.iterator();
+          if (!next.hasNext()) return;
+          reader = next.next();
+          next.remove();
+        }
+        emit(reader);
+      }
+    }
+
+    // One thread emits for a reader at a time, signals made ready meanwhile are emitted by it
+    private void emit(Reader reader) {
+      if (reader.wip.getAndIncrement() != 0) return;
+      int missed = 1;
+      do {
+        List<ByteBuffer> buffers;
+        Throwable failure = null;
+        boolean complete = false;
+        synchronized (this) {
+          buffers = List.copyOf(reader.out);
+          reader.out.clear();
+          if (!reader.terminated) {
+            failure = reader.error;
+            complete = failure == null && reader.complete;
+            reader.terminated = failure != null || complete;
+          }
+        }
+        buffers.forEach(reader.sink::next);
+        if (failure != null) reader.sink.error(failure);
+        else if (complete) reader.sink.complete();
+        missed = reader.wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    // Requests one buffer at a time while some reader has room for it. Buffers can arrive during
+    // the request, on this thread, which loops here instead of recursing.
+    private void pull() {
+      if (pulling) {
+        pullAgain = true;
+        return;
+      }
+      pulling = true;
+      try {
+        do {
+          pullAgain = false;
+          val room = readers.stream().anyMatch(reader -> reader.queued < bufferSize);
+          if (started && !done && !requested && room && upstream() != null) {
+            requested = true;
+            request(1);
+          }
+        } while (pullAgain);
+      } finally {
+        pulling = false;
+      }
+    }
+  }
+
+  private static class Reader {
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+
+    // Buffers and terminal signal taken from the queue, not emitted yet
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+    private boolean complete;
+
+    private Throwable error;
+
+    private boolean terminated;
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private FluxSink<ByteBuffer> sink;
+
+    private long queued;
+
+    private long demand;
+
+    // Bytes emitted, where a fetch of its own continues
+    private long position;
+
+    private boolean detached;
+
+    // Every reader consumes its own view of the shared buffers
+    void enqueue(ByteBuffer buffer) {
+      queue.add(buffer.duplicate());
+      queued += buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package com.instashare.instasharecore.files;
+
+/** Where the content of a file lives. */
+public enum StorageMode {
+  // A single S3 object, see File#getObjectKey()
+  OBJECT,
+  // A manifest of content-addressed chunks, see ChunkStore
+  CHUNKED,
+  // Small enough to live in Mongo, see FileContent
+  INLINE,
+  // A slice of a pack object shared with other small files, see PackStore
+  PACKED
+}
@@ -0,0 +1,34 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.files.dtos.UploadResult;
+import com.instashare.instasharecore.files.dtos.UploadResultError;
+import com.instashare.instasharecore.files.dtos.UploadStatus;
+import com.instashare.instasharecore.files.exceptions.UploadThrottledException;
+import com.instashare.instasharecore.files.exceptions.UploadTooLargeException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+/** Errors any upload endpoint may end with. */
+@RestControllerAdvice
+@Slf4j
+public class UploadExceptionHandler {
+
+  @ExceptionHandler(UploadThrottledException.class)
+  public ResponseEntity<UploadResult> throttled(UploadThrottledException e) {
+    log.warn("Upload rejected, no buffer space left on this node.");
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfter().toSeconds()))
+        .body(new UploadResult(UploadStatus.FAILED, new UploadResultError(e.getMessage())));
+  }
+
+  @ExceptionHandler(UploadTooLargeException.class)
+  public ResponseEntity<UploadResult> tooLarge(UploadTooLargeException e) {
+    log.warn("Upload rejected: {}", e.getMessage());
+    return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+        .body(new UploadResult(UploadStatus.FAILED, new UploadResultError(e.getMessage())));
+  }
+}
@@ -0,0 +1,68 @@
+package com.instashare.instasharecore.files;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.val;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * State of a resumable upload. It lives in Mongo rather than in memory so that any node can accept
+ * the next part of an upload started elsewhere.
+ */
+@Document(value = "upload_sessions")
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+public class UploadSession {
+
+  // Sessions nobody touched for a week are dropped, the S3 side is left to the upload reaper
+  static final int EXPIRE_AFTER_SECONDS = 7 * 24 * 60 * 60;
+
+  private @Id String id;
+
+  private String owner;
+  private String fileName;
+  private String mimeType;
+
+  // Key of the S3 object being assembled, it becomes the id of the resulting file
+  private String fileKey;
+  // Looked up by the upload reaper for every incomplete upload it lists
+  @Indexed private String uploadId;
+
+  private long partSize;
+
+  // Keyed by part number, Mongo document keys must be strings
+  private Map<String, UploadSessionPart> parts = new HashMap<>();
+
+  private Instant createdAt;
+
+  @Indexed(expireAfterSeconds = EXPIRE_AFTER_SECONDS)
+  private Instant updatedAt;
+
+  public List<UploadSessionPart> sortedParts() {
+    return parts.values().stream()
+        .sorted(Comparator.comparingInt(UploadSessionPart::getPartNumber))
+        .collect(Collectors.toList());
+  }
+
+  /** Bytes received without gaps from the start of the file, i.e. where the client resumes. */
+  public long offset() {
+    long offset = 0;
+    int expected = 1;
+    for (val part : sortedParts()) {
+      if (part.getPartNumber() != expected++) break;
+      offset += part.getSize();
+    }
+    return offset;
+  }
+}
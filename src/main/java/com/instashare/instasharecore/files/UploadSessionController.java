@@ -0,0 +1,171 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.files.dtos.*;
+import com.instashare.instasharecore.files.exceptions.InvalidUploadSessionException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.validation.Valid;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Optional.ofNullable;
+
+/**
+ * Resumable uploads. A client creates a session, PUTs numbered parts of {@code partSize} bytes (the
+ * last one may be shorter), asks for the session when it reconnects to learn where to resume and
+ * finally completes it.
+ *
+ * <p>Clients may also PUT parts straight to S3 with URLs from {@code part-urls}, so the content
+ * never passes through this service, and then complete the session the same way.
+ */
+@RestController
+@RequestMapping("/v1/uploads")
+@RequiredArgsConstructor
+@Slf4j
+public class UploadSessionController {
+
+  // S3 does not accept more parts per upload
+  private static final int MAX_PART_NUMBER = 10_000;
+
+  // URLs presigned by a single request
+  private static final int MAX_PRESIGNED_PARTS = 1_000;
+
+  private final UploadSessionService uploadSessionService;
+
+  private final FileService fileService;
+
+  private static UploadSessionResponse toResponse(UploadSession session) {
+    val parts =
+        session.sortedParts().stream()
+            .map(UploadSessionPart::getPartNumber)
+            .collect(Collectors.toList());
+    return new UploadSessionResponse(
+        session.getId(), session.getFileName(), session.getPartSize(), session.offset(), parts);
+  }
+
+  private static UploadResult failure(String message) {
+    return new UploadResult(UploadStatus.FAILED, new UploadResultError(message));
+  }
+
+  private static ResponseEntity<Object> failed(HttpStatus status, String message) {
+    return ResponseEntity.status(status).body(failure(message));
+  }
+
+  @PostMapping
+  public Mono<ResponseEntity<Object>> create(
+      Principal principal, @Valid @RequestBody CreateUploadSessionRequest request) {
+    val userEmail = principal.getName();
+    val mimeType = ofNullable(request.mimeType()).orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+    val declaredSize = ofNullable(request.size()).orElse(-1L);
+    return fileService
+        .existsByOwnerAndFileName(userEmail, request.fileName())
+        .flatMap(
+            exists -> {
+              if (exists) return Mono.just(failed(HttpStatus.CONFLICT, "File name in use."));
+              return uploadSessionService
+                  .create(userEmail, request.fileName(), mimeType, declaredSize)
+                  .map(
+                      session ->
+                          ResponseEntity.status(HttpStatus.CREATED)
+                              .<Object>body(toResponse(session)));
+            });
+  }
+
+  @GetMapping("/{sessionId}")
+  public Mono<ResponseEntity<UploadSessionResponse>> status(
+      Principal principal, @PathVariable String sessionId) {
+    return uploadSessionService
+        .getByIdAndOwner(sessionId, principal.getName())
+        .map(session -> ResponseEntity.ok(toResponse(session)))
+        .switchIfEmpty(Mono.just(ResponseEntity.notFound().build()));
+  }
+
+  @PutMapping("/{sessionId}/parts/{partNumber}")
+  public Mono<ResponseEntity<Object>> uploadPart(
+      Principal principal,
+      @PathVariable String sessionId,
+      @PathVariable int partNumber,
+      @RequestHeader HttpHeaders headers,
+      @RequestBody Flux<ByteBuffer> body) {
+    val length = headers.getContentLength();
+    if (length <= 0) {
+      return Mono.just(
+          failed(HttpStatus.BAD_REQUEST, "Required header: [Content-Length] is missing."));
+    }
+    if (partNumber < 1 || partNumber > MAX_PART_NUMBER) {
+      return Mono.just(
+          failed(HttpStatus.BAD_REQUEST, "Part number must be between 1 and " + MAX_PART_NUMBER));
+    }
+    return uploadSessionService
+        .getByIdAndOwner(sessionId, principal.getName())
+        .flatMap(session -> uploadSessionService.uploadPart(session, partNumber, length, body))
+        .map(session -> ResponseEntity.ok().<Object>body(toResponse(session)))
+        .onErrorResume(
+            InvalidUploadSessionException.class,
+            e -> Mono.just(failed(HttpStatus.BAD_REQUEST, e.getMessage())))
+        .switchIfEmpty(Mono.just(ResponseEntity.notFound().build()));
+  }
+
+  @GetMapping("/{sessionId}/part-urls")
+  public Mono<ResponseEntity<Object>> partUrls(
+      Principal principal, @PathVariable String sessionId, @RequestParam List<Integer> parts) {
+    if (parts.isEmpty() || parts.size() > MAX_PRESIGNED_PARTS) {
+      return Mono.just(
+          failed(
+              HttpStatus.BAD_REQUEST,
+              "Between 1 and " + MAX_PRESIGNED_PARTS + " parts can be requested at once."));
+    }
+    if (parts.stream().anyMatch(partNumber -> partNumber < 1 || partNumber > MAX_PART_NUMBER)) {
+      return Mono.just(
+          failed(HttpStatus.BAD_REQUEST, "Part number must be between 1 and " + MAX_PART_NUMBER));
+    }
+    return uploadSessionService
+        .getByIdAndOwner(sessionId, principal.getName())
+        .flatMap(
+            session ->
+                uploadSessionService
+                    .presignParts(session, parts)
+                    .map(urls -> new PresignedPartsResponse(session.getId(), urls)))
+        .map(response -> ResponseEntity.ok().<Object>body(response))
+        .switchIfEmpty(Mono.just(ResponseEntity.notFound().build()));
+  }
+
+  @PostMapping("/{sessionId}/complete")
+  public Mono<ResponseEntity<UploadResult>> complete(
+      Principal principal, @PathVariable String sessionId) {
+    return uploadSessionService
+        .getByIdAndOwner(sessionId, principal.getName())
+        .flatMap(uploadSessionService::complete)
+        .map(
+            file ->
+                ResponseEntity.status(HttpStatus.CREATED)
+                    .body(
+                        new UploadResult(
+                            UploadStatus.COMPLETED,
+                            new UploadResultCompleted(List.of(file.getId())))))
+        .onErrorResume(
+            InvalidUploadSessionException.class,
+            e -> Mono.just(ResponseEntity.badRequest().body(failure(e.getMessage()))))
+        .switchIfEmpty(Mono.just(ResponseEntity.notFound().build()));
+  }
+
+  @DeleteMapping("/{sessionId}")
+  public Mono<ResponseEntity<Void>> abort(Principal principal, @PathVariable String sessionId) {
+    return uploadSessionService
+        .getByIdAndOwner(sessionId, principal.getName())
+        .flatMap(session -> uploadSessionService.abort(session).thenReturn(true))
+        .map(aborted -> ResponseEntity.noContent().<Void>build())
+        .switchIfEmpty(Mono.just(ResponseEntity.notFound().build()));
+  }
+}
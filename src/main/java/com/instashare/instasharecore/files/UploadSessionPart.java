@@ -0,0 +1,14 @@
+package com.instashare.instasharecore.files;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+public class UploadSessionPart {
+  private int partNumber;
+  private String eTag;
+  private long size;
+}
@@ -0,0 +1,11 @@
+package com.instashare.instasharecore.files;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Mono;
+
+public interface UploadSessionRepository extends ReactiveMongoRepository<UploadSession, String> {
+
+  Mono<UploadSession> findByIdAndOwner(String sessionId, String owner);
+
+  Mono<Boolean> existsByUploadId(String uploadId);
+}
@@ -0,0 +1,30 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.files.dtos.PresignedPartUrl;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public interface UploadSessionService {
+  /**
+   * @param declaredSize size of the file, or a negative value when unknown
+   */
+  Mono<UploadSession> create(String owner, String fileName, String mimeType, long declaredSize);
+
+  Mono<UploadSession> getByIdAndOwner(String sessionId, String owner);
+
+  Mono<UploadSession> uploadPart(
+      UploadSession session, int partNumber, long contentLength, Flux<ByteBuffer> content);
+
+  /**
+   * URLs to PUT parts straight to S3 instead of through {@link #uploadPart}. Parts uploaded that
+   * way are only known to S3, {@link #complete} asks S3 for them when the session recorded none.
+   */
+  Mono<List<PresignedPartUrl>> presignParts(UploadSession session, List<Integer> partNumbers);
+
+  Mono<File> complete(UploadSession session);
+
+  Mono<Void> abort(UploadSession session);
+}
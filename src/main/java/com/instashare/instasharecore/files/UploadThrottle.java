@@ -0,0 +1,138 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.files.exceptions.UploadThrottledException;
+import com.instashare.instasharecore.files.exceptions.UploadTooLargeException;
+import com.instashare.instasharecore.files.util.AsyncPermits;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.val;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+/** Node-wide limits shared by every upload running on this instance. */
+@Component
+public class UploadThrottle {
+
+  private final AsyncPermits partSlots;
+
+  private final AsyncPermits bufferBytes;
+
+  private final Duration bufferWaitTimeout;
+
+  private final Timer bufferWait;
+
+  private final Counter bufferRejections;
+
+  public UploadThrottle(S3ClientConfigurationProperties s3Config, MeterRegistry meterRegistry) {
+    this.partSlots = new AsyncPermits(s3Config.getMultipartMaxConcurrentParts());
+    this.bufferBytes = new AsyncPermits(s3Config.getMultipartMaxBufferedBytes());
+    this.bufferWaitTimeout = s3Config.getMultipartBufferWaitTimeout();
+
+    Gauge.builder(
+            "instashare.upload.buffer.used", bufferBytes, p -> p.getCapacity() - p.getAvailable())
+        .baseUnit("bytes")
+        .description("Bytes of upload parts buffered in heap")
+        .register(meterRegistry);
+    Gauge.builder("instashare.upload.buffer.capacity", bufferBytes, AsyncPermits::getCapacity)
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("instashare.upload.buffer.waiting", bufferBytes, AsyncPermits::getWaiting)
+        .description("Uploads waiting for buffer space")
+        .register(meterRegistry);
+    Gauge.builder(
+            "instashare.upload.parts.in-flight", partSlots, p -> p.getCapacity() - p.getAvailable())
+        .register(meterRegistry);
+    this.bufferWait =
+        Timer.builder("instashare.upload.buffer.wait")
+            .description("Time spent waiting for buffer space")
+            .register(meterRegistry);
+    this.bufferRejections =
+        Counter.builder("instashare.upload.buffer.rejected")
+            .description("Uploads rejected after waiting too long for buffer space")
+            .register(meterRegistry);
+  }
+
+  /** Defers {@code partUpload} until one of the global in-flight part slots is free. */
+  public <T> Mono<T> withPartSlot(Mono<T> partUpload) {
+    return partSlots.withPermits(1, partUpload);
+  }
+
+  /**
+   * Reserves heap for buffering {@code bytes} of a part. While this is pending the upload reads
+   * nothing more from its socket, and after the configured timeout it fails with {@link
+   * UploadThrottledException}. Parts larger than the whole buffer fail with {@link
+   * UploadTooLargeException}.
+   */
+  public Mono<BufferReservation> reserveBuffer(long bytes) {
+    return acquireBuffer(bytes, bytes).map(BufferReservation::new);
+  }
+
+  private Mono<Long> acquireBuffer(long bytes, long partBytes) {
+    return Mono.defer(
+        () -> {
+          if (partBytes > bufferBytes.getCapacity()) {
+            return Mono.error(new UploadTooLargeException(partBytes));
+          }
+          val started = System.nanoTime();
+          return bufferBytes
+              .acquire(bytes)
+              .timeout(bufferWaitTimeout)
+              // Granted while the wait was being cancelled
+              .doOnDiscard(Long.class, bufferBytes::release)
+              .doOnNext(granted -> bufferWait.record(Duration.ofNanos(System.nanoTime() - started)))
+              .onErrorMap(
+                  TimeoutException.class,
+                  e -> {
+                    bufferRejections.increment();
+                    return new UploadThrottledException(bufferWaitTimeout);
+                  });
+        });
+  }
+
+  /**
+   * Buffer space held by one part. It grows with {@link #grow(long)} while the part is read, and is
+   * given back once by {@link #release()}.
+   */
+  public class BufferReservation {
+    private long bytes;
+    private boolean released;
+
+    private BufferReservation(long bytes) {
+      this.bytes = bytes;
+    }
+
+    public synchronized long getBytes() {
+      return bytes;
+    }
+
+    /** Reserves {@code more} bytes for the same part, waiting and failing like reserveBuffer. */
+    public Mono<BufferReservation> grow(long more) {
+      return acquireBuffer(more, getBytes() + more)
+          .map(
+              granted -> {
+                synchronized (this) {
+                  // Released while growing, the part is gone
+                  if (released) bufferBytes.release(granted);
+                  else bytes += granted;
+                }
+                return this;
+              });
+    }
+
+    public void release() {
+      long releasing;
+      synchronized (this) {
+        if (released) return;
+        released = true;
+        releasing = bytes;
+      }
+      bufferBytes.release(releasing);
+    }
+  }
+}
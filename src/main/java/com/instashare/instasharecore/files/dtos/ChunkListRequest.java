@@ -0,0 +1,9 @@
+package com.instashare.instasharecore.files.dtos;
+
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.Pattern;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+public record ChunkListRequest(
+    @NotEmpty @Size(max = 100_000) List<@Pattern(regexp = "[0-9a-f]{64}") String> chunks) {}
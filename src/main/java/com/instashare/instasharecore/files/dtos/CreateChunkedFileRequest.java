@@ -0,0 +1,13 @@
+package com.instashare.instasharecore.files.dtos;
+
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.Pattern;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+/** A file assembled from stored chunks, listed in content order. */
+public record CreateChunkedFileRequest(
+    @NotBlank String fileName,
+    String mimeType,
+    @NotEmpty @Size(max = 100_000) List<@Pattern(regexp = "[0-9a-f]{64}") String> chunks) {}
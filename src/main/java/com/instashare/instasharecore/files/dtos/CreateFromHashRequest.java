@@ -0,0 +1,9 @@
+package com.instashare.instasharecore.files.dtos;
+
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.Pattern;
+
+public record CreateFromHashRequest(
+    @NotBlank String fileName,
+    @NotBlank @Pattern(regexp = "[0-9a-f]{64}") String sha256,
+    String mimeType) {}
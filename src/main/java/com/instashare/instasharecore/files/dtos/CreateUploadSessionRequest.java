@@ -0,0 +1,6 @@
+package com.instashare.instasharecore.files.dtos;
+
+import javax.validation.constraints.NotBlank;
+
+// size is optional, declaring it lets the server pick a better part size
+public record CreateUploadSessionRequest(@NotBlank String fileName, String mimeType, Long size) {}
@@ -0,0 +1,6 @@
+package com.instashare.instasharecore.files.dtos;
+
+import java.util.List;
+
+/** Chunks the client has to upload before creating a file from its manifest. */
+public record MissingChunksResponse(List<String> missing) {}
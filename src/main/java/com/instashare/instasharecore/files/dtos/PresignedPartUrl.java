@@ -0,0 +1,6 @@
+package com.instashare.instasharecore.files.dtos;
+
+import java.time.Instant;
+
+// The URL only has to be valid when the upload of the part starts
+public record PresignedPartUrl(int partNumber, String url, Instant expiresAt) {}
@@ -0,0 +1,5 @@
+package com.instashare.instasharecore.files.dtos;
+
+import java.util.List;
+
+public record PresignedPartsResponse(String sessionId, List<PresignedPartUrl> parts) {}
@@ -0,0 +1,14 @@
+package com.instashare.instasharecore.files.dtos;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+
+@RequiredArgsConstructor
+@Getter
+public class UploadResultPartial extends UploadResultContent {
+  private final List<String> keys;
+  // Names of the parts that were not saved
+  private final List<String> failed;
+}
@@ -0,0 +1,10 @@
+package com.instashare.instasharecore.files.dtos;
+
+import java.util.List;
+
+/**
+ * Where a resumable upload stands. {@code offset} counts the bytes received without gaps from the
+ * start of the file, {@code parts} lists every part number received so far.
+ */
+public record UploadSessionResponse(
+    String sessionId, String fileName, long partSize, long offset, List<Integer> parts) {}
@@ -2,5 +2,6 @@ package com.instashare.instasharecore.files.dtos;
 
 public enum UploadStatus {
   FAILED,
-  COMPLETED
+  COMPLETED,
+  PARTIAL
 }
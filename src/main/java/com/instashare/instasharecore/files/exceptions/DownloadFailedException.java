@@ -1,6 +1,7 @@
 package com.instashare.instasharecore.files.exceptions;
 
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.val;
 import org.springframework.http.HttpStatus;
 import software.amazon.awssdk.core.SdkResponse;
@@ -12,7 +13,7 @@ public class DownloadFailedException extends RuntimeException {
 
   private static final long serialVersionUID = 1L;
 
-  private final int statusCode;
+  @Getter private final int statusCode;
   private final Optional<String> statusText;
 
   public DownloadFailedException(SdkResponse response) {
@@ -0,0 +1,10 @@
+package com.instashare.instasharecore.files.exceptions;
+
+public class InvalidChunkException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public InvalidChunkException(String message) {
+    super(message);
+  }
+}
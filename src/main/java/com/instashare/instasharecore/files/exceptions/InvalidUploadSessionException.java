@@ -0,0 +1,10 @@
+package com.instashare.instasharecore.files.exceptions;
+
+public class InvalidUploadSessionException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public InvalidUploadSessionException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,19 @@
+package com.instashare.instasharecore.files.exceptions;
+
+import lombok.Getter;
+
+import java.time.Duration;
+
+/** The node is buffering as many upload bytes as it may, the client should retry later. */
+@Getter
+public class UploadThrottledException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Duration retryAfter;
+
+  public UploadThrottledException(Duration retryAfter) {
+    super("Too many uploads in progress.");
+    this.retryAfter = retryAfter;
+  }
+}
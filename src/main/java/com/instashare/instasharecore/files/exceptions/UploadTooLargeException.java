@@ -0,0 +1,11 @@
+package com.instashare.instasharecore.files.exceptions;
+
+/** The upload needs parts larger than this node may buffer at all, retrying does not help. */
+public class UploadTooLargeException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public UploadTooLargeException(long partSize) {
+    super("Parts of " + partSize + " bytes exceed the upload buffer of this node.");
+  }
+}
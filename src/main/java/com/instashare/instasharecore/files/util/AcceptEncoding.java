@@ -0,0 +1,47 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+import org.springframework.http.HttpHeaders;
+
+import java.util.Locale;
+
+/** Accept-Encoding (RFC 7231 section 5.3.4) negotiation for downloads. */
+public final class AcceptEncoding {
+
+  private AcceptEncoding() {}
+
+  /**
+   * Whether the client accepts {@code coding}, explicitly or through "*". Unlike the RFC, a request
+   * without Accept-Encoding only accepts the identity coding, many clients omit the header although
+   * they cannot decode anything.
+   */
+  public static boolean accepts(HttpHeaders headers, String coding) {
+    Double explicit = null;
+    Double wildcard = null;
+    for (val value : headers.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+      for (val element : value.split(",")) {
+        val parameters = element.split(";");
+        val name = parameters[0].trim().toLowerCase(Locale.ROOT);
+        val quality = quality(parameters);
+        if (name.equals(coding) || name.equals("x-" + coding)) explicit = quality;
+        else if (name.equals("*")) wildcard = quality;
+      }
+    }
+    if (explicit != null) return explicit > 0;
+    return wildcard != null && wildcard > 0;
+  }
+
+  private static double quality(String[] parameters) {
+    for (int i = 1; i < parameters.length; i++) {
+      val parameter = parameters[i].trim();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+}
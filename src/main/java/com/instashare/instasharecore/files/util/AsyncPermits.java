@@ -0,0 +1,128 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking, FIFO counting semaphore. Callers waiting for permits are parked as {@link Mono}
+ * subscribers instead of threads, so it can be used to bound concurrency on event-loop threads.
+ */
+public class AsyncPermits {
+
+  private final long capacity;
+
+  private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+  private long available;
+
+  public AsyncPermits(long capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+    this.capacity = capacity;
+    this.available = capacity;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public synchronized long getAvailable() {
+    return available;
+  }
+
+  public synchronized int getWaiting() {
+    return waiters.size();
+  }
+
+  /**
+   * Emits the number of permits granted once they are available. Requests larger than the capacity
+   * could never be granted and fail with {@link IllegalArgumentException}.
+   */
+  public Mono<Long> acquire(long permits) {
+    if (permits > capacity) {
+      return Mono.error(
+          new IllegalArgumentException(
+              "Requested " + permits + " permits, the capacity is " + capacity));
+    }
+    val requested = Math.max(permits, 0);
+    return Mono.<Long>create(
+            sink -> {
+              val waiter = new Waiter(requested, sink);
+              sink.onCancel(waiter::cancel);
+              boolean granted = false;
+              synchronized (this) {
+                // The subscriber may cancel before this callback runs
+                if (waiter.state.get() == Waiter.CANCELLED) return;
+                if (waiters.isEmpty() && available >= requested) {
+                  available -= requested;
+                  granted = true;
+                } else {
+                  waiters.addLast(waiter);
+                }
+              }
+              if (granted) waiter.grant();
+            })
+        // A grant reaching a sink the subscriber just cancelled is dropped, not delivered
+        .doOnDiscard(Long.class, this::release);
+  }
+
+  /** Takes {@code permits} only if they are available right away and nobody is waiting for any. */
+  public synchronized boolean tryAcquire(long permits) {
+    if (!waiters.isEmpty() || available < permits) return false;
+    available -= Math.max(permits, 0);
+    return true;
+  }
+
+  public void release(long permits) {
+    if (permits <= 0) return;
+    Deque<Waiter> ready = new ArrayDeque<>();
+    synchronized (this) {
+      available = Math.min(capacity, available + permits);
+      while (!waiters.isEmpty() && waiters.peekFirst().permits <= available) {
+        val waiter = waiters.pollFirst();
+        available -= waiter.permits;
+        ready.add(waiter);
+      }
+    }
+    // Complete outside the lock, subscribers may run arbitrary code on completion
+    ready.forEach(Waiter::grant);
+  }
+
+  /** Runs {@code action} while holding {@code permits}, releasing them on any terminal signal. */
+  public <T> Mono<T> withPermits(long permits, Mono<T> action) {
+    return Mono.usingWhen(
+        acquire(permits), granted -> action, granted -> Mono.fromRunnable(() -> release(granted)));
+  }
+
+  private synchronized boolean dequeue(Waiter waiter) {
+    return waiters.remove(waiter);
+  }
+
+  @RequiredArgsConstructor
+  private class Waiter {
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    final long permits;
+    final MonoSink<Long> sink;
+    final AtomicInteger state = new AtomicInteger(WAITING);
+
+    void grant() {
+      // A cancellation losing this race is handled by the discard hook of acquire()
+      if (state.compareAndSet(WAITING, GRANTED)) sink.success(permits);
+      // Cancelled after being dequeued: hand the permits to the next waiter
+      else release(permits);
+    }
+
+    void cancel() {
+      // If the waiter was already dequeued, grant() sees the cancellation and returns the permits
+      if (state.compareAndSet(WAITING, CANCELLED)) dequeue(this);
+    }
+  }
+}
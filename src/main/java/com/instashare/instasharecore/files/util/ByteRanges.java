@@ -0,0 +1,123 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BiFunction;
+
+/** Range request (RFC 7233) helpers for downloads. */
+public final class ByteRanges {
+
+  // More ranges than this are answered with the whole file
+  public static final int MAX_RANGES = 16;
+
+  private ByteRanges() {}
+
+  /**
+   * Ranges to serve for a request. Empty when the whole file has to be sent: no or unparseable
+   * Range header, too many ranges, or an If-Range validator that does not match {@code etag}.
+   */
+  public static List<HttpRange> requested(HttpHeaders headers, String etag) {
+    val range = headers.getFirst(HttpHeaders.RANGE);
+    if (range == null) return List.of();
+    val ifRange = headers.getFirst(HttpHeaders.IF_RANGE);
+    // Dates are weak validators, only a matching strong ETag allows a partial response
+    if (ifRange != null && (etag == null || !ifRange.trim().equals(etag))) return List.of();
+    try {
+      val ranges = HttpRange.parseRanges(range);
+      return ranges.size() > MAX_RANGES ? List.of() : ranges;
+    } catch (IllegalArgumentException e) {
+      return List.of();
+    }
+  }
+
+  /**
+   * Resolves {@code ranges} against a representation of {@code length} bytes, ranges starting past
+   * the end are dropped.
+   *
+   * @throws IllegalArgumentException when no range is satisfiable
+   */
+  public static List<Segment> resolve(List<HttpRange> ranges, long length) {
+    val resolved = new ArrayList<Segment>();
+    for (val range : ranges) {
+      val start = range.getRangeStart(length);
+      if (start >= length) continue;
+      resolved.add(new Segment(start, range.getRangeEnd(length) - start + 1));
+    }
+    if (resolved.isEmpty()) throw new IllegalArgumentException("No satisfiable range");
+    return resolved;
+  }
+
+  public static String contentRange(Segment segment, long length) {
+    return "bytes " + segment.start() + "-" + segment.end() + "/" + length;
+  }
+
+  public static String unsatisfiedRange(long length) {
+    return "bytes */" + length;
+  }
+
+  public static String newBoundary() {
+    return UUID.randomUUID().toString().replace("-", "");
+  }
+
+  /**
+   * A multipart/byteranges body, each part read with {@code read} only once the previous one was
+   * sent. Its length is known upfront, see {@link #multipartLength}.
+   */
+  public static Flux<ByteBuffer> multipartBody(
+      String boundary,
+      String contentType,
+      List<Segment> segments,
+      long length,
+      BiFunction<Long, Long, Flux<ByteBuffer>> read) {
+    return Flux.fromIterable(segments)
+        .concatMap(
+            segment ->
+                Flux.just(ByteBuffer.wrap(partHeader(boundary, contentType, segment, length)))
+                    .concatWith(read.apply(segment.start(), segment.length())))
+        .concatWith(Flux.defer(() -> Flux.just(ByteBuffer.wrap(closing(boundary)))));
+  }
+
+  public static long multipartLength(
+      String boundary, String contentType, List<Segment> segments, long length) {
+    long total = closing(boundary).length;
+    for (val segment : segments) {
+      total += partHeader(boundary, contentType, segment, length).length + segment.length();
+    }
+    return total;
+  }
+
+  private static byte[] partHeader(
+      String boundary, String contentType, Segment segment, long length) {
+    val header =
+        "\r\n--"
+            + boundary
+            + "\r\n"
+            + HttpHeaders.CONTENT_TYPE
+            + ": "
+            + contentType
+            + "\r\n"
+            + HttpHeaders.CONTENT_RANGE
+            + ": "
+            + contentRange(segment, length)
+            + "\r\n\r\n";
+    return header.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] closing(String boundary) {
+    return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  public record Segment(long start, long length) {
+    public long end() {
+      return start + length - 1;
+    }
+  }
+}
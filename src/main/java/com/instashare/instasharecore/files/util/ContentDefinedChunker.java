@@ -0,0 +1,95 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a byte stream into chunks whose boundaries depend on the content only (FastCDC style gear
+ * hash with normalized chunking). An insertion or deletion in a file only changes the chunks around
+ * the edit, so a modified file shares most of its chunks with the previous version.
+ *
+ * <p>Not thread-safe, one instance per stream.
+ */
+public class ContentDefinedChunker {
+
+  // Boundaries must be identical on every node and client, so the table comes from a fixed seed
+  private static final long[] GEAR = new long[256];
+
+  static {
+    long seed = 0x1CEB00DAL;
+    for (int i = 0; i < GEAR.length; i++) {
+      // SplitMix64
+      seed += 0x9E3779B97F4A7C15L;
+      long z = seed;
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  private final int minSize;
+  private final int avgSize;
+  private final int maxSize;
+
+  // Harder to match before the average size, easier after it, which narrows the size spread
+  private final long smallMask;
+  private final long largeMask;
+
+  private byte[] pending = new byte[64 * 1024];
+  private int length;
+  private long fingerprint;
+
+  public ContentDefinedChunker(int minSize, int avgSize, int maxSize) {
+    if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+      throw new IllegalArgumentException("Expected 0 < minSize <= avgSize <= maxSize");
+    }
+    this.minSize = minSize;
+    this.avgSize = avgSize;
+    this.maxSize = maxSize;
+    val bits = 63 - Long.numberOfLeadingZeros(avgSize);
+    this.smallMask = topBits(bits + 2);
+    this.largeMask = topBits(Math.max(1, bits - 2));
+  }
+
+  // The gear hash shifts left, so only the high bits depend on a whole window of bytes
+  private static long topBits(int bits) {
+    return -1L << (64 - bits);
+  }
+
+  /** Consumes {@code buffer} and returns the chunks completed by it. */
+  public List<byte[]> update(ByteBuffer buffer) {
+    List<byte[]> chunks = new ArrayList<>(1);
+    while (buffer.hasRemaining()) {
+      val b = buffer.get();
+      append(b);
+      if (length < minSize) continue;
+      fingerprint = (fingerprint << 1) + GEAR[b & 0xff];
+      val mask = length < avgSize ? smallMask : largeMask;
+      if ((fingerprint & mask) == 0 || length >= maxSize) chunks.add(cut());
+    }
+    return chunks;
+  }
+
+  /** Returns the trailing chunk, or null when the stream ended on a boundary. */
+  public byte[] finish() {
+    return length == 0 ? null : cut();
+  }
+
+  private void append(byte b) {
+    if (length == pending.length) {
+      pending = Arrays.copyOf(pending, Math.min(maxSize, pending.length * 2));
+    }
+    pending[length++] = b;
+  }
+
+  private byte[] cut() {
+    val chunk = Arrays.copyOf(pending, length);
+    length = 0;
+    fingerprint = 0;
+    return chunk;
+  }
+}
@@ -2,15 +2,31 @@ package com.instashare.instasharecore.files.util;
 
 import lombok.Builder;
 import lombok.Getter;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import reactor.core.publisher.Flux;
 
 import java.nio.ByteBuffer;
 
 @Getter
-@Builder
+@Builder(toBuilder = true)
 public class DownloadResult {
   private final String contentType;
   private final Long contentLength;
   private final String contentDisposition;
+  // Null when the body is sent as is
+  private final String contentEncoding;
   private final Flux<ByteBuffer> response;
+  // The same content as the pooled buffers it was received in, null when there are none. Only one
+  // of the two may be subscribed.
+  private final Flux<DataBuffer> directResponse;
+  // True when the request for the body was already sent, a body that is never read has to be
+  // cancelled then. Other bodies send their request when subscribed.
+  private final boolean started;
+
+  /** The body for an HTTP response, which writes pooled buffers out without copying them. */
+  public Flux<DataBuffer> dataBuffers() {
+    if (directResponse != null) return directResponse;
+    return response.map(DefaultDataBufferFactory.sharedInstance::wrap);
+  }
 }
@@ -0,0 +1,249 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Streaming gzip (RFC 1952) over reactive byte streams. Only one output block is held in memory at
+ * a time, whatever the size of the content.
+ */
+public final class Gzip {
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  // Magic, deflate, no flags, no mtime, no extra flags, unknown OS
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private Gzip() {}
+
+  /** Compresses {@code content}, every subscription compresses from the start again. */
+  public static Flux<ByteBuffer> compress(Flux<ByteBuffer> content, int level) {
+    return compress(content, Function.identity(), buffer -> {}, level);
+  }
+
+  /**
+   * Compresses the bytes {@code bytes} returns for each element of {@code content}, handing the
+   * element to {@code release} once they were deflated. Pooled buffers are compressed in place.
+   */
+  public static <T> Flux<ByteBuffer> compress(
+      Flux<T> content, Function<T, ByteBuffer> bytes, Consumer<T> release, int level) {
+    return Flux.using(
+        () -> new Encoder(level),
+        encoder ->
+            Flux.just(ByteBuffer.wrap(HEADER.clone()))
+                .concatWith(
+                    content.concatMapIterable(
+                        input -> {
+                          try {
+                            return encoder.encode(bytes.apply(input));
+                          } finally {
+                            release.accept(input);
+                          }
+                        }))
+                .concatWith(Flux.defer(() -> Flux.fromIterable(encoder.finish()))),
+        Encoder::close);
+  }
+
+  /**
+   * Decompresses gzip {@code content}, concatenated members included. Blocks are inflated as they
+   * are requested, so a small compressed buffer never turns into a large amount of heap.
+   */
+  public static Flux<ByteBuffer> decompress(Flux<ByteBuffer> content) {
+    return Flux.using(
+        Decoder::new,
+        decoder ->
+            content
+                .concatMapIterable(input -> (Iterable<ByteBuffer>) () -> decoder.blocks(input))
+                .concatWith(Flux.defer(() -> decoder.finish())),
+        Decoder::close);
+  }
+
+  private static class Encoder {
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] block = new byte[BLOCK_SIZE];
+
+    Encoder(int level) {
+      // Raw deflate, the gzip header and trailer are written here
+      this.deflater = new Deflater(level, true);
+    }
+
+    List<ByteBuffer> encode(ByteBuffer input) {
+      crc.update(input.duplicate());
+      deflater.setInput(input);
+      List<ByteBuffer> output = new ArrayList<>(1);
+      // The deflater keeps a reference to the input, so it is drained before returning
+      while (!deflater.needsInput()) drain(output);
+      return output;
+    }
+
+    List<ByteBuffer> finish() {
+      deflater.finish();
+      List<ByteBuffer> output = new ArrayList<>(2);
+      while (!deflater.finished()) drain(output);
+      val trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      trailer.putInt((int) crc.getValue()).putInt((int) deflater.getBytesRead()).flip();
+      output.add(trailer);
+      return output;
+    }
+
+    private void drain(List<ByteBuffer> output) {
+      val length = deflater.deflate(block);
+      if (length > 0) output.add(ByteBuffer.wrap(Arrays.copyOf(block, length)));
+    }
+
+    void close() {
+      deflater.end();
+    }
+  }
+
+  private static class Decoder {
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] block = new byte[BLOCK_SIZE];
+    // Header or trailer bytes, they may be split across input buffers
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private State state = State.HEADER;
+    private int members;
+
+    private enum State {
+      HEADER,
+      BODY,
+      TRAILER
+    }
+
+    Iterator<ByteBuffer> blocks(ByteBuffer input) {
+      return new Iterator<>() {
+        private ByteBuffer next;
+
+        @Override
+        public boolean hasNext() {
+          if (next == null) next = advance(input);
+          return next != null;
+        }
+
+        @Override
+        public ByteBuffer next() {
+          if (!hasNext()) throw new NoSuchElementException();
+          val block = next;
+          next = null;
+          return block;
+        }
+      };
+    }
+
+    // The next inflated block, null once the input is used up
+    private ByteBuffer advance(ByteBuffer input) {
+      while (true) {
+        switch (state) {
+          case HEADER -> {
+            if (!input.hasRemaining()) return null;
+            pending.write(input.get());
+            if (headerComplete(pending.toByteArray())) {
+              pending.reset();
+              inflater.reset();
+              crc.reset();
+              state = State.BODY;
+            }
+          }
+          case BODY -> {
+            if (inflater.needsInput()) {
+              if (!input.hasRemaining()) return null;
+              inflater.setInput(input);
+            }
+            final int length;
+            try {
+              length = inflater.inflate(block);
+            } catch (DataFormatException e) {
+              throw new UncheckedIOException(new ZipException(e.getMessage()));
+            }
+            if (length > 0) {
+              crc.update(block, 0, length);
+              return ByteBuffer.wrap(Arrays.copyOf(block, length));
+            }
+            if (inflater.finished()) state = State.TRAILER;
+            else if (inflater.needsDictionary()) throw corrupt("Unexpected dictionary");
+          }
+          case TRAILER -> {
+            while (input.hasRemaining() && pending.size() < 8) pending.write(input.get());
+            if (pending.size() < 8) return null;
+            val trailer = ByteBuffer.wrap(pending.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+            if (trailer.getInt() != (int) crc.getValue()
+                || trailer.getInt() != (int) inflater.getBytesWritten()) {
+              throw corrupt("Corrupt gzip trailer");
+            }
+            pending.reset();
+            members++;
+            state = State.HEADER;
+          }
+        }
+      }
+    }
+
+    // Headers have optional fields of variable length, see RFC 1952 section 2.3
+    private static boolean headerComplete(byte[] header) {
+      if (header.length < 10) return false;
+      if (header[0] != 0x1f || header[1] != (byte) 0x8b || header[2] != 8) {
+        throw corrupt("Not in gzip format");
+      }
+      val flags = header[3];
+      int length = 10;
+      if ((flags & FEXTRA) != 0) {
+        if (header.length < length + 2) return false;
+        length += 2 + ((header[length] & 0xff) | (header[length + 1] & 0xff) << 8);
+      }
+      if ((flags & FNAME) != 0) {
+        length = afterZero(header, length);
+        if (length < 0) return false;
+      }
+      if ((flags & FCOMMENT) != 0) {
+        length = afterZero(header, length);
+        if (length < 0) return false;
+      }
+      if ((flags & FHCRC) != 0) length += 2;
+      return header.length == length;
+    }
+
+    private static int afterZero(byte[] header, int from) {
+      for (int i = from; i < header.length; i++) if (header[i] == 0) return i + 1;
+      return -1;
+    }
+
+    private static UncheckedIOException corrupt(String message) {
+      return new UncheckedIOException(new ZipException(message));
+    }
+
+    Flux<ByteBuffer> finish() {
+      if (members == 0 || state != State.HEADER || pending.size() > 0) {
+        return Flux.error(corrupt("Unexpected end of gzip stream"));
+      }
+      return Flux.empty();
+    }
+
+    void close() {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+
+/**
+ * Part sizes of one multipart upload. Uploads of unknown length start at {@code partSize} and
+ * double it every {@link #PARTS_PER_STEP} parts up to {@code maxPartSize}, so that S3's part limit
+ * is only reached past its 5 TB object limit when parts that large may be buffered.
+ */
+public record PartSizing(long partSize, boolean growing, long maxPartSize) {
+
+  public static final int MAX_PARTS = 10_000;
+
+  public static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+
+  public static final int PARTS_PER_STEP = 500;
+
+  /** Parts of {@code partSize} bytes each. */
+  public PartSizing(long partSize) {
+    this(partSize, false, partSize);
+  }
+
+  public long sizeOfPart(int partNumber) {
+    if (!growing) return partSize;
+    val step = Math.min((partNumber - 1) / PARTS_PER_STEP, 20);
+    return Math.max(partSize, Math.min(maxPartSize, partSize << step));
+  }
+}
@@ -0,0 +1,8 @@
+package com.instashare.instasharecore.files.util;
+
+import com.instashare.instasharecore.files.File;
+
+import java.util.List;
+
+/** The files saved from the parts of a form, and the names of the parts that could not be. */
+public record UploadedParts(List<File> files, List<String> failed) {}
@@ -0,0 +1,217 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Streaming ZIP (APPNOTE 6.3) writer. Entries are stored without compression and followed by a data
+ * descriptor, so nothing but the central directory records is held in memory. ZIP64 records are
+ * written when sizes, offsets or the number of entries need them.
+ */
+public final class ZipStream {
+
+  // Values from here on are stored in ZIP64 extra fields, the 32 bit field holds this marker
+  private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+  private static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+
+  private static final int VERSION = 20;
+
+  private static final int VERSION_ZIP64 = 45;
+
+  // Data descriptor follows, names are UTF-8
+  private static final int FLAGS = 0x0008 | 0x0800;
+
+  private ZipStream() {}
+
+  /**
+   * Writes an archive of {@code entries}, subscribing to the content of each one only after the
+   * previous one was written.
+   */
+  public static Flux<ByteBuffer> write(Flux<Entry> entries) {
+    return Flux.defer(
+        () -> {
+          val writer = new Writer();
+          return entries
+              .concatMap(entry -> Flux.defer(() -> writer.entry(entry)), 1)
+              .concatWith(Flux.defer(() -> Flux.just(writer.centralDirectory())))
+              .doOnNext(buffer -> writer.offset += buffer.remaining());
+        });
+  }
+
+  /** An archive entry of {@code size} bytes, checked while its content is written. */
+  public record Entry(String name, long size, Instant lastModified, Flux<ByteBuffer> content) {}
+
+  private record Written(
+      byte[] name, long dosTime, long crc, long size, long offset, boolean zip64) {}
+
+  private static class Writer {
+    private final List<Written> written = new ArrayList<>();
+    private long offset;
+
+    // Called once the previous entry was written, so offset is where this one starts
+    Flux<ByteBuffer> entry(Entry entry) {
+      val name = entry.name().getBytes(StandardCharsets.UTF_8);
+      val dosTime = dosTime(entry.lastModified() != null ? entry.lastModified() : Instant.now());
+      val zip64 = entry.size() >= ZIP64_LIMIT;
+      val headerOffset = offset;
+      val crc = new CRC32();
+      val size = new long[1];
+      return Flux.just(localHeader(name, dosTime, zip64))
+          .concatWith(
+              entry
+                  .content()
+                  .doOnNext(
+                      buffer -> {
+                        size[0] += buffer.remaining();
+                        crc.update(buffer.duplicate());
+                      }))
+          .concatWith(
+              Flux.defer(
+                  () -> {
+                    if (size[0] != entry.size()) {
+                      return Flux.error(
+                          new ZipException(
+                              "Entry "
+                                  + entry.name()
+                                  + " has "
+                                  + size[0]
+                                  + " bytes, expected "
+                                  + entry.size()));
+                    }
+                    written.add(
+                        new Written(name, dosTime, crc.getValue(), size[0], headerOffset, zip64));
+                    return Flux.just(dataDescriptor(crc.getValue(), size[0], zip64));
+                  }));
+    }
+
+    private static ByteBuffer localHeader(byte[] name, long dosTime, boolean zip64) {
+      val extraLength = zip64 ? 20 : 0;
+      val header = allocate(30 + name.length + extraLength);
+      header
+          .putInt(0x04034b50)
+          .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION))
+          .putShort((short) FLAGS)
+          .putShort((short) 0)
+          .putInt((int) dosTime)
+          // CRC and sizes follow in the data descriptor
+          .putInt(0)
+          .putInt(zip64 ? (int) ZIP64_LIMIT : 0)
+          .putInt(zip64 ? (int) ZIP64_LIMIT : 0)
+          .putShort((short) name.length)
+          .putShort((short) extraLength)
+          .put(name);
+      if (zip64) header.putShort((short) 0x0001).putShort((short) 16).putLong(0).putLong(0);
+      return header.flip();
+    }
+
+    private static ByteBuffer dataDescriptor(long crc, long size, boolean zip64) {
+      val descriptor = allocate(zip64 ? 24 : 16).putInt(0x08074b50).putInt((int) crc);
+      if (zip64) descriptor.putLong(size).putLong(size);
+      else descriptor.putInt((int) size).putInt((int) size);
+      return descriptor.flip();
+    }
+
+    ByteBuffer centralDirectory() {
+      val directoryOffset = offset;
+      val records = new ArrayList<ByteBuffer>(written.size());
+      long directorySize = 0;
+      for (val entry : written) {
+        val record = centralDirectoryRecord(entry);
+        directorySize += record.remaining();
+        records.add(record);
+      }
+      val zip64 =
+          written.size() >= ZIP64_ENTRIES_LIMIT
+              || directorySize >= ZIP64_LIMIT
+              || directoryOffset >= ZIP64_LIMIT;
+
+      val end = allocate((int) directorySize + (zip64 ? 56 + 20 : 0) + 22);
+      records.forEach(end::put);
+      if (zip64) {
+        val zip64EndOffset = directoryOffset + directorySize;
+        end.putInt(0x06064b50)
+            .putLong(44)
+            .putShort((short) VERSION_ZIP64)
+            .putShort((short) VERSION_ZIP64)
+            .putInt(0)
+            .putInt(0)
+            .putLong(written.size())
+            .putLong(written.size())
+            .putLong(directorySize)
+            .putLong(directoryOffset);
+        end.putInt(0x07064b50).putInt(0).putLong(zip64EndOffset).putInt(1);
+      }
+      val entries = (short) Math.min(written.size(), ZIP64_ENTRIES_LIMIT);
+      end.putInt(0x06054b50)
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putShort(entries)
+          .putShort(entries)
+          .putInt((int) Math.min(directorySize, ZIP64_LIMIT))
+          .putInt((int) Math.min(directoryOffset, ZIP64_LIMIT))
+          .putShort((short) 0);
+      return end.flip();
+    }
+
+    private static ByteBuffer centralDirectoryRecord(Written entry) {
+      val offsetZip64 = entry.offset() >= ZIP64_LIMIT;
+      val extraLength = (entry.zip64() ? 16 : 0) + (offsetZip64 ? 8 : 0);
+      val extra = extraLength > 0 ? 4 + extraLength : 0;
+      val version = entry.zip64() || offsetZip64 ? VERSION_ZIP64 : VERSION;
+      val record = allocate(46 + entry.name().length + extra);
+      record
+          .putInt(0x02014b50)
+          .putShort((short) version)
+          .putShort((short) version)
+          .putShort((short) FLAGS)
+          .putShort((short) 0)
+          .putInt((int) entry.dosTime())
+          .putInt((int) entry.crc())
+          .putInt(entry.zip64() ? (int) ZIP64_LIMIT : (int) entry.size())
+          .putInt(entry.zip64() ? (int) ZIP64_LIMIT : (int) entry.size())
+          .putShort((short) entry.name().length)
+          .putShort((short) extra)
+          // No comment, disk 0, no attributes
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putInt(0)
+          .putInt(offsetZip64 ? (int) ZIP64_LIMIT : (int) entry.offset())
+          .put(entry.name());
+      if (extra > 0) {
+        record.putShort((short) 0x0001).putShort((short) extraLength);
+        if (entry.zip64()) record.putLong(entry.size()).putLong(entry.size());
+        if (offsetZip64) record.putLong(entry.offset());
+      }
+      return record.flip();
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+      return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // MS-DOS date and time in local time, with a resolution of two seconds
+    private static long dosTime(Instant instant) {
+      val time = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+      if (time.getYear() < 1980) return (1 << 21) | (1 << 16);
+      return (long) (time.getYear() - 1980) << 25
+          | (long) time.getMonthValue() << 21
+          | (long) time.getDayOfMonth() << 16
+          | (long) time.getHour() << 11
+          | (long) time.getMinute() << 5
+          | (long) time.getSecond() >> 1;
+    }
+  }
+}
@@ -0,0 +1,294 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.files.exceptions.InvalidChunkException;
+import com.instashare.instasharecore.files.util.ContentHash;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@DisplayName("Chunk store tests")
+class ChunkStoreTest {
+
+  private final FakeS3Client s3Client = new FakeS3Client();
+
+  private final BlobIndex blobIndex = mock(BlobIndex.class);
+
+  // Stored blobs and owner ids, see ChunkOwner.id
+  private final Map<String, Blob> stored = new HashMap<>();
+
+  private final Set<String> owners = Collections.synchronizedSet(new HashSet<>());
+
+  private final List<Map<String, Long>> released = Collections.synchronizedList(new ArrayList<>());
+
+  ChunkStoreTest() {
+    when(blobIndex.findByHash(anyString()))
+        .thenAnswer(invocation -> Mono.justOrEmpty(stored.get(invocation.<String>getArgument(0))));
+    when(blobIndex.findAllByHash(any()))
+        .thenAnswer(
+            invocation ->
+                Flux.fromIterable(invocation.<Collection<String>>getArgument(0))
+                    .mapNotNull(stored::get));
+    when(blobIndex.markUploaded(anyString()))
+        .thenAnswer(invocation -> Mono.justOrEmpty(stored.get(invocation.<String>getArgument(0))));
+    when(blobIndex.removeReferences(anyMap()))
+        .thenAnswer(
+            invocation -> {
+              released.add(invocation.getArgument(0));
+              return Mono.empty();
+            });
+  }
+
+  private ChunkStore chunkStore() {
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setBucket("bucket");
+    val storageConfig = new StorageConfigurationProperties();
+    storageConfig.setChunkMinSize(64);
+    storageConfig.setChunkAvgSize(128);
+    storageConfig.setChunkMaxSize(256);
+    val chunkOwnerRepository = mock(ChunkOwnerRepository.class);
+    when(chunkOwnerRepository.findAllById(anyIterable()))
+        .thenAnswer(
+            invocation ->
+                Flux.fromIterable(invocation.<Iterable<String>>getArgument(0))
+                    .filter(owners::contains)
+                    .map(id -> new ChunkOwner(id, id.split(":")[0], id.split(":")[1], null)));
+    when(chunkOwnerRepository.saveAll(anyIterable()))
+        .thenAnswer(
+            invocation ->
+                Flux.fromIterable(invocation.<Iterable<ChunkOwner>>getArgument(0))
+                    .doOnNext(owner -> owners.add(owner.getId())));
+    // Only the read paths use the object reader
+    return new ChunkStore(
+        s3Client,
+        s3Config,
+        storageConfig,
+        blobIndex,
+        new UploadThrottle(s3Config, new SimpleMeterRegistry()),
+        null,
+        chunkOwnerRepository);
+  }
+
+  private void store(String hash, String owner) {
+    stored.put(hash, new Blob(hash, ChunkStore.KEY_PREFIX + hash, 4, 0, Instant.now(), null));
+    if (owner != null) owners.add(ChunkOwner.id(hash, owner));
+  }
+
+  private static String hash(byte[] content) {
+    val digest = ContentHash.newDigest();
+    digest.update(content);
+    return ContentHash.hex(digest);
+  }
+
+  @Test
+  @DisplayName("Chunks other users sent are missing")
+  void missingChunksOfOtherUsers() {
+    store("a", "alice");
+    store("b", "bob");
+
+    val missing = chunkStore().missing("alice", List.of("a", "b", "c")).collectList().block();
+
+    assertThat("Only chunks alice sent must be stored", missing, contains("b", "c"));
+  }
+
+  @Test
+  @DisplayName("Sending the bytes of a stored chunk grants it without uploading it again")
+  void putStoredChunk() {
+    val content = "data".getBytes();
+    val hash = hash(content);
+    store(hash, "bob");
+
+    StepVerifier.create(
+            chunkStore().put("alice", hash, content.length, Flux.just(ByteBuffer.wrap(content))))
+        .expectNextCount(1)
+        .verifyComplete();
+
+    assertThat("The chunk must not be uploaded again", s3Client.keys, is(empty()));
+    assertThat(
+        "The chunk must be granted", owners.contains(ChunkOwner.id(hash, "alice")), is(true));
+    verify(blobIndex).markUploaded(hash);
+  }
+
+  @Test
+  @DisplayName("Knowing the hash of a stored chunk does not grant it")
+  void putStoredChunkWithOtherBytes() {
+    val hash = hash("data".getBytes());
+    store(hash, "bob");
+
+    StepVerifier.create(
+            chunkStore().put("alice", hash, 4, Flux.just(ByteBuffer.wrap("evil".getBytes()))))
+        .expectError(InvalidChunkException.class)
+        .verify(Duration.ofSeconds(5));
+
+    assertThat(
+        "The chunk must not be granted", owners.contains(ChunkOwner.id(hash, "alice")), is(false));
+    verify(blobIndex, never()).markUploaded(anyString());
+  }
+
+  @Test
+  @DisplayName("A new chunk is uploaded without references")
+  void putNewChunk() {
+    val content = "data".getBytes();
+    val hash = hash(content);
+    when(blobIndex.register(eq(hash), anyString(), anyLong(), eq(0)))
+        .thenAnswer(
+            invocation -> {
+              store(hash, null);
+              return Mono.just(stored.get(hash));
+            });
+
+    StepVerifier.create(
+            chunkStore().put("alice", hash, content.length, Flux.just(ByteBuffer.wrap(content))))
+        .expectNextCount(1)
+        .verifyComplete();
+
+    assertThat("The chunk must be uploaded", s3Client.keys.size(), is(1));
+    assertThat(
+        "The chunk must be granted", owners.contains(ChunkOwner.id(hash, "alice")), is(true));
+  }
+
+  @Test
+  @DisplayName("Every occurrence of a chunk in a manifest is a reference")
+  void addReferences() {
+    when(blobIndex.addReferences(Map.of("a", 2L, "b", 1L))).thenReturn(Mono.just(2L));
+
+    assertThat(chunkStore().addReferences(List.of("a", "b", "a")).block(), is(true));
+    assertThat("No reference must be taken back", released, is(empty()));
+  }
+
+  @Test
+  @DisplayName("References are taken back when a chunk of the manifest is gone")
+  void addReferencesOfDeletedChunk() {
+    when(blobIndex.addReferences(Map.of("a", 2L, "b", 1L))).thenReturn(Mono.just(1L));
+
+    assertThat(chunkStore().addReferences(List.of("a", "b", "a")).block(), is(false));
+    assertThat(
+        "The added references must be taken back", released, contains(Map.of("a", 2L, "b", 1L)));
+  }
+
+  @Test
+  @DisplayName("A failed upload takes back the references of its chunks")
+  void storeFailure() {
+    val references = new AtomicInteger();
+    when(blobIndex.addReference(anyString()))
+        .thenAnswer(
+            invocation -> {
+              references.incrementAndGet();
+              String hash = invocation.getArgument(0);
+              return Mono.just(new Blob(hash, hash, 1, 1, Instant.now(), null));
+            });
+    val content = new byte[4096];
+    new Random(0).nextBytes(content);
+    Flux<DataBuffer> failing =
+        Flux.<DataBuffer>just(DefaultDataBufferFactory.sharedInstance.wrap(content))
+            .concatWith(Mono.error(new IllegalStateException("Connection reset")));
+
+    StepVerifier.create(chunkStore().store("alice", failing))
+        .expectError(IllegalStateException.class)
+        .verify(Duration.ofSeconds(5));
+
+    assertThat("Chunks must have been referenced", references.get() > 0, is(true));
+    assertThat(
+        "Every reference must be taken back",
+        released.stream().flatMap(it -> it.values().stream()).mapToLong(Long::longValue).sum(),
+        is((long) references.get()));
+    assertThat("No chunk must be granted", owners, is(empty()));
+  }
+
+  @Test
+  @DisplayName("A chunk stored again after it was reaped does not reuse the reaped object")
+  void storeReapedChunk() {
+    val content = new byte[100];
+    new Random(0).nextBytes(content);
+    val hash = hash(content);
+    // The reaper removed the blob, its object under the old key may still be deleted later
+    val reapedKey = ChunkStore.KEY_PREFIX + hash;
+    when(blobIndex.addReference(hash)).thenReturn(Mono.empty());
+    when(blobIndex.register(eq(hash), anyString(), anyLong()))
+        .thenAnswer(
+            invocation ->
+                Mono.just(new Blob(hash, invocation.getArgument(1), 100, 1, Instant.now(), null)));
+
+    val chunks =
+        chunkStore()
+            .store("alice", Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(content)))
+            .block(Duration.ofSeconds(5));
+
+    assertThat("The chunk must be uploaded again", s3Client.keys, hasSize(1));
+    assertThat(s3Client.keys.get(0), is(not(reapedKey)));
+    assertThat(chunks.get(0).getStorageKey(), is(s3Client.keys.get(0)));
+  }
+
+  // Accepts every object
+  private static class FakeS3Client implements S3AsyncClient {
+    final List<String> keys = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public String serviceName() {
+      return "s3";
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(
+        PutObjectRequest request, AsyncRequestBody requestBody) {
+      keys.add(request.key());
+      return Flux.from(requestBody)
+          .then()
+          .then(
+              Mono.fromSupplier(
+                  () -> {
+                    val response = PutObjectResponse.builder();
+                    response.sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build());
+                    return response.build();
+                  }))
+          .toFuture();
+    }
+  }
+}
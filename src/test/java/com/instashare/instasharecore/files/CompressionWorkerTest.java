@@ -0,0 +1,265 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.CompressionConfigurationProperties;
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.events.DestinationInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.bson.Document;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.MediaType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@DisplayName("Compression worker tests")
+class CompressionWorkerTest {
+
+  private static final byte[] CONTENT = "compress me ".repeat(1000).getBytes();
+
+  private final FakeS3Client s3Client = new FakeS3Client();
+
+  private final FileRepository fileRepository = mock(FileRepository.class);
+
+  private final BlobIndex blobIndex = mock(BlobIndex.class);
+
+  private final ReactiveMongoTemplate mongoTemplate = mock(ReactiveMongoTemplate.class);
+
+  // Queries and updates of the files marked compressed
+  private final List<Query> queries = Collections.synchronizedList(new ArrayList<>());
+
+  private final List<Update> updates = Collections.synchronizedList(new ArrayList<>());
+
+  private final File raw =
+      File.builder()
+          .id("file-key")
+          .fileName("notes.txt")
+          .owner("owner")
+          .fileStatus(FileStatus.RAW)
+          .size((long) CONTENT.length)
+          .mimeType(MediaType.TEXT_PLAIN_VALUE)
+          .contentHash("raw-hash")
+          .storageKey("raw-key")
+          .storageMode(StorageMode.OBJECT)
+          .lastModified(Instant.now())
+          .build();
+
+  CompressionWorkerTest() {
+    when(blobIndex.register(anyString(), anyString(), anyLong()))
+        .thenAnswer(
+            invocation ->
+                Mono.just(
+                    new Blob(
+                        invocation.getArgument(0),
+                        invocation.getArgument(1),
+                        invocation.getArgument(2),
+                        1,
+                        Instant.now(),
+                        Instant.now())));
+    when(blobIndex.removeReference(anyString())).thenReturn(Mono.empty());
+  }
+
+  // Collaborators the compression of an object does not reach are left out
+  private CompressionWorker worker() {
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setBucket("bucket");
+    val storageConfig = new StorageConfigurationProperties();
+    // Compressed content goes to S3 as a blob
+    storageConfig.setInlineThreshold(0);
+    storageConfig.setPackingEnabled(false);
+    val objectReader = mock(ObjectReader.class);
+    when(objectReader.read("raw-key")).thenReturn(Flux.just(ByteBuffer.wrap(CONTENT)));
+    val meterRegistry = new SimpleMeterRegistry();
+    val fileService =
+        new S3BackedFileService(
+            s3Client,
+            s3Config,
+            fileRepository,
+            null,
+            new DestinationInfo("exchange", "routing-key"),
+            new UploadThrottle(s3Config, meterRegistry),
+            new PartSizeAdvisor(s3Config),
+            blobIndex,
+            null,
+            mongoTemplate,
+            new CompressionConfigurationProperties(),
+            storageConfig,
+            null,
+            null,
+            objectReader,
+            null);
+    return new CompressionWorker(fileService);
+  }
+
+  // Stores the file as it was read, renamed files no longer match the query of their old name
+  private void markCompressed(boolean renamed) {
+    when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(), eq(File.class)))
+        .thenAnswer(
+            invocation -> {
+              Query query = invocation.getArgument(0);
+              queries.add(query);
+              updates.add(invocation.getArgument(1));
+              return renamed && query.getQueryObject().containsKey("fileName")
+                  ? Mono.empty()
+                  : Mono.just(raw);
+            });
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    try (val input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return input.readAllBytes();
+    }
+  }
+
+  @Test
+  @DisplayName("RAW files are compressed and point at the compressed blob")
+  void compress() throws IOException {
+    when(fileRepository.findById("file-key")).thenReturn(Mono.just(raw));
+    markCompressed(false);
+
+    worker().onFileUploaded("file-key");
+
+    assertThat("One compressed object must be stored", s3Client.objects.size(), is(1));
+    val compressed = s3Client.objects.values().iterator().next();
+    assertThat("Content must be compressed", compressed.length < CONTENT.length, is(true));
+    assertThat("Content must be preserved", gunzip(compressed), is(CONTENT));
+    assertThat("The file must be updated once", updates, hasSize(1));
+    val set = (Document) updates.get(0).getUpdateObject().get("$set");
+    assertThat(set.get("fileStatus"), is(FileStatus.COMPRESSED));
+    assertThat(set.get("fileName"), is("notes.txt.gz"));
+    verify(blobIndex)
+        .register(
+            eq(set.get("storedHash").toString()), eq(set.get("storageKey").toString()), anyLong());
+    assertThat(
+        "The hash of the uploaded bytes must be kept for createFromHash",
+        set.containsKey("contentHash"),
+        is(false));
+    // The RAW content is no longer referenced by the file
+    verify(blobIndex).removeReference("raw-hash");
+  }
+
+  @Test
+  @DisplayName("A file renamed while it is compressed keeps its new name")
+  void renamedWhileCompressed() {
+    when(fileRepository.findById("file-key")).thenReturn(Mono.just(raw));
+    markCompressed(true);
+
+    worker().onFileUploaded("file-key");
+
+    assertThat("The file must be updated again without the rename", updates, hasSize(2));
+    assertThat(queries.get(0).getQueryObject().get("fileName"), is("notes.txt"));
+    val set = (Document) updates.get(1).getUpdateObject().get("$set");
+    assertThat("The new name must be kept", set.containsKey("fileName"), is(false));
+    assertThat(set.get("fileStatus"), is(FileStatus.COMPRESSED));
+    verify(blobIndex).removeReference("raw-hash");
+  }
+
+  @Test
+  @DisplayName("Files that are not RAW anymore are acknowledged without compressing them")
+  void nothingToCompress() {
+    when(fileRepository.findById("file-key")).thenReturn(Mono.empty());
+
+    worker().onFileUploaded("file-key");
+
+    assertThat("Nothing must be stored", s3Client.objects.size(), is(0));
+  }
+
+  @Test
+  @DisplayName("Packed files are marked stored without rewriting them")
+  void skipPacked() {
+    val packed =
+        raw.toBuilder().storageMode(StorageMode.PACKED).packId("pack").packOffset(0L).build();
+    when(fileRepository.findById("file-key")).thenReturn(Mono.just(packed));
+    markCompressed(false);
+
+    worker().onFileUploaded("file-key");
+
+    assertThat("Nothing must be stored", s3Client.objects.size(), is(0));
+    assertThat(updates, hasSize(1));
+    val set = (Document) updates.get(0).getUpdateObject().get("$set");
+    assertThat(set.get("fileStatus"), is(FileStatus.STORED));
+  }
+
+  @Test
+  @DisplayName("Files that cannot be compressed are rejected without requeueing them")
+  void rejectFailures() {
+    when(fileRepository.findById("file-key")).thenReturn(Mono.just(raw));
+    when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(), eq(File.class)))
+        .thenReturn(Mono.error(new IllegalStateException("Mongo is down")));
+
+    assertThrows(
+        AmqpRejectAndDontRequeueException.class, () -> worker().onFileUploaded("file-key"));
+    verify(blobIndex, never()).removeReference("raw-hash");
+  }
+
+  // Keeps every object put
+  private static class FakeS3Client implements S3AsyncClient {
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    @Override
+    public String serviceName() {
+      return "s3";
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(
+        PutObjectRequest request, AsyncRequestBody requestBody) {
+      val output = new ByteArrayOutputStream();
+      return Flux.from(requestBody)
+          .doOnNext(
+              buffer -> {
+                val bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                output.writeBytes(bytes);
+              })
+          .then(
+              Mono.fromSupplier(
+                  () -> {
+                    objects.put(request.key(), output.toByteArray());
+                    val response = PutObjectResponse.builder().eTag("\"etag\"");
+                    response.sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build());
+                    return response.build();
+                  }))
+          .toFuture();
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfig;
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.util.NettyLeakDetectionExtension;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ResourceLeakDetector;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import reactor.core.publisher.Flux;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.resources.ConnectionProvider;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Allocation profile of object downloads: heap bytes allocated per MB read through the SDK and
+ * through {@link ObjectReader#readDirect}, from a local server standing in for S3.
+ */
+@DisplayName("Direct read allocation tests")
+@ExtendWith(NettyLeakDetectionExtension.class)
+@Slf4j
+class DirectReadAllocationTest {
+
+  private static final int MB = 1024 * 1024;
+
+  private static final int OBJECT_SIZE = 64 * MB;
+
+  private final ByteBuf chunk = Unpooled.directBuffer(MB).writeZero(MB);
+
+  private DisposableServer server;
+
+  private S3AsyncClient s3Client;
+
+  private S3Presigner s3Presigner;
+
+  private ConnectionProvider connectionProvider;
+
+  private ObjectReader objectReader;
+
+  @BeforeEach
+  void setUp() {
+    server =
+        HttpServer.create()
+            .port(0)
+            .handle(
+                (request, response) ->
+                    response
+                        .header(HttpHeaders.CONTENT_LENGTH, Integer.toString(OBJECT_SIZE))
+                        .header(HttpHeaders.CONTENT_TYPE, "application/octet-stream")
+                        .send(Flux.range(0, OBJECT_SIZE / MB).map(i -> chunk.retainedDuplicate())))
+            .bindNow();
+    val endpoint = URI.create("http://localhost:" + server.port());
+    val credentials = StaticCredentialsProvider.create(AwsBasicCredentials.create("id", "secret"));
+    val pathStyle = S3Configuration.builder().pathStyleAccessEnabled(true).build();
+    s3Client =
+        S3AsyncClient.builder()
+            .region(Region.US_EAST_1)
+            .endpointOverride(endpoint)
+            .credentialsProvider(credentials)
+            .serviceConfiguration(pathStyle)
+            .build();
+    s3Presigner =
+        S3Presigner.builder()
+            .region(Region.US_EAST_1)
+            .endpointOverride(endpoint)
+            .credentialsProvider(credentials)
+            .serviceConfiguration(pathStyle)
+            .build();
+
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setBucket("bucket");
+    val storageConfig = new StorageConfigurationProperties();
+    // One GET on both paths
+    storageConfig.setDownloadConcurrency(1);
+    val meterRegistry = new SimpleMeterRegistry();
+    val s3ClientConfig = new S3ClientConfig();
+    connectionProvider = s3ClientConfig.s3ConnectionProvider(s3Config);
+    objectReader =
+        new ObjectReader(
+            s3Client,
+            s3Config,
+            storageConfig,
+            new ObjectCache(storageConfig, meterRegistry),
+            new SharedReads(storageConfig, meterRegistry),
+            s3Presigner,
+            s3ClientConfig.s3HttpClient(s3Config, connectionProvider));
+  }
+
+  @AfterEach
+  void tearDown() {
+    s3Client.close();
+    s3Presigner.close();
+    connectionProvider.dispose();
+    server.disposeNow();
+    chunk.release();
+  }
+
+  // Heap bytes allocated by every thread, including the event loops of both HTTP clients
+  private static long allocatedBytes() {
+    val threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return Arrays.stream(threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+        .filter(bytes -> bytes > 0)
+        .sum();
+  }
+
+  // Reads the object twice to warm up, then once more to measure
+  private static long allocatedPerMb(Supplier<Flux<Integer>> read) {
+    for (int i = 0; i < 2; i++) read.get().blockLast(Duration.ofSeconds(30));
+    val before = allocatedBytes();
+    val length = read.get().reduce(0L, Long::sum).block(Duration.ofSeconds(30));
+    val allocated = allocatedBytes() - before;
+    assertThat("The whole object must be read", length, is((long) OBJECT_SIZE));
+    return allocated / (OBJECT_SIZE / MB);
+  }
+
+  private Flux<Integer> readDirect() {
+    return objectReader
+        .readDirect("key", OBJECT_SIZE, "application/octet-stream")
+        // Like a response, which releases every buffer once written
+        .map(
+            buffer -> {
+              val length = buffer.readableByteCount();
+              DataBufferUtils.release(buffer);
+              return length;
+            });
+  }
+
+  @Test
+  @DisplayName("Direct reads hand on every buffer to be released")
+  void release() {
+    // Leaks are reported by the extension
+    val length = readDirect().reduce(0L, Long::sum).block(Duration.ofSeconds(30));
+
+    assertThat("The whole object must be read", length, is((long) OBJECT_SIZE));
+  }
+
+  @Test
+  @DisplayName("Direct reads allocate a fraction of what SDK reads do")
+  void allocationPerMb() {
+    // Paranoid leak detection records a stack trace on every buffer access
+    val leakDetection = ResourceLeakDetector.getLevel();
+    ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.DISABLED);
+    long sdk;
+    long direct;
+    try {
+      sdk = allocatedPerMb(() -> objectReader.read("key").map(ByteBuffer::remaining));
+      direct = allocatedPerMb(this::readDirect);
+    } finally {
+      ResourceLeakDetector.setLevel(leakDetection);
+    }
+    log.info("Heap bytes allocated per MB downloaded: SDK {}, direct {}.", sdk, direct);
+
+    // Measured on a 64MB object: SDK about 1,207,000 bytes per MB, direct about 22,000
+    assertThat("SDK reads copy every byte into the heap", sdk, greaterThan((long) MB));
+    assertThat("Direct reads must not copy into the heap", direct, lessThan(sdk / 4));
+    assertThat("Direct reads allocate per buffer, not per byte", direct, lessThan((long) MB / 16));
+  }
+}
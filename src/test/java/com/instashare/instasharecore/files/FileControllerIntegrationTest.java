@@ -7,37 +7,55 @@ import org.hamcrest.Matchers;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.MultipartBodyBuilder;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 import org.testcontainers.shaded.org.apache.commons.lang3.RandomStringUtils;
 import reactor.core.publisher.Mono;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipFile;
 
 import static java.lang.String.format;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.testcontainers.shaded.org.apache.commons.lang3.RandomStringUtils.randomAlphabetic;
 import static org.testcontainers.shaded.org.apache.commons.lang3.RandomStringUtils.randomAlphanumeric;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 @Testcontainers
+@ExtendWith(NettyLeakDetectionExtension.class)
 @DisplayName("File tests")
 class FileControllerIntegrationTest {
 
@@ -228,22 +246,375 @@ class FileControllerIntegrationTest {
   }
 
   @Test
-  @DisplayName(
-      "An error should be thrown when attempting to upload a file (simple) without content-length header")
+  @DisplayName("User can upload files (simple) without content-length header")
   void uploadWithoutContentLengthSimple() {
+    // Without a Content-Length the body is sent with chunked transfer encoding
+    val content = DataBufferUtils.read(sampleFile, DefaultDataBufferFactory.sharedInstance, 1024);
     val response =
         webClient
             .post()
             .uri(
                 format(
                     "http://localhost:%d/v1/files?filename=%s",
-                    serverPort, sampleFile.getFilename()))
+                    serverPort, randomAlphabetic(10) + "-" + sampleFile.getFilename()))
             .header("Authorization", "Bearer " + validAccessToken)
             .contentType(MediaType.TEXT_PLAIN)
-            .exchangeToMono(clientResponse -> Mono.just(clientResponse.statusCode()))
+            .body(BodyInserters.fromDataBuffers(content))
+            .retrieve()
+            .bodyToMono(UploadResultCompleted.class)
             .timeout(Duration.ofSeconds(10));
-    val statusCode = response.block();
-    assertThat("Bad request must be returned", statusCode, is(HttpStatus.BAD_REQUEST));
+    val uploadResult = response.block();
+    assertThat(
+        "Upload status must be COMPLETED", uploadResult.uploadStatus, is(UploadStatus.COMPLETED));
+  }
+
+  @Test
+  @DisplayName("User can upload files as chunks and download them")
+  void uploadChunked() throws IOException {
+    val uploadResult =
+        webClient
+            .post()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/files?filename=%s&chunked=true",
+                    serverPort, randomAlphabetic(10) + "-" + sampleFile.getFilename()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .contentType(MediaType.TEXT_PLAIN)
+            .contentLength(sampleFile.contentLength())
+            .body(BodyInserters.fromResource(sampleFile))
+            .retrieve()
+            .bodyToMono(UploadResultCompleted.class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat(
+        "Upload status must be COMPLETED", uploadResult.uploadStatus, is(UploadStatus.COMPLETED));
+
+    // Chunked files are not compressed, so they can be downloaded right away
+    val downloaded =
+        webClient
+            .get()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/files/%s",
+                    serverPort, uploadResult.uploadResultContent.keys.get(0)))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .retrieve()
+            .bodyToMono(byte[].class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat(
+        "Content must be preserved",
+        Arrays.equals(downloaded, sampleFile.getInputStream().readAllBytes()),
+        is(true));
+  }
+
+  @Test
+  @DisplayName("User can download a byte range of a file")
+  void downloadRange() throws IOException {
+    val uploadResult =
+        webClient
+            .post()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/files?filename=%s&chunked=true",
+                    serverPort, randomAlphabetic(10) + "-" + sampleFile.getFilename()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .contentType(MediaType.TEXT_PLAIN)
+            .contentLength(sampleFile.contentLength())
+            .body(BodyInserters.fromResource(sampleFile))
+            .retrieve()
+            .bodyToMono(UploadResultCompleted.class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    val content = sampleFile.getInputStream().readAllBytes();
+
+    val response =
+        webClient
+            .get()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/files/%s",
+                    serverPort, uploadResult.uploadResultContent.keys.get(0)))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .header(HttpHeaders.RANGE, "bytes=1-3")
+            .retrieve()
+            .toEntity(byte[].class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat(
+        "Status must be PARTIAL_CONTENT", response.getStatusCode(), is(HttpStatus.PARTIAL_CONTENT));
+    assertThat(
+        "Content-Range must describe the range",
+        response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE),
+        is("bytes 1-3/" + content.length));
+    assertThat(
+        "Only the range must be sent",
+        Arrays.equals(response.getBody(), Arrays.copyOfRange(content, 1, 4)),
+        is(true));
+  }
+
+  @Test
+  @DisplayName("Unchanged files are answered with NOT_MODIFIED, failed If-Match with 412")
+  void downloadNotModified() throws IOException {
+    val uploadResult =
+        webClient
+            .post()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/files?filename=%s&chunked=true",
+                    serverPort, randomAlphabetic(10) + "-" + sampleFile.getFilename()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .contentType(MediaType.TEXT_PLAIN)
+            .contentLength(sampleFile.contentLength())
+            .body(BodyInserters.fromResource(sampleFile))
+            .retrieve()
+            .bodyToMono(UploadResultCompleted.class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    val uri =
+        format(
+            "http://localhost:%d/v1/files/%s",
+            serverPort, uploadResult.uploadResultContent.keys.get(0));
+
+    val response =
+        webClient
+            .get()
+            .uri(uri)
+            .header("Authorization", "Bearer " + validAccessToken)
+            .retrieve()
+            .toEntity(byte[].class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    val etag = response.getHeaders().getETag();
+    assertThat("ETag must be sent", etag, notNullValue());
+    assertThat(
+        "Last-Modified must be sent", response.getHeaders().getLastModified(), greaterThan(0L));
+
+    val status =
+        webClient
+            .get()
+            .uri(uri)
+            .header("Authorization", "Bearer " + validAccessToken)
+            .header(HttpHeaders.IF_NONE_MATCH, etag)
+            .exchangeToMono(it -> it.releaseBody().thenReturn(it.statusCode()))
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat("Status must be NOT_MODIFIED", status, is(HttpStatus.NOT_MODIFIED));
+
+    val failed =
+        webClient
+            .get()
+            .uri(uri)
+            .header("Authorization", "Bearer " + validAccessToken)
+            .header(HttpHeaders.IF_MATCH, "\"other\"")
+            .exchangeToMono(it -> it.releaseBody().thenReturn(it.statusCode()))
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat("Status must be PRECONDITION_FAILED", failed, is(HttpStatus.PRECONDITION_FAILED));
+  }
+
+  @Test
+  @DisplayName("User can be redirected to download a file from S3")
+  void downloadRedirect() {
+    val file =
+        fileRepository
+            .save(
+                File.builder()
+                    .id(UUID.randomUUID().toString())
+                    .fileName(randomAlphabetic(10) + ".txt")
+                    .owner(validUser.email())
+                    .fileStatus(FileStatus.STORED)
+                    .size(6L)
+                    .mimeType(MediaType.TEXT_PLAIN_VALUE)
+                    .storageMode(StorageMode.OBJECT)
+                    .build())
+            .block();
+
+    val response =
+        webClient
+            .get()
+            .uri(format("http://localhost:%d/v1/files/%s?redirect=true", serverPort, file.getId()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .exchangeToMono(ClientResponse::toBodilessEntity)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat("Status must be FOUND", response.getStatusCode(), is(HttpStatus.FOUND));
+    val location = response.getHeaders().getLocation().toString();
+    assertThat("Location must point at the object", location, containsString(file.getId()));
+    assertThat("Location must be presigned", location, containsString("X-Amz-Signature"));
+  }
+
+  @Test
+  @DisplayName("User can download several files as one ZIP archive")
+  void downloadArchive() throws IOException {
+    val fileNames = List.of(randomAlphabetic(10) + ".txt", randomAlphabetic(10) + ".txt");
+    val fileKeys =
+        List.of(
+            uploadSample(fileNames.get(0), false).uploadResultContent.keys.get(0),
+            uploadSample(fileNames.get(1), true).uploadResultContent.keys.get(0));
+    val content = sampleFile.getInputStream().readAllBytes();
+
+    val response =
+        webClient
+            .get()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/files/archive?ids=%s",
+                    serverPort, String.join(",", fileKeys)))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .retrieve()
+            .toEntity(byte[].class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat("Status must be OK", response.getStatusCode(), is(HttpStatus.OK));
+    assertThat(
+        "Content type must be ZIP",
+        response.getHeaders().getContentType().toString(),
+        is("application/zip"));
+
+    // Entries are followed by data descriptors, which only the central directory describes
+    val archive = Files.createTempFile("archive", ".zip");
+    Files.write(archive, response.getBody());
+    try (val zipFile = new ZipFile(archive.toFile())) {
+      val entries = Collections.list(zipFile.entries());
+      assertThat("Every file must be archived", entries.size(), is(2));
+      for (int i = 0; i < entries.size(); i++) {
+        val entry = entries.get(i);
+        assertThat("Entries must keep the requested order", entry.getName(), is(fileNames.get(i)));
+        try (val input = zipFile.getInputStream(entry)) {
+          assertThat(
+              "Content must be preserved", Arrays.equals(input.readAllBytes(), content), is(true));
+        }
+      }
+    } finally {
+      Files.delete(archive);
+    }
+
+    val missing =
+        webClient
+            .get()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/files/archive?ids=%s,%s",
+                    serverPort, fileKeys.get(0), UUID.randomUUID()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .exchangeToMono(ClientResponse::toBodilessEntity)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat(
+        "Unknown files must fail the request", missing.getStatusCode(), is(HttpStatus.NOT_FOUND));
+  }
+
+  private UploadResultCompleted uploadSample(String fileName, boolean compress)
+      throws IOException {
+    return webClient
+        .post()
+        .uri(
+            format(
+                "http://localhost:%d/v1/files?filename=%s&compress=%s",
+                serverPort, fileName, compress))
+        .header("Authorization", "Bearer " + validAccessToken)
+        .contentType(MediaType.TEXT_PLAIN)
+        .contentLength(sampleFile.contentLength())
+        .body(BodyInserters.fromResource(sampleFile))
+        .retrieve()
+        .bodyToMono(UploadResultCompleted.class)
+        .timeout(Duration.ofSeconds(10))
+        .block();
+  }
+
+  @Test
+  @DisplayName("Files compressed on upload can be downloaded right away")
+  void uploadCompressed() throws IOException {
+    val uploadResult =
+        webClient
+            .post()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/files?filename=%s&compress=true",
+                    serverPort, randomAlphabetic(10) + "-" + sampleFile.getFilename()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .contentType(MediaType.TEXT_PLAIN)
+            .contentLength(sampleFile.contentLength())
+            .body(BodyInserters.fromResource(sampleFile))
+            .retrieve()
+            .bodyToMono(UploadResultCompleted.class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    val fileKey = uploadResult.uploadResultContent.keys.get(0);
+    val file = fileRepository.findByIdAndOwner(fileKey, validUser.email()).block();
+    assertThat("File must be COMPRESSED", file.getFileStatus(), is(FileStatus.COMPRESSED));
+    assertThat("Original size must be kept", file.getSize(), is(sampleFile.contentLength()));
+    val content = sampleFile.getInputStream().readAllBytes();
+
+    // Clients that do not accept gzip get the content decompressed
+    val decoded =
+        webClient
+            .get()
+            .uri(format("http://localhost:%d/v1/files/%s", serverPort, fileKey))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .retrieve()
+            .toEntity(byte[].class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat("Content must be preserved", Arrays.equals(decoded.getBody(), content), is(true));
+    assertThat(
+        "Original name must be used",
+        decoded.getHeaders().getContentDisposition().getFilename(),
+        is(file.getFileName().substring(0, file.getFileName().length() - ".gz".length())));
+
+    val encoded =
+        webClient
+            .get()
+            .uri(format("http://localhost:%d/v1/files/%s", serverPort, fileKey))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+            .retrieve()
+            .toEntity(byte[].class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat(
+        "Stored bytes must be sent gzip encoded",
+        encoded.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING),
+        is("gzip"));
+    try (val input = new GZIPInputStream(new ByteArrayInputStream(encoded.getBody()))) {
+      assertThat(
+          "Content must be preserved", Arrays.equals(input.readAllBytes(), content), is(true));
+    }
+  }
+
+  @Test
+  @DisplayName("Tiny files are stored inline and can be downloaded right away")
+  void uploadInline() {
+    val content = "abc".getBytes();
+    val uploadResult =
+        webClient
+            .post()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/files?filename=%s",
+                    serverPort, randomAlphabetic(10) + ".txt"))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .contentType(MediaType.TEXT_PLAIN)
+            .bodyValue(content)
+            .retrieve()
+            .bodyToMono(UploadResultCompleted.class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    val fileKey = uploadResult.uploadResultContent.keys.get(0);
+    val file = fileRepository.findByIdAndOwner(fileKey, validUser.email()).block();
+    assertThat("File must be INLINE", file.getStorageMode(), is(StorageMode.INLINE));
+
+    val downloaded =
+        webClient
+            .get()
+            .uri(format("http://localhost:%d/v1/files/%s", serverPort, fileKey))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .retrieve()
+            .bodyToMono(byte[].class)
+            .timeout(Duration.ofSeconds(10))
+            .block();
+    assertThat("Content must be preserved", Arrays.equals(downloaded, content), is(true));
   }
 
   @Test
@@ -267,9 +638,159 @@ class FileControllerIntegrationTest {
         "Upload status must be COMPLETED", uploadResult.uploadStatus, is(UploadStatus.COMPLETED));
   }
 
+  @Test
+  @DisplayName("Files of a multipart upload whose name is in use are skipped")
+  void uploadMultipartSkipsNamesInUse() {
+    val builder = new MultipartBodyBuilder();
+    builder.part("file", sampleFile).filename(existingFileName);
+    builder.part("file", sampleFile).filename(randomAlphabetic(10) + ".txt");
+
+    val uploadResult =
+        webClient
+            .post()
+            .uri(format("http://localhost:%d/v1/files", serverPort))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .body(BodyInserters.fromMultipartData(builder.build()))
+            .retrieve()
+            .bodyToMono(UploadResultCompleted.class)
+            .timeout(Duration.ofSeconds(50))
+            .block();
+    assertThat(
+        "Upload status must be COMPLETED", uploadResult.uploadStatus, is(UploadStatus.COMPLETED));
+    assertThat(
+        "Only the new file must be stored", uploadResult.uploadResultContent.keys.size(), is(1));
+  }
+
+  @Test
+  @DisplayName("User can create a file from content already stored without uploading it")
+  void createFromHash() throws IOException, NoSuchAlgorithmException {
+    val sha256 =
+        HexFormat.of()
+            .formatHex(
+                MessageDigest.getInstance("SHA-256")
+                    .digest(sampleFile.getInputStream().readAllBytes()));
+    val response =
+        webClient
+            .post()
+            .uri(format("http://localhost:%d/v1/files/by-hash", serverPort))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .bodyValue(new CreateFromHashRequest(randomAlphabetic(10), sha256))
+            .exchangeToMono(clientResponse -> Mono.just(clientResponse.statusCode()))
+            .timeout(Duration.ofSeconds(2));
+    assertThat("Should be 201", response.block(), is(HttpStatus.CREATED));
+  }
+
+  @Test
+  @DisplayName("User cannot create a file from content only another user stores")
+  void createFromHashOfOtherUser() throws IOException, NoSuchAlgorithmException {
+    val otherUser = new User(randomAlphabetic(6) + "@gmail.com", "1234");
+    userService.save(otherUser.email(), otherUser.password()).block();
+    val otherAccessToken =
+        webClient
+            .post()
+            .uri(format("http://localhost:%d/v1/signin", serverPort))
+            .bodyValue(new SignInRequest(otherUser.email(), otherUser.password()))
+            .retrieve()
+            .bodyToMono(SignInResponse.class)
+            .timeout(Duration.ofSeconds(2))
+            .block()
+            .accessToken();
+    // Stored by the user of setup()
+    val sha256 =
+        HexFormat.of()
+            .formatHex(
+                MessageDigest.getInstance("SHA-256")
+                    .digest(sampleFile.getInputStream().readAllBytes()));
+    val response =
+        webClient
+            .post()
+            .uri(format("http://localhost:%d/v1/files/by-hash", serverPort))
+            .header("Authorization", "Bearer " + otherAccessToken)
+            .bodyValue(new CreateFromHashRequest(randomAlphabetic(10), sha256))
+            .exchangeToMono(clientResponse -> Mono.just(clientResponse.statusCode()))
+            .timeout(Duration.ofSeconds(2));
+    assertThat("Should be 404", response.block(), is(HttpStatus.NOT_FOUND));
+  }
+
+  @Test
+  @DisplayName("Chunks of other users are missing and cannot be used in a manifest")
+  void createChunkedFromChunksOfOtherUser() throws IOException, NoSuchAlgorithmException {
+    webClient
+        .post()
+        .uri(
+            format(
+                "http://localhost:%d/v1/files?filename=%s&chunked=true",
+                serverPort, randomAlphabetic(10) + "-" + sampleFile.getFilename()))
+        .header("Authorization", "Bearer " + validAccessToken)
+        .contentType(MediaType.TEXT_PLAIN)
+        .contentLength(sampleFile.contentLength())
+        .body(BodyInserters.fromResource(sampleFile))
+        .retrieve()
+        .bodyToMono(UploadResultCompleted.class)
+        .timeout(Duration.ofSeconds(10))
+        .block();
+    val otherUser = new User(randomAlphabetic(6) + "@gmail.com", "1234");
+    userService.save(otherUser.email(), otherUser.password()).block();
+    val otherAccessToken =
+        webClient
+            .post()
+            .uri(format("http://localhost:%d/v1/signin", serverPort))
+            .bodyValue(new SignInRequest(otherUser.email(), otherUser.password()))
+            .retrieve()
+            .bodyToMono(SignInResponse.class)
+            .timeout(Duration.ofSeconds(2))
+            .block()
+            .accessToken();
+    // The sample file is smaller than a chunk
+    val chunks =
+        List.of(
+            HexFormat.of()
+                .formatHex(
+                    MessageDigest.getInstance("SHA-256")
+                        .digest(sampleFile.getInputStream().readAllBytes())));
+
+    val missing =
+        webClient
+            .post()
+            .uri(format("http://localhost:%d/v1/chunks/missing", serverPort))
+            .header("Authorization", "Bearer " + otherAccessToken)
+            .bodyValue(new ChunkListRequest(chunks))
+            .retrieve()
+            .bodyToMono(MissingChunksResponse.class)
+            .timeout(Duration.ofSeconds(2))
+            .block();
+    assertThat("Chunks of other users must be missing", missing.missing(), is(chunks));
+
+    val status =
+        webClient
+            .post()
+            .uri(format("http://localhost:%d/v1/files/chunked", serverPort))
+            .header("Authorization", "Bearer " + otherAccessToken)
+            .bodyValue(new CreateChunkedFileRequest(randomAlphabetic(10), null, chunks))
+            .exchangeToMono(clientResponse -> Mono.just(clientResponse.statusCode()))
+            .timeout(Duration.ofSeconds(2))
+            .block();
+    assertThat("Should be 404", status, is(HttpStatus.NOT_FOUND));
+  }
+
+  @Test
+  @DisplayName("Creating a file from unknown content must fail")
+  void createFromUnknownHash() {
+    val response =
+        webClient
+            .post()
+            .uri(format("http://localhost:%d/v1/files/by-hash", serverPort))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .bodyValue(new CreateFromHashRequest(randomAlphabetic(10), "0".repeat(64)))
+            .exchangeToMono(clientResponse -> Mono.just(clientResponse.statusCode()))
+            .timeout(Duration.ofSeconds(2));
+    assertThat("Should be 404", response.block(), is(HttpStatus.NOT_FOUND));
+  }
+
   @Test
   @DisplayName(
-      "When counting the number of files of a user owning just one file, then one must be retrieved")
+      "When counting the number of files of a user owning just one file, then one must be"
+          + " retrieved")
   void countShouldBeEqualToOne() {
     val response =
         webClient
@@ -293,4 +814,12 @@ class FileControllerIntegrationTest {
       UploadStatus uploadStatus, UploadResultContentCompleted uploadResultContent) {}
 
   record RenameFileRequest(String newName) {}
+
+  record CreateFromHashRequest(String fileName, String sha256) {}
+
+  record ChunkListRequest(List<String> chunks) {}
+
+  record MissingChunksResponse(List<String> missing) {}
+
+  record CreateChunkedFileRequest(String fileName, String mimeType, List<String> chunks) {}
 }
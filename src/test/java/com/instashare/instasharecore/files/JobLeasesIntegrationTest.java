@@ -0,0 +1,93 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.util.MyMongoDbContainer;
+import com.mongodb.reactivestreams.client.MongoClients;
+import lombok.val;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+@Testcontainers
+@DisplayName("Job lease tests")
+class JobLeasesIntegrationTest {
+
+  @Container static MyMongoDbContainer mongo = MyMongoDbContainer.getInstance();
+
+  private ReactiveMongoTemplate mongoTemplate;
+
+  private String job;
+
+  @BeforeEach
+  void setup() {
+    mongoTemplate =
+        new ReactiveMongoTemplate(MongoClients.create(mongo.getConnectionString()), "instashare");
+    job = UUID.randomUUID().toString();
+  }
+
+  @Test
+  @DisplayName("A job runs on one node at a time")
+  void exclusive() {
+    val node = new JobLeases(mongoTemplate);
+    val other = new JobLeases(mongoTemplate);
+
+    val ran =
+        node.runExclusively(
+                job,
+                Duration.ofMinutes(1),
+                other.runExclusively(job, Duration.ofMinutes(1), Mono.just("other")))
+            .defaultIfEmpty("none")
+            .block();
+
+    assertThat("The other node must skip the run", ran, is("none"));
+  }
+
+  @Test
+  @DisplayName("A finished run keeps its lease for the interval")
+  void keptAfterRun() {
+    val node = new JobLeases(mongoTemplate);
+    val other = new JobLeases(mongoTemplate);
+    node.runExclusively(job, Duration.ofMinutes(1), Mono.just("node")).block();
+
+    val ran =
+        other
+            .runExclusively(job, Duration.ofMinutes(1), Mono.just("other"))
+            .defaultIfEmpty("none")
+            .block();
+
+    assertThat("The other node must skip the next run", ran, is("none"));
+    assertThat(
+        "The node must run the job again",
+        node.runExclusively(job, Duration.ofMinutes(1), Mono.just("node")).block(),
+        is("node"));
+  }
+
+  @Test
+  @DisplayName("Leases of nodes that died expire")
+  void expired() throws InterruptedException {
+    val dead = new JobLeases(mongoTemplate);
+    val other = new JobLeases(mongoTemplate);
+    assertThat(
+        "The lease must be taken", dead.acquire(job, Duration.ofMillis(100)).block(), is(true));
+    assertThat(
+        "A held lease must not be taken",
+        other.acquire(job, Duration.ofMinutes(1)).block(),
+        is(false));
+
+    Thread.sleep(200);
+
+    assertThat(
+        "An expired lease must be taken",
+        other.acquire(job, Duration.ofMinutes(1)).block(),
+        is(true));
+  }
+}
@@ -0,0 +1,164 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsResponse;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsResponse;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.Part;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.paginators.ListMultipartUploadsPublisher;
+import software.amazon.awssdk.services.s3.paginators.ListPartsPublisher;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@DisplayName("Multipart upload reaper tests")
+class MultipartUploadReaperTest {
+
+  private final FakeS3Client s3Client = new FakeS3Client();
+
+  private final Set<String> sessionUploadIds = new HashSet<>();
+
+  private MultipartUploadReaper reaper() {
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setBucket("bucket");
+    s3Config.setAbandonedUploadMaxAge(Duration.ofHours(1));
+    s3Config.setReaperBatchSize(2);
+    val uploadSessionRepository = mock(UploadSessionRepository.class);
+    when(uploadSessionRepository.existsByUploadId(anyString()))
+        .thenAnswer(invocation -> Mono.just(sessionUploadIds.contains(invocation.getArgument(0))));
+    // Only the scheduled run takes the lease
+    return new MultipartUploadReaper(s3Client, s3Config, uploadSessionRepository, null);
+  }
+
+  @Test
+  @DisplayName("Old uploads without a session are aborted")
+  void reapAbandonedUploads() {
+    val old = Instant.now().minus(Duration.ofDays(2));
+    s3Client.upload("abandoned-1", old, 100, 50);
+    s3Client.upload("abandoned-2", old, 10);
+    s3Client.upload("abandoned-3", old);
+    s3Client.upload("recent", Instant.now(), 100);
+    s3Client.upload("resumable", old, 100);
+    sessionUploadIds.add("resumable");
+
+    val result = reaper().reapAbandonedUploads().block();
+
+    assertThat(
+        "Only abandoned uploads must be aborted",
+        s3Client.aborted,
+        containsInAnyOrder("abandoned-1", "abandoned-2", "abandoned-3"));
+    assertThat("Aborted uploads must be counted", result.uploads(), is(3L));
+    assertThat("Bytes of their parts must be counted", result.bytes(), is(160L));
+  }
+
+  @Test
+  @DisplayName("Uploads that cannot be aborted are skipped")
+  void abortFailure() {
+    val old = Instant.now().minus(Duration.ofDays(2));
+    s3Client.upload("abandoned", old, 100);
+    s3Client.upload("failing", old, 100);
+    s3Client.failing.add("failing");
+
+    val result = reaper().reapAbandonedUploads().block();
+
+    assertThat(
+        "Other uploads must still be aborted", s3Client.aborted, containsInAnyOrder("abandoned"));
+    assertThat("Only aborted uploads must be counted", result.uploads(), is(1L));
+  }
+
+  // Lists a single page of uploads and the parts of each
+  private static class FakeS3Client implements S3AsyncClient {
+    private final List<MultipartUpload> uploads = new ArrayList<>();
+
+    private final List<ListPartsResponse> parts = new ArrayList<>();
+
+    final List<String> aborted = Collections.synchronizedList(new ArrayList<>());
+
+    final Set<String> failing = new HashSet<>();
+
+    void upload(String uploadId, Instant initiated, long... partSizes) {
+      uploads.add(
+          MultipartUpload.builder()
+              .uploadId(uploadId)
+              .key("key-" + uploadId)
+              .initiated(initiated)
+              .build());
+      val uploadParts = new ArrayList<Part>();
+      for (int i = 0; i < partSizes.length; i++)
+        uploadParts.add(Part.builder().partNumber(i + 1).size(partSizes[i]).build());
+      parts.add(
+          ListPartsResponse.builder()
+              .uploadId(uploadId)
+              .parts(uploadParts)
+              .isTruncated(false)
+              .build());
+    }
+
+    @Override
+    public String serviceName() {
+      return "s3";
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public ListMultipartUploadsPublisher listMultipartUploadsPaginator(
+        ListMultipartUploadsRequest request) {
+      return new ListMultipartUploadsPublisher(this, request);
+    }
+
+    @Override
+    public CompletableFuture<ListMultipartUploadsResponse> listMultipartUploads(
+        ListMultipartUploadsRequest request) {
+      return CompletableFuture.completedFuture(
+          ListMultipartUploadsResponse.builder().uploads(uploads).isTruncated(false).build());
+    }
+
+    @Override
+    public ListPartsPublisher listPartsPaginator(ListPartsRequest request) {
+      return new ListPartsPublisher(this, request);
+    }
+
+    @Override
+    public CompletableFuture<ListPartsResponse> listParts(ListPartsRequest request) {
+      return CompletableFuture.completedFuture(
+          parts.stream()
+              .filter(response -> response.uploadId().equals(request.uploadId()))
+              .findFirst()
+              .orElseThrow());
+    }
+
+    @Override
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(
+        AbortMultipartUploadRequest request) {
+      if (failing.contains(request.uploadId()))
+        return CompletableFuture.failedFuture(S3Exception.builder().statusCode(500).build());
+      aborted.add(request.uploadId());
+      return CompletableFuture.completedFuture(AbortMultipartUploadResponse.builder().build());
+    }
+  }
+}
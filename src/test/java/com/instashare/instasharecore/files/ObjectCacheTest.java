@@ -0,0 +1,151 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+@DisplayName("Object cache tests")
+class ObjectCacheTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @TempDir Path directory;
+
+  private ObjectCache cache(long maxSize) throws IOException {
+    val storageConfig = new StorageConfigurationProperties();
+    storageConfig.setCacheEnabled(true);
+    storageConfig.setCacheDirectory(directory);
+    storageConfig.setCacheMaxSize(DataSize.ofBytes(maxSize));
+    val cache = new ObjectCache(storageConfig, meterRegistry);
+    cache.open();
+    return cache;
+  }
+
+  private static byte[] join(Flux<ByteBuffer> buffers) {
+    val output = new ByteArrayOutputStream();
+    buffers
+        .doOnNext(
+            buffer -> {
+              val bytes = new byte[buffer.remaining()];
+              buffer.get(bytes);
+              output.writeBytes(bytes);
+            })
+        .blockLast();
+    return output.toByteArray();
+  }
+
+  // Fills complete in the background
+  private static Optional<ObjectCache.CachedObject> awaitEntry(ObjectCache cache, String key)
+      throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      val cached = cache.get(key);
+      if (cached.isPresent()) return cached;
+      Thread.sleep(20);
+    }
+    return Optional.empty();
+  }
+
+  private static void put(ObjectCache cache, String key, byte[] content) {
+    cache.admit(key, content.length);
+    if (cache.admit(key, content.length)) {
+      cache.fill(key, "text/plain", Flux.just(ByteBuffer.wrap(content)));
+    }
+  }
+
+  @Test
+  @DisplayName("Objects are admitted on their second miss")
+  void admission() throws IOException {
+    val cache = cache(1024);
+
+    assertThat("First miss must not admit", cache.admit("a", 10), is(false));
+    assertThat("Second miss must admit", cache.admit("a", 10), is(true));
+    assertThat("Objects being filled must not be admitted again", cache.admit("a", 10), is(false));
+    cache.admit("b", 2048);
+    assertThat("Objects above the limit must not be admitted", cache.admit("b", 2048), is(false));
+  }
+
+  @Test
+  @DisplayName("Hits serve the cached content and ranges of it")
+  void hit() throws Exception {
+    val cache = cache(1024);
+    put(cache, "a", "0123456789".getBytes());
+
+    val cached = awaitEntry(cache, "a").orElseThrow();
+    assertThat("Content type must be kept", cached.contentType(), is("text/plain"));
+    assertThat("Content must be preserved", new String(join(cached.read())), is("0123456789"));
+    assertThat("Ranges must be served", new String(join(cached.read(2, 3))), is("234"));
+    assertThat(
+        "Saved bytes must be counted",
+        meterRegistry.get("instashare.cache.bytes.saved").counter().count(),
+        is(13.0));
+  }
+
+  @Test
+  @DisplayName("The least recently used entries are evicted")
+  void eviction() throws Exception {
+    val cache = cache(20);
+    put(cache, "a", new byte[10]);
+    awaitEntry(cache, "a").orElseThrow();
+    put(cache, "b", new byte[10]);
+    awaitEntry(cache, "b").orElseThrow();
+    // "b" is now the least recently used entry
+    cache.get("a");
+    put(cache, "c", new byte[10]);
+    awaitEntry(cache, "c").orElseThrow();
+
+    assertThat("Recently used entries must be kept", cache.get("a").isPresent(), is(true));
+    assertThat(
+        "Least recently used entries must be evicted", cache.get("b").isPresent(), is(false));
+  }
+
+  @Test
+  @DisplayName("Invalidated entries are dropped")
+  void invalidate() throws Exception {
+    val cache = cache(1024);
+    put(cache, "a", new byte[10]);
+    awaitEntry(cache, "a").orElseThrow();
+
+    cache.invalidate("a");
+
+    assertThat("Entry must be dropped", cache.get("a").isPresent(), is(false));
+  }
+
+  @Test
+  @DisplayName("Instances sharing a directory only delete their own files")
+  void sharedDirectory() throws Exception {
+    val other = directory.resolve("other.txt");
+    Files.writeString(other, "not a cache entry");
+    val first = cache(1024);
+    put(first, "a", "0123456789".getBytes());
+    awaitEntry(first, "a").orElseThrow();
+
+    val second = cache(1024);
+    second.close();
+
+    assertThat("Other files must be kept", Files.exists(other), is(true));
+    assertThat(
+        "Entries of other instances must be kept",
+        new String(join(first.get("a").orElseThrow().read())),
+        is("0123456789"));
+    first.close();
+    try (val files = Files.list(directory)) {
+      assertThat("Only the other file must be left", files.toList(), contains(other));
+    }
+  }
+}
@@ -0,0 +1,350 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfig;
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.timeout.ReadTimeoutException;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.test.StepVerifier;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+@DisplayName("Object reader tests")
+class ObjectReaderTest {
+
+  private static final int PART_SIZE = 1000;
+
+  private DisposableServer server;
+
+  private S3Presigner s3Presigner;
+
+  private ConnectionProvider connectionProvider;
+
+  private ObjectReader reader(S3AsyncClient s3Client, int concurrency) {
+    return reader(s3Client, concurrency, DataSize.ofMegabytes(256));
+  }
+
+  private ObjectReader reader(S3AsyncClient s3Client, int concurrency, DataSize bufferBudget) {
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setBucket("bucket");
+    val storageConfig = new StorageConfigurationProperties();
+    storageConfig.setDownloadPartSize(DataSize.ofBytes(PART_SIZE));
+    storageConfig.setDownloadConcurrency(concurrency);
+    storageConfig.setDownloadPartTimeout(Duration.ofMillis(200));
+    storageConfig.setDownloadBufferBudget(bufferBudget);
+    // Every read fetches on its own
+    storageConfig.setSharedReadsEnabled(false);
+    val meterRegistry = new SimpleMeterRegistry();
+    // Disabled by default
+    val objectCache = new ObjectCache(storageConfig, meterRegistry);
+    val sharedReads = new SharedReads(storageConfig, meterRegistry);
+    // Only readDirect presigns requests and sends them itself
+    return new ObjectReader(
+        s3Client, s3Config, storageConfig, objectCache, sharedReads, null, null);
+  }
+
+  // Reads directly from a local server that answers with handler
+  private ObjectReader directReader(
+      BiFunction<HttpServerRequest, HttpServerResponse, Publisher<Void>> handler,
+      Duration responseTimeout) {
+    server = HttpServer.create().port(0).handle(handler).bindNow();
+    val endpoint = URI.create("http://localhost:" + server.port());
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setBucket("bucket");
+    s3Config.setResponseTimeout(responseTimeout);
+    s3Presigner =
+        S3Presigner.builder()
+            .region(Region.US_EAST_1)
+            .endpointOverride(endpoint)
+            .credentialsProvider(
+                StaticCredentialsProvider.create(AwsBasicCredentials.create("id", "secret")))
+            .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+            .build();
+    val s3ClientConfig = new S3ClientConfig();
+    connectionProvider = s3ClientConfig.s3ConnectionProvider(s3Config);
+    val storageConfig = new StorageConfigurationProperties();
+    val meterRegistry = new SimpleMeterRegistry();
+    return new ObjectReader(
+        null,
+        s3Config,
+        storageConfig,
+        new ObjectCache(storageConfig, meterRegistry),
+        new SharedReads(storageConfig, meterRegistry),
+        s3Presigner,
+        s3ClientConfig.s3HttpClient(s3Config, connectionProvider));
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (server != null) server.disposeNow();
+    if (s3Presigner != null) s3Presigner.close();
+    if (connectionProvider != null) connectionProvider.dispose();
+  }
+
+  private static Flux<ByteBuffer> copy(Flux<DataBuffer> buffers) {
+    return buffers.map(
+        buffer -> {
+          try {
+            val copy = ByteBuffer.allocate(buffer.readableByteCount());
+            return copy.put(buffer.asByteBuffer()).flip();
+          } finally {
+            DataBufferUtils.release(buffer);
+          }
+        });
+  }
+
+  private static byte[] join(Flux<ByteBuffer> buffers) {
+    val output = new ByteArrayOutputStream();
+    buffers
+        .doOnNext(
+            buffer -> {
+              val bytes = new byte[buffer.remaining()];
+              buffer.get(bytes);
+              output.writeBytes(bytes);
+            })
+        .blockLast(Duration.ofSeconds(10));
+    return output.toByteArray();
+  }
+
+  private static byte[] content(int length) {
+    val content = new byte[length];
+    new Random(42).nextBytes(content);
+    return content;
+  }
+
+  @Test
+  @DisplayName("Large objects are read with concurrent ranged GETs")
+  void openParallel() {
+    val content = content(5500);
+    val s3Client = new FakeS3Client(content);
+
+    val object = reader(s3Client, 3).open("key").block();
+
+    assertThat("Object length must be reported", object.length(), is(5500L));
+    assertThat("Content must be reassembled in order", join(object.content()), is(content));
+    assertThat("Every part must be requested once", s3Client.ranges, hasSize(6));
+    assertThat("The first part must be requested first", s3Client.ranges.get(0), is("bytes=0-999"));
+  }
+
+  @Test
+  @DisplayName("Objects smaller than a part are read with one GET")
+  void openSmall() {
+    val content = content(600);
+    val s3Client = new FakeS3Client(content);
+
+    val object = reader(s3Client, 3).open("key").block();
+
+    assertThat("Content must be preserved", join(object.content()), is(content));
+    assertThat("One GET must be sent", s3Client.ranges, contains("bytes=0-999"));
+  }
+
+  @Test
+  @DisplayName("Empty objects are read without a range")
+  void openEmpty() {
+    val s3Client = new FakeS3Client(new byte[0]);
+
+    val object = reader(s3Client, 3).open("key").block();
+
+    assertThat("Object must be empty", join(object.content()).length, is(0));
+    assertThat(
+        "Unsatisfiable ranges must fall back to a plain GET",
+        s3Client.ranges,
+        contains("bytes=0-999", "none"));
+  }
+
+  @Test
+  @DisplayName("Slow ranges are fetched again")
+  void slowRange() {
+    val content = content(3500);
+    val s3Client = new FakeS3Client(content);
+    s3Client.stalled.add("bytes=1500-2499");
+
+    val read = join(reader(s3Client, 3).read("key", 500, 3000));
+
+    assertThat(
+        "Content must be reassembled in order", read, is(Arrays.copyOfRange(content, 500, 3500)));
+    assertThat(
+        "Only the slow range must be fetched again",
+        Collections.frequency(s3Client.ranges, "bytes=1500-2499"),
+        is(2));
+    assertThat(
+        "Other ranges must be fetched once",
+        Collections.frequency(s3Client.ranges, "bytes=500-1499"),
+        is(1));
+  }
+
+  @Test
+  @DisplayName("A concurrency of 1 reads objects with a single GET")
+  void openSequential() {
+    val content = content(5500);
+    val s3Client = new FakeS3Client(content);
+
+    val object = reader(s3Client, 1).open("key").block();
+
+    assertThat("Content must be preserved", join(object.content()), is(content));
+    assertThat("One GET must be sent", s3Client.ranges, contains("none"));
+  }
+
+  @Test
+  @DisplayName("Downloads beyond the buffer budget read the rest of their object with one GET")
+  void bufferBudget() {
+    val content = content(5500);
+    val s3Client = new FakeS3Client(content);
+    // Room for the ranges of a single download
+    val reader = reader(s3Client, 3, DataSize.ofBytes(2 * PART_SIZE));
+
+    val buffering =
+        reader.open("first").block().content().subscribe(null, null, null, s -> s.request(1));
+    s3Client.ranges.clear();
+    val second = join(reader.read("second"));
+
+    assertThat("Content must be preserved", second, is(content));
+    assertThat(
+        "The rest must be read with one GET",
+        s3Client.ranges,
+        contains("bytes=0-999", "bytes=1000-5499"));
+
+    buffering.dispose();
+    s3Client.ranges.clear();
+    join(reader.read("third"));
+    assertThat("Released budget must be used again", s3Client.ranges, hasSize(6));
+  }
+
+  @Test
+  @DisplayName("Direct reads failing before any byte is received are sent again")
+  void directReadRetry() {
+    val requests = new AtomicInteger();
+    val reader =
+        directReader(
+            (request, response) ->
+                requests.getAndIncrement() == 0
+                    ? response.status(HttpResponseStatus.SERVICE_UNAVAILABLE).send()
+                    : response
+                        .header(HttpHeaders.CONTENT_LENGTH, "5")
+                        .sendString(Mono.just("hello")),
+            Duration.ofSeconds(5));
+
+    val read = join(copy(reader.readDirect("key", 5, "text/plain")));
+
+    assertThat("Content must be read", new String(read), is("hello"));
+    assertThat("The failed GET must be sent again", requests.get(), is(2));
+  }
+
+  @Test
+  @DisplayName("Direct reads of a stalled response time out")
+  void directReadTimeout() {
+    val requests = new AtomicInteger();
+    val reader =
+        directReader(
+            (request, response) -> {
+              requests.incrementAndGet();
+              return Mono.never();
+            },
+            Duration.ofMillis(200));
+
+    StepVerifier.create(copy(reader.readDirect("key", 5, "text/plain")))
+        .expectError(ReadTimeoutException.class)
+        .verify(Duration.ofSeconds(10));
+    assertThat("Timed out GETs must be sent again", requests.get(), is(3));
+  }
+
+  // Serves one object, ranges whose body never arrives can be set up
+  private static class FakeS3Client implements S3AsyncClient {
+    private final byte[] content;
+
+    final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+
+    final Set<String> stalled = Collections.synchronizedSet(new HashSet<>());
+
+    FakeS3Client(byte[] content) {
+      this.content = content;
+    }
+
+    @Override
+    public String serviceName() {
+      return "s3";
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public <T> CompletableFuture<T> getObject(
+        GetObjectRequest request, AsyncResponseTransformer<GetObjectResponse, T> transformer) {
+      val range = request.range();
+      ranges.add(range != null ? range : "none");
+      if (range != null && content.length == 0)
+        return CompletableFuture.failedFuture(S3Exception.builder().statusCode(416).build());
+      long start = 0;
+      long end = content.length - 1;
+      if (range != null) {
+        val bounds = range.substring("bytes=".length()).split("-");
+        start = Long.parseLong(bounds[0]);
+        end = Math.min(Long.parseLong(bounds[1]), content.length - 1);
+      }
+      val future = transformer.prepare();
+      val response =
+          GetObjectResponse.builder()
+              .contentType("text/plain")
+              .contentLength(end - start + 1)
+              .eTag("\"etag\"")
+              .contentRange(
+                  range != null ? "bytes " + start + "-" + end + "/" + content.length : null);
+      response.sdkHttpResponse(
+          SdkHttpResponse.builder().statusCode(range != null ? 206 : 200).build());
+      transformer.onResponse(response.build());
+      Flux<ByteBuffer> body =
+          Flux.just(ByteBuffer.wrap(content, (int) start, (int) (end - start + 1)));
+      if (range != null && stalled.remove(range)) body = Flux.never();
+      transformer.onStream(SdkPublisher.adapt(body));
+      return future;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.bson.Document;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@DisplayName("Pack compactor tests")
+class PackCompactorTest {
+
+  private final PackStoreTest.FakeS3Client s3Client = new PackStoreTest.FakeS3Client();
+
+  private final PackRepository packRepository = mock(PackRepository.class);
+
+  private final FileRepository fileRepository = mock(FileRepository.class);
+
+  private final ReactiveMongoTemplate mongoTemplate = mock(ReactiveMongoTemplate.class);
+
+  private final List<Update> updates = Collections.synchronizedList(new ArrayList<>());
+
+  // 8 bytes no file points at, followed by one live file
+  private final Pack old =
+      new Pack("old", PackStore.KEY_PREFIX + "old", 12, 8, Instant.now(), null);
+
+  private final File live =
+      File.builder()
+          .id("live")
+          .fileName("live.txt")
+          .owner("owner")
+          .fileStatus(FileStatus.STORED)
+          .size(4L)
+          .storageMode(StorageMode.PACKED)
+          .packId("old")
+          .packOffset(8L)
+          .build();
+
+  // Files that moved since they were listed are not relocated
+  private volatile boolean filesMoved;
+
+  PackCompactorTest() {
+    s3Client.objects.put(old.getStorageKey(), "garbage!live".getBytes());
+    when(packRepository.save(any(Pack.class)))
+        .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    when(packRepository.delete(any(Pack.class))).thenReturn(Mono.empty());
+    when(packRepository.findAllByRetiredAtIsNullAndGarbageBytesGreaterThan(0))
+        .thenReturn(Flux.empty());
+    when(packRepository.findAllByRetiredAtBefore(any())).thenReturn(Flux.empty());
+    when(mongoTemplate.updateFirst(any(Query.class), any(UpdateDefinition.class), any(Class.class)))
+        .thenAnswer(
+            invocation -> {
+              Class<?> entityClass = invocation.getArgument(2);
+              updates.add(
+                  new Update(
+                      entityClass,
+                      invocation.<Query>getArgument(0).getQueryObject(),
+                      invocation.<UpdateDefinition>getArgument(1).getUpdateObject()));
+              val modified = entityClass == File.class && filesMoved ? 0L : 1L;
+              return Mono.just(UpdateResult.acknowledged(1, modified, null));
+            });
+  }
+
+  private PackCompactor compactor() {
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setBucket("bucket");
+    val storageConfig = new StorageConfigurationProperties();
+    storageConfig.setPackMaxDelay(Duration.ofMillis(10));
+    val meterRegistry = new SimpleMeterRegistry();
+    // Disabled by default
+    val objectCache = new ObjectCache(storageConfig, meterRegistry);
+    // Whole packs are read without the object reader
+    val packStore =
+        new PackStore(
+            s3Client,
+            s3Config,
+            storageConfig,
+            mongoTemplate,
+            packRepository,
+            new UploadThrottle(s3Config, meterRegistry),
+            null,
+            objectCache);
+    // Only the scheduled run takes the lease
+    return new PackCompactor(
+        storageConfig, packStore, packRepository, fileRepository, mongoTemplate, null);
+  }
+
+  private List<Update> updatesOf(Class<?> entityClass) {
+    return updates.stream().filter(update -> update.entityClass() == entityClass).toList();
+  }
+
+  @Test
+  @DisplayName("Packs that are mostly garbage are rewritten and retired")
+  void rewrite() {
+    when(packRepository.findAllByRetiredAtIsNullAndGarbageBytesGreaterThan(0))
+        .thenReturn(Flux.just(old));
+    when(fileRepository.findAllByPackId("old")).thenReturn(Flux.just(live));
+
+    val result = compactor().compactPacks().block(Duration.ofSeconds(10));
+
+    assertThat(result, is(new PackCompactor.CompactResult(1, 1, 0)));
+    val newKey =
+        s3Client.objects.keySet().stream()
+            .filter(key -> !key.equals(old.getStorageKey()))
+            .findFirst()
+            .orElseThrow();
+    assertThat(
+        "Only the live file must be copied", new String(s3Client.objects.get(newKey)), is("live"));
+    val relocations = updatesOf(File.class);
+    assertThat(relocations, hasSize(1));
+    assertThat(
+        "Only a file still at its old location must be moved",
+        relocations.get(0).query().get("packOffset"),
+        is(8L));
+    val moved = (Document) relocations.get(0).update().get("$set");
+    assertThat(PackStore.KEY_PREFIX + moved.get("packId"), is(newKey));
+    assertThat(moved.get("packOffset"), is(0L));
+    val retirements = updatesOf(Pack.class);
+    assertThat(retirements, hasSize(1));
+    assertThat(retirements.get(0).query().get("_id"), is("old"));
+    assertThat(
+        ((Document) retirements.get(0).update().get("$set")).containsKey("retiredAt"), is(true));
+    assertThat("The old pack must be kept for downloads", s3Client.deleted, is(empty()));
+  }
+
+  @Test
+  @DisplayName("Files that moved meanwhile are garbage in the new pack")
+  void rewriteMovedFiles() {
+    filesMoved = true;
+    when(packRepository.findAllByRetiredAtIsNullAndGarbageBytesGreaterThan(0))
+        .thenReturn(Flux.just(old));
+    when(fileRepository.findAllByPackId("old")).thenReturn(Flux.just(live));
+
+    val result = compactor().compactPacks().block(Duration.ofSeconds(10));
+
+    assertThat(result, is(new PackCompactor.CompactResult(1, 0, 0)));
+    val garbage =
+        updatesOf(Pack.class).stream()
+            .filter(update -> update.update().containsKey("$inc"))
+            .toList();
+    assertThat(garbage, hasSize(1));
+    assertThat(((Document) garbage.get(0).update().get("$inc")).get("garbageBytes"), is(4L));
+  }
+
+  @Test
+  @DisplayName("Retired packs are deleted once no file points at them")
+  void deleteRetired() {
+    when(packRepository.findAllByRetiredAtBefore(any())).thenReturn(Flux.just(old));
+    when(fileRepository.findAllByPackId("old")).thenReturn(Flux.empty());
+
+    val result = compactor().compactPacks().block(Duration.ofSeconds(10));
+
+    assertThat(result, is(new PackCompactor.CompactResult(0, 0, 1)));
+    assertThat("The object must be deleted", s3Client.deleted, contains(old.getStorageKey()));
+    verify(packRepository).delete(old);
+  }
+
+  @Test
+  @DisplayName("Retired packs some file still points at are kept")
+  void keepReferencedRetired() {
+    when(packRepository.findAllByRetiredAtBefore(any())).thenReturn(Flux.just(old));
+    when(fileRepository.findAllByPackId("old")).thenReturn(Flux.just(live));
+
+    val result = compactor().compactPacks().block(Duration.ofSeconds(10));
+
+    assertThat(result, is(new PackCompactor.CompactResult(0, 0, 0)));
+    assertThat("The object must be kept", s3Client.deleted, is(empty()));
+    verify(packRepository, never()).delete(any(Pack.class));
+    val unretired = updatesOf(Pack.class);
+    assertThat(unretired, hasSize(1));
+    assertThat(
+        ((Document) unretired.get(0).update().get("$unset")).containsKey("retiredAt"), is(true));
+  }
+
+  private record Update(Class<?> entityClass, Document query, Document update) {}
+}
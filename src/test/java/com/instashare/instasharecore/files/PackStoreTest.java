@@ -0,0 +1,275 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@DisplayName("Pack store tests")
+class PackStoreTest {
+
+  private final FakeS3Client s3Client = new FakeS3Client();
+
+  private final List<Pack> saved = Collections.synchronizedList(new ArrayList<>());
+
+  private PackStore packStore(int targetSize, Duration maxDelay) {
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setBucket("bucket");
+    val storageConfig = new StorageConfigurationProperties();
+    storageConfig.setPackTargetSize(targetSize);
+    storageConfig.setPackMaxDelay(maxDelay);
+    storageConfig.setDownloadPartSize(DataSize.ofBytes(8));
+    storageConfig.setSharedReadsEnabled(false);
+    val packRepository = mock(PackRepository.class);
+    when(packRepository.save(any(Pack.class)))
+        .thenAnswer(
+            invocation -> {
+              saved.add(invocation.getArgument(0));
+              return Mono.just(invocation.getArgument(0));
+            });
+    val meterRegistry = new SimpleMeterRegistry();
+    // Disabled by default
+    val objectCache = new ObjectCache(storageConfig, meterRegistry);
+    val objectReader =
+        new ObjectReader(
+            s3Client,
+            s3Config,
+            storageConfig,
+            objectCache,
+            new SharedReads(storageConfig, meterRegistry),
+            null,
+            null);
+    // Only garbage accounting and retirement update packs in place
+    return new PackStore(
+        s3Client,
+        s3Config,
+        storageConfig,
+        null,
+        packRepository,
+        new UploadThrottle(s3Config, meterRegistry),
+        objectReader,
+        objectCache);
+  }
+
+  private static byte[] bytes(String content) {
+    return content.getBytes();
+  }
+
+  private static byte[] join(Flux<ByteBuffer> buffers) {
+    val output = new ByteArrayOutputStream();
+    buffers
+        .doOnNext(
+            buffer -> {
+              val bytes = new byte[buffer.remaining()];
+              buffer.get(bytes);
+              output.writeBytes(bytes);
+            })
+        .blockLast(Duration.ofSeconds(10));
+    return output.toByteArray();
+  }
+
+  @Test
+  @DisplayName("Concurrent appends are written as one pack")
+  void appendsAreGrouped() {
+    val packStore = packStore(1024, Duration.ofMillis(100));
+
+    val locations =
+        Flux.merge(
+                packStore.append(bytes("first")),
+                packStore.append(bytes("second")),
+                packStore.append(bytes("third")))
+            .collectList()
+            .block(Duration.ofSeconds(10));
+
+    assertThat("One pack must be written", s3Client.objects.size(), is(1));
+    assertThat(saved, hasSize(1));
+    val pack = saved.get(0);
+    assertThat("The pack must hold every file", pack.getSize(), is(16L));
+    assertThat(
+        "Files must share the pack",
+        locations.stream().map(PackStore.Location::packId).distinct().toList(),
+        contains(pack.getId()));
+    assertThat(
+        "Files must be written back to back",
+        locations.stream().map(PackStore.Location::offset).sorted().toList(),
+        contains(0L, 5L, 11L));
+    assertThat(new String(s3Client.objects.get(pack.getStorageKey())), is("firstsecondthird"));
+  }
+
+  @Test
+  @DisplayName("A full pack is written without waiting, later appends start a new one")
+  void fullPacksAreWritten() {
+    val packStore = packStore(10, Duration.ofMinutes(1));
+
+    val first = packStore.append(bytes("01234")).toFuture();
+    val second = packStore.append(bytes("56789")).block(Duration.ofSeconds(10));
+
+    assertThat("The full pack must be written", s3Client.objects.size(), is(1));
+    assertThat(first.join().packId(), is(second.packId()));
+    assertThat(second.offset(), is(5L));
+    assertThat(second.length(), is(5L));
+
+    val third = packStore.append(bytes("0123456789")).block(Duration.ofSeconds(10));
+    assertThat("A new pack must be started", third.packId(), not(second.packId()));
+    assertThat(third.offset(), is(0L));
+  }
+
+  @Test
+  @DisplayName("Files are read back by offset and length")
+  void readRanges() {
+    val packStore = packStore(1024, Duration.ofMillis(10));
+    val content = bytes("0123456789abcdefghij");
+    s3Client.objects.put(PackStore.KEY_PREFIX + "pack", content);
+
+    assertThat(
+        "Ranges within a part must be read",
+        join(packStore.read("pack", 2, 4)),
+        is(Arrays.copyOfRange(content, 2, 6)));
+    assertThat(
+        "Ranges across parts must be read",
+        join(packStore.read("pack", 5, 12)),
+        is(Arrays.copyOfRange(content, 5, 17)));
+    assertThat(
+        "Whole packs must be read",
+        packStore
+            .readAll(new Pack("pack", PackStore.KEY_PREFIX + "pack", 20, 0, null, null))
+            .block(Duration.ofSeconds(10)),
+        is(content));
+  }
+
+  @Test
+  @DisplayName("Appends cancelled before their pack is written are garbage from the start")
+  void cancelledAppends() {
+    val packStore = packStore(1024, Duration.ofMillis(100));
+
+    packStore.append(bytes("gone")).subscribe().dispose();
+    packStore.append(bytes("kept")).block(Duration.ofSeconds(10));
+
+    assertThat(saved, hasSize(1));
+    assertThat("The pack must hold both files", saved.get(0).getSize(), is(8L));
+    assertThat("The cancelled file must be garbage", saved.get(0).getGarbageBytes(), is(4L));
+  }
+
+  @Test
+  @DisplayName("Appends are told when their pack is written, also once cancelled")
+  void writtenAfterPut() {
+    val packStore = packStore(1024, Duration.ofMillis(100));
+    val written = new AtomicInteger();
+
+    packStore.append(bytes("gone"), written::incrementAndGet).subscribe().dispose();
+    val kept = packStore.append(bytes("kept"), written::incrementAndGet).toFuture();
+
+    assertThat("The pack must hold the bytes until it is written", written.get(), is(0));
+    kept.join();
+    assertThat(written.get(), is(2));
+  }
+
+  // Stores objects in memory and serves ranged GETs of them
+  static class FakeS3Client implements S3AsyncClient {
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public String serviceName() {
+      return "s3";
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(
+        PutObjectRequest request, AsyncRequestBody requestBody) {
+      val output = new ByteArrayOutputStream();
+      return Flux.from(requestBody)
+          .doOnNext(
+              buffer -> {
+                val bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                output.writeBytes(bytes);
+              })
+          .then(
+              Mono.fromSupplier(
+                  () -> {
+                    objects.put(request.key(), output.toByteArray());
+                    val response = PutObjectResponse.builder();
+                    response.sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build());
+                    return response.build();
+                  }))
+          .toFuture();
+    }
+
+    @Override
+    public <T> CompletableFuture<T> getObject(
+        GetObjectRequest request, AsyncResponseTransformer<GetObjectResponse, T> transformer) {
+      val content = objects.get(request.key());
+      val range = request.range();
+      long start = 0;
+      long end = content.length - 1;
+      if (range != null) {
+        val bounds = range.substring("bytes=".length()).split("-");
+        start = Long.parseLong(bounds[0]);
+        end = Math.min(Long.parseLong(bounds[1]), content.length - 1);
+      }
+      val future = transformer.prepare();
+      val response =
+          GetObjectResponse.builder()
+              .contentLength(end - start + 1)
+              .eTag("\"etag\"")
+              .contentRange(
+                  range != null ? "bytes " + start + "-" + end + "/" + content.length : null);
+      response.sdkHttpResponse(
+          SdkHttpResponse.builder().statusCode(range != null ? 206 : 200).build());
+      transformer.onResponse(response.build());
+      transformer.onStream(
+          SdkPublisher.adapt(
+              Flux.just(ByteBuffer.wrap(content, (int) start, (int) (end - start + 1)))));
+      return future;
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+      deleted.add(request.key());
+      objects.remove(request.key());
+      return CompletableFuture.completedFuture(DeleteObjectResponse.builder().build());
+    }
+  }
+}
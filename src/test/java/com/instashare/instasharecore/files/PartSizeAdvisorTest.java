@@ -0,0 +1,68 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.files.util.PartSizing;
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+@DisplayName("Part size advisor tests")
+class PartSizeAdvisorTest {
+
+  private static final long MB = 1024 * 1024;
+
+  private final PartSizeAdvisor advisor =
+      new PartSizeAdvisor(new S3ClientConfigurationProperties());
+
+  @Test
+  @DisplayName("Huge files stay under the S3 part limit")
+  void hugeFiles() {
+    val size = 40L * 1024 * MB;
+    val sizing = advisor.sizingFor(size);
+    assertThat(
+        "Part count must be under the limit",
+        (size + sizing.partSize() - 1) / sizing.partSize(),
+        lessThanOrEqualTo((long) PartSizing.MAX_PARTS));
+  }
+
+  @Test
+  @DisplayName("Parts of uploads of unknown size grow to cover 5 TB")
+  void unknownSize() {
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setMultipartMaxBufferedBytes(32L * 1024 * MB);
+    val sizing = new PartSizeAdvisor(s3Config).sizingFor(-1);
+    long total = 0;
+    for (int part = 1; part <= PartSizing.MAX_PARTS; part++) total += sizing.sizeOfPart(part);
+    assertThat("10,000 parts must cover 5 TB", total, greaterThan(5L * 1024 * 1024 * MB));
+  }
+
+  @Test
+  @DisplayName("Parts of uploads of unknown size stay within the buffer budget")
+  void unknownSizeBounded() {
+    val sizing = advisor.sizingFor(-1);
+    // 512 MB shared by the 4 parts in flight and the one being read
+    val limit = 102 * MB;
+    assertThat("Parts must grow", sizing.sizeOfPart(2001), greaterThan(sizing.sizeOfPart(1)));
+    for (int part = 1; part <= PartSizing.MAX_PARTS; part++)
+      assertThat("Parts must be capped", sizing.sizeOfPart(part), lessThanOrEqualTo(limit));
+    assertThat("The last parts must reach the cap", sizing.sizeOfPart(PartSizing.MAX_PARTS), is(limit));
+  }
+
+  @Test
+  @DisplayName("Faster parts lead to larger parts")
+  void adaptsToThroughput() {
+    val before = advisor.sizingFor(1024 * MB).partSize();
+    // 50 MB/s per part
+    for (int i = 0; i < 20; i++) advisor.recordPart(50 * MB, Duration.ofSeconds(1));
+    val after = advisor.sizingFor(1024 * MB).partSize();
+    assertThat("Part size must grow", after, greaterThan(before));
+    assertThat("Part size must be capped", after, is(64 * MB));
+  }
+}
@@ -0,0 +1,423 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.CompressionConfigurationProperties;
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.events.DestinationInfo;
+import com.instashare.instasharecore.files.util.ContentHash;
+import com.instashare.instasharecore.files.util.SimpleUploadInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.PooledByteBufAllocator;
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.multipart.FilePart;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@DisplayName("S3 backed file service tests")
+class S3BackedFileServiceTest {
+
+  private static final int MB = 1024 * 1024;
+
+  private final FakeS3Client s3Client = new FakeS3Client();
+
+  private final S3ClientConfigurationProperties s3Config = new S3ClientConfigurationProperties();
+
+  private final StorageConfigurationProperties storageConfig = new StorageConfigurationProperties();
+
+  private final FileRepository fileRepository = mock(FileRepository.class);
+
+  private final FileContentRepository fileContentRepository = mock(FileContentRepository.class);
+
+  private final ObjectReader objectReader = mock(ObjectReader.class);
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  S3BackedFileServiceTest() {
+    s3Config.setBucket("bucket");
+    // Everything above a part is a multipart upload of 1 MB parts
+    s3Config.setMultipartMinPartSize(MB);
+    s3Config.setMultipartUploadThreshold(MB);
+    s3Config.setMultipartPartRetries(0);
+    when(fileRepository.findAllByOwnerAndFileNameIn(anyString(), anyCollection()))
+        .thenReturn(Flux.empty());
+    when(fileContentRepository.save(any()))
+        .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    when(fileContentRepository.deleteById(anyString())).thenReturn(Mono.empty());
+  }
+
+  // Collaborators the tested paths do not reach are left out
+  private S3BackedFileService service() {
+    return new S3BackedFileService(
+        s3Client,
+        s3Config,
+        fileRepository,
+        null,
+        new DestinationInfo("exchange", "routing-key"),
+        new UploadThrottle(s3Config, meterRegistry),
+        new PartSizeAdvisor(s3Config),
+        null,
+        null,
+        null,
+        new CompressionConfigurationProperties(),
+        storageConfig,
+        fileContentRepository,
+        null,
+        objectReader,
+        null);
+  }
+
+  private static SimpleUploadInfo upload(int length) {
+    val content = Flux.range(0, length / 1024).map(i -> ByteBuffer.allocate(1024));
+    return new SimpleUploadInfo(
+        MediaType.APPLICATION_OCTET_STREAM, "file.bin", "owner", length, content);
+  }
+
+  // Archived objects whose bodies record when they are subscribed to and cancelled
+  private List<File> archived(
+      int count, Flux<ByteBuffer> firstContent, List<String> opened, List<String> cancelled) {
+    val files = new ArrayList<File>();
+    for (int i = 0; i < count; i++) {
+      val key = "file-" + i;
+      val content =
+          (i == 0 ? firstContent : Flux.<ByteBuffer>never())
+              .doOnSubscribe(subscription -> opened.add(key))
+              .doOnCancel(() -> cancelled.add(key));
+      when(objectReader.open(key))
+          .thenReturn(Mono.just(new ObjectReader.StoredObject("text/plain", 4, content)));
+      files.add(
+          File.builder()
+              .id(key)
+              .fileName(key + ".txt")
+              .owner("owner")
+              .fileStatus(FileStatus.STORED)
+              .size(4L)
+              .storageMode(StorageMode.OBJECT)
+              .build());
+    }
+    return files;
+  }
+
+  // Small enough to be stored inline
+  private static FilePart filePart(String filename, Flux<DataBuffer> content) {
+    val filePart = mock(FilePart.class);
+    when(filePart.filename()).thenReturn(filename);
+    when(filePart.headers()).thenReturn(new HttpHeaders());
+    when(filePart.content()).thenReturn(content);
+    return filePart;
+  }
+
+  private static HttpHeaders headers(MediaType contentType) {
+    val headers = new HttpHeaders();
+    headers.setContentType(contentType);
+    return headers;
+  }
+
+  private static Flux<DataBuffer> content(String content) {
+    return Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(content.getBytes()));
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) Thread.sleep(20);
+  }
+
+  @Test
+  @DisplayName("A failed multipart upload is aborted")
+  void abortOnError() {
+    s3Client.failParts = true;
+
+    StepVerifier.create(service().upload(upload(3 * MB)))
+        .expectError()
+        .verify(Duration.ofSeconds(10));
+
+    assertThat("The upload must be aborted", s3Client.aborted, contains("upload-id"));
+  }
+
+  @Test
+  @DisplayName("A cancelled multipart upload is aborted")
+  void abortOnCancel() throws InterruptedException {
+    val subscription = service().upload(upload(3 * MB)).subscribe();
+    await(() -> s3Client.partRequests > 0);
+
+    subscription.dispose();
+    await(() -> !s3Client.aborted.isEmpty());
+
+    assertThat("Parts must have been sent", s3Client.partRequests > 0, is(true));
+    assertThat("The upload must be aborted", s3Client.aborted, contains("upload-id"));
+  }
+
+  @Test
+  @DisplayName("Files of a form that cannot be saved release their content")
+  void uploadPartsInsertFailure() {
+    when(fileRepository.insert(anyIterable()))
+        .thenReturn(Flux.error(new DuplicateKeyException("E11000")));
+    when(fileRepository.existsById(anyString())).thenReturn(Mono.just(false));
+    when(fileRepository.insert(any(File.class)))
+        .thenAnswer(
+            invocation -> {
+              File file = invocation.getArgument(0);
+              return file.getFileName().equals("taken.txt")
+                  ? Mono.error(new DuplicateKeyException("E11000"))
+                  : Mono.just(file);
+            });
+    val parts =
+        List.of(filePart("free.txt", content("free")), filePart("taken.txt", content("taken")));
+
+    val uploaded = service().uploadParts(parts, "owner", false).block();
+
+    assertThat("The other file must be saved", uploaded.files().size(), is(1));
+    assertThat(uploaded.files().get(0).getFileName(), is("free.txt"));
+    assertThat(uploaded.failed(), contains("taken.txt"));
+    verify(fileContentRepository).deleteById(anyString());
+  }
+
+  @Test
+  @DisplayName("Small uploads only reserve the buffer space they use")
+  void smallUploadsReserveWhatTheyBuffer() {
+    // Less than a part
+    s3Config.setMultipartMaxBufferedBytes(64 * 1024);
+    when(fileRepository.insert(anyIterable()))
+        .thenAnswer(invocation -> Flux.fromIterable(invocation.<Iterable<File>>getArgument(0)));
+
+    StepVerifier.create(
+            service().uploadParts(List.of(filePart("small.txt", content("small"))), "owner", false))
+        .assertNext(uploaded -> assertThat(uploaded.files().size(), is(1)))
+        .verifyComplete();
+  }
+
+  @Test
+  @DisplayName("Inline files hold their buffer space until their content is saved")
+  void inlineHoldsBufferUntilSaved() throws InterruptedException {
+    val saved = Sinks.<FileContent>one();
+    doReturn(saved.asMono()).when(fileContentRepository).save(any());
+    when(fileRepository.insert(anyIterable()))
+        .thenAnswer(invocation -> Flux.fromIterable(invocation.<Iterable<File>>getArgument(0)));
+    val service = service();
+    val used = meterRegistry.get("instashare.upload.buffer.used").gauge();
+
+    val upload =
+        service
+            .uploadParts(List.of(filePart("small.txt", content("small"))), "owner", false)
+            .toFuture();
+    await(() -> used.value() > 0);
+
+    assertThat("The copy must count against the buffer space", used.value() > 0, is(true));
+    saved.tryEmitValue(new FileContent("small", new byte[0]));
+    upload.join();
+    assertThat("The buffer space must be returned", used.value(), is(0.0));
+  }
+
+  @Test
+  @DisplayName("Compressed parts are deflated from the received buffers and release them")
+  void uploadPartsCompressed() {
+    when(fileRepository.insert(anyIterable()))
+        .thenAnswer(invocation -> Flux.fromIterable(invocation.<Iterable<File>>getArgument(0)));
+    val bufferFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+    val received =
+        List.of(
+            bufferFactory.wrap(PooledByteBufAllocator.DEFAULT.buffer().writeBytes(new byte[4096])),
+            bufferFactory.wrap(PooledByteBufAllocator.DEFAULT.buffer().writeBytes(new byte[4096])));
+    val part = filePart("zeros.txt", Flux.fromIterable(received));
+    when(part.headers()).thenReturn(headers(MediaType.TEXT_PLAIN));
+
+    StepVerifier.create(service().uploadParts(List.of(part), "owner", true))
+        .assertNext(
+            uploaded -> {
+              val file = uploaded.files().get(0);
+              assertThat(file.getFileStatus(), is(FileStatus.COMPRESSED));
+              assertThat(file.getSize(), is(8192L));
+              val digest = ContentHash.newDigest();
+              digest.update(new byte[8192]);
+              assertThat(
+                  "The hash must be the one of the uploaded bytes",
+                  file.getContentHash(),
+                  is(ContentHash.hex(digest)));
+              assertThat(file.getStoredHash(), is(not(file.getContentHash())));
+            })
+        .verifyComplete();
+    assertThat(
+        "Received buffers must be released",
+        received.stream().allMatch(buffer -> buffer.getNativeBuffer().refCnt() == 0),
+        is(true));
+  }
+
+  @Test
+  @DisplayName("A failed part of a form is reported with the saved files")
+  void uploadPartsStoreFailure() {
+    when(fileRepository.insert(anyIterable()))
+        .thenAnswer(invocation -> Flux.fromIterable(invocation.<Iterable<File>>getArgument(0)));
+    val parts =
+        List.of(
+            filePart("stored.txt", content("stored")),
+            filePart("failed.txt", Flux.error(new IllegalStateException("Connection reset"))));
+
+    StepVerifier.create(service().uploadParts(parts, "owner", false))
+        .assertNext(
+            uploaded -> {
+              assertThat(uploaded.files().size(), is(1));
+              assertThat(uploaded.files().get(0).getFileName(), is("stored.txt"));
+              assertThat(uploaded.failed(), contains("failed.txt"));
+            })
+        .verifyComplete();
+  }
+
+  @Test
+  @DisplayName("A form whose parts all fail ends with their error")
+  void uploadPartsAllFailed() {
+    val parts =
+        List.of(filePart("failed.txt", Flux.error(new IllegalStateException("Connection reset"))));
+
+    StepVerifier.create(service().uploadParts(parts, "owner", false))
+        .expectError(IllegalStateException.class)
+        .verify(Duration.ofSeconds(10));
+  }
+
+  @Test
+  @DisplayName("A cancelled archive cancels the entries opened ahead")
+  void archiveCancel() throws InterruptedException {
+    val opened = Collections.synchronizedList(new ArrayList<String>());
+    val cancelled = Collections.synchronizedList(new ArrayList<String>());
+    val files = archived(4, Flux.never(), opened, cancelled);
+
+    val subscription = service().archive(files).subscribe();
+    await(() -> opened.contains("file-0"));
+    subscription.dispose();
+
+    assertThat(
+        "Every opened entry must be cancelled",
+        cancelled,
+        containsInAnyOrder("file-0", "file-1", "file-2", "file-3"));
+  }
+
+  @Test
+  @DisplayName("An entry failing its size check cancels the entries opened ahead")
+  void archiveEntryFailure() {
+    val opened = Collections.synchronizedList(new ArrayList<String>());
+    val cancelled = Collections.synchronizedList(new ArrayList<String>());
+    // Too short, and only once the other entries were opened
+    val shortContent =
+        Flux.just(ByteBuffer.wrap("12".getBytes())).delaySubscription(Duration.ofMillis(100));
+    val files = archived(4, shortContent, opened, cancelled);
+
+    StepVerifier.create(service().archive(files))
+        .thenConsumeWhile(buffer -> true)
+        .expectError()
+        .verify(Duration.ofSeconds(10));
+
+    assertThat(
+        "The other entries must be cancelled",
+        cancelled,
+        containsInAnyOrder("file-1", "file-2", "file-3"));
+  }
+
+  @Test
+  @DisplayName("A cancelled archive does not send the requests of direct entries it never read")
+  void archiveCancelDirect() throws InterruptedException {
+    storageConfig.setDirectDownloads(true);
+    val subscribed = Collections.synchronizedList(new ArrayList<String>());
+    val files = new ArrayList<File>();
+    for (int i = 0; i < 4; i++) {
+      val key = "file-" + i;
+      when(objectReader.readDirect(key, 4, "text/plain"))
+          .thenReturn(Flux.<DataBuffer>never().doOnSubscribe(subscription -> subscribed.add(key)));
+      files.add(
+          File.builder()
+              .id(key)
+              .fileName(key + ".txt")
+              .owner("owner")
+              .fileStatus(FileStatus.STORED)
+              .size(4L)
+              .mimeType("text/plain")
+              .storageMode(StorageMode.OBJECT)
+              .build());
+    }
+
+    val subscription = service().archive(files).subscribe();
+    await(() -> subscribed.contains("file-0"));
+    subscription.dispose();
+
+    assertThat("Only the entry being written must be requested", subscribed, contains("file-0"));
+  }
+
+  // Starts one multipart upload, whose parts fail or never complete
+  private static class FakeS3Client implements S3AsyncClient {
+    final List<String> aborted = Collections.synchronizedList(new ArrayList<>());
+
+    volatile boolean failParts;
+
+    volatile int partRequests;
+
+    @Override
+    public String serviceName() {
+      return "s3";
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(
+        CreateMultipartUploadRequest request) {
+      val response = CreateMultipartUploadResponse.builder().uploadId("upload-id");
+      response.sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build());
+      return CompletableFuture.completedFuture(response.build());
+    }
+
+    @Override
+    public CompletableFuture<UploadPartResponse> uploadPart(
+        UploadPartRequest request, AsyncRequestBody requestBody) {
+      partRequests++;
+      if (failParts)
+        return CompletableFuture.failedFuture(S3Exception.builder().statusCode(500).build());
+      return new CompletableFuture<>();
+    }
+
+    @Override
+    public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(
+        AbortMultipartUploadRequest request) {
+      aborted.add(request.uploadId());
+      return CompletableFuture.completedFuture(AbortMultipartUploadResponse.builder().build());
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.events.DestinationInfo;
+import com.instashare.instasharecore.files.exceptions.InvalidUploadSessionException;
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.AmqpTemplate;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsResponse;
+import software.amazon.awssdk.services.s3.model.Part;
+import software.amazon.awssdk.services.s3.paginators.ListPartsPublisher;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@DisplayName("Upload session service tests")
+class S3BackedUploadSessionServiceTest {
+
+  private static final long PART_SIZE = 5 * 1024 * 1024;
+
+  private final FakeS3Client s3Client = new FakeS3Client();
+
+  private S3BackedUploadSessionService service() {
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setBucket("bucket");
+    val uploadSessionRepository = mock(UploadSessionRepository.class);
+    when(uploadSessionRepository.delete(any(UploadSession.class))).thenReturn(Mono.empty());
+    val fileRepository = mock(FileRepository.class);
+    when(fileRepository.save(any(File.class)))
+        .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    // Completing a session neither uploads nor presigns parts
+    return new S3BackedUploadSessionService(
+        s3Client,
+        s3Config,
+        uploadSessionRepository,
+        null,
+        fileRepository,
+        mock(AmqpTemplate.class),
+        new DestinationInfo("exchange", "routing-key"),
+        null,
+        null,
+        null);
+  }
+
+  // Only the first part went through the service, it is the only one the session recorded
+  private static UploadSession session() {
+    return new UploadSession(
+        "session",
+        "owner",
+        "movie.mp4",
+        "video/mp4",
+        "file-key",
+        "upload-id",
+        PART_SIZE,
+        Map.of("1", new UploadSessionPart(1, "\"etag-1\"", PART_SIZE)),
+        Instant.now(),
+        Instant.now());
+  }
+
+  @Test
+  @DisplayName("Parts uploaded straight to S3 are completed with the recorded ones")
+  void completeMixedSession() {
+    s3Client.part(1, PART_SIZE);
+    s3Client.part(2, PART_SIZE);
+    s3Client.part(3, 10);
+
+    val file = service().complete(session()).block(Duration.ofSeconds(10));
+
+    assertThat(
+        "Every part S3 received must be completed",
+        s3Client.completed.stream().map(CompletedPart::partNumber).toList(),
+        contains(1, 2, 3));
+    assertThat(
+        s3Client.completed.stream().map(CompletedPart::eTag).toList(),
+        contains("\"etag-1\"", "\"etag-2\"", "\"etag-3\""));
+    assertThat(file.getSize(), is(2 * PART_SIZE + 10));
+  }
+
+  @Test
+  @DisplayName("Sessions with a part S3 did not receive are not completed")
+  void completeWithMissingPart() {
+    s3Client.part(1, PART_SIZE);
+    s3Client.part(3, 10);
+
+    StepVerifier.create(service().complete(session()))
+        .expectError(InvalidUploadSessionException.class)
+        .verify(Duration.ofSeconds(10));
+
+    assertThat("The upload must not be completed", s3Client.completed, is(nullValue()));
+  }
+
+  // Holds the parts of a single multipart upload
+  private static class FakeS3Client implements S3AsyncClient {
+    private final List<Part> parts = new ArrayList<>();
+
+    volatile List<CompletedPart> completed;
+
+    void part(int partNumber, long size) {
+      parts.add(
+          Part.builder()
+              .partNumber(partNumber)
+              .eTag("\"etag-" + partNumber + "\"")
+              .size(size)
+              .build());
+    }
+
+    @Override
+    public String serviceName() {
+      return "s3";
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public ListPartsPublisher listPartsPaginator(ListPartsRequest request) {
+      return new ListPartsPublisher(this, request);
+    }
+
+    @Override
+    public CompletableFuture<ListPartsResponse> listParts(ListPartsRequest request) {
+      return CompletableFuture.completedFuture(
+          ListPartsResponse.builder().parts(parts).isTruncated(false).build());
+    }
+
+    @Override
+    public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(
+        CompleteMultipartUploadRequest request) {
+      completed = request.multipartUpload().parts();
+      val response = CompleteMultipartUploadResponse.builder();
+      response.sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build());
+      return CompletableFuture.completedFuture(response.build());
+    }
+
+    @Override
+    public CompletableFuture<HeadObjectResponse> headObject(HeadObjectRequest request) {
+      val response =
+          HeadObjectResponse.builder()
+              .contentLength(parts.stream().mapToLong(Part::size).sum())
+              .eTag("\"etag-3\"");
+      response.sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build());
+      return CompletableFuture.completedFuture(response.build());
+    }
+  }
+}
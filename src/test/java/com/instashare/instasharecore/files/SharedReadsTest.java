@@ -0,0 +1,209 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.StorageConfigurationProperties;
+import com.instashare.instasharecore.files.ObjectReader.StoredObject;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+@DisplayName("Shared reads tests")
+class SharedReadsTest {
+
+  private static final int CHUNK_SIZE = 100;
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private final byte[] content = new byte[3000];
+
+  private final AtomicInteger opened = new AtomicInteger();
+
+  private final List<Long> resumed = new ArrayList<>();
+
+  SharedReadsTest() {
+    new Random(42).nextBytes(content);
+  }
+
+  private SharedReads sharedReads() {
+    val storageConfig = new StorageConfigurationProperties();
+    storageConfig.setSharedReadBuffer(DataSize.ofBytes(1000));
+    return new SharedReads(storageConfig, meterRegistry);
+  }
+
+  private Flux<ByteBuffer> chunks(long offset) {
+    return Flux.range(0, (int) ((content.length - offset) / CHUNK_SIZE))
+        .map(i -> ByteBuffer.wrap(content, (int) offset + i * CHUNK_SIZE, CHUNK_SIZE));
+  }
+
+  private Mono<StoredObject> open(SharedReads sharedReads, Flux<ByteBuffer> source) {
+    return sharedReads.open(
+        "key",
+        () -> {
+          opened.incrementAndGet();
+          return Mono.just(new StoredObject("text/plain", content.length, source));
+        },
+        (object, offset) -> {
+          resumed.add(offset);
+          return chunks(offset);
+        });
+  }
+
+  private static byte[] join(Flux<ByteBuffer> buffers) {
+    val output = new ByteArrayOutputStream();
+    buffers.doOnNext(buffer -> write(output, buffer)).blockLast(Duration.ofSeconds(10));
+    return output.toByteArray();
+  }
+
+  private static void write(ByteArrayOutputStream output, ByteBuffer buffer) {
+    val bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    output.writeBytes(bytes);
+  }
+
+  @Test
+  @DisplayName("Concurrent reads share one fetch and slow readers get a fetch of their own")
+  void shared() throws Exception {
+    val sharedReads = sharedReads();
+    val source = Sinks.many().unicast().<ByteBuffer>onBackpressureBuffer();
+    val fast = open(sharedReads, source.asFlux()).block();
+    val slow = open(sharedReads, source.asFlux()).block();
+    assertThat("Content must be fetched once", opened.get(), is(1));
+
+    val slowOutput = new ByteArrayOutputStream();
+    val slowDone = new CompletableFuture<Void>();
+    val slowReader =
+        new BaseSubscriber<ByteBuffer>() {
+          @Override
+          protected void hookOnSubscribe(Subscription subscription) {
+            request(1);
+          }
+
+          @Override
+          protected void hookOnNext(ByteBuffer buffer) {
+            write(slowOutput, buffer);
+          }
+
+          @Override
+          protected void hookOnComplete() {
+            slowDone.complete(null);
+          }
+        };
+    slow.content().subscribe(slowReader);
+    val fastOutput = new ByteArrayOutputStream();
+    val fastDone = fast.content().doOnNext(buffer -> write(fastOutput, buffer)).then().toFuture();
+    chunks(0).subscribe(source::tryEmitNext, null, source::tryEmitComplete);
+
+    fastDone.get(10, TimeUnit.SECONDS);
+    assertThat("Fast reader must get the content", fastOutput.toByteArray(), is(content));
+    assertThat("Slow reader must continue where it stopped", resumed, contains(100L));
+
+    slowReader.requestUnbounded();
+    slowDone.get(10, TimeUnit.SECONDS);
+    assertThat("Slow reader must get the content", slowOutput.toByteArray(), is(content));
+    assertThat(
+        "Joined reads must be counted",
+        meterRegistry.get("instashare.shared.reads.joined").counter().count(),
+        is(1.0));
+    assertThat(
+        "Detached reads must be counted",
+        meterRegistry.get("instashare.shared.reads.detached").counter().count(),
+        is(1.0));
+  }
+
+  @Test
+  @DisplayName("Readers joining late have the start replayed")
+  void replay() {
+    val sharedReads = sharedReads();
+    val first = open(sharedReads, chunks(0)).block();
+    val second = open(sharedReads, chunks(0)).block();
+
+    // Alone, the first reader is sent what fits its queue, which is kept for readers joining
+    first
+        .content()
+        .subscribe(
+            new BaseSubscriber<>() {
+              @Override
+              protected void hookOnSubscribe(Subscription subscription) {}
+            });
+    assertThat("Second reader must get everything", join(second.content()), is(content));
+    // Only the first reader, which read nothing, continues with a fetch of its own
+    assertThat("First reader must leave the shared fetch", resumed, contains(0L));
+    assertThat(
+        "Second reader must stay on the shared fetch",
+        meterRegistry.get("instashare.shared.reads.detached").counter().count(),
+        is(1.0));
+    assertThat("Content must be fetched once", opened.get(), is(1));
+  }
+
+  @Test
+  @DisplayName("A reader blocked while it is sent a buffer does not hold up the others")
+  void blockedReader() throws Exception {
+    val sharedReads = sharedReads();
+    val blocked = open(sharedReads, chunks(0)).block();
+    val other = open(sharedReads, chunks(0)).block();
+    val entered = new CountDownLatch(1);
+    val release = new CountDownLatch(1);
+    val blockedReader =
+        new BaseSubscriber<ByteBuffer>() {
+          @Override
+          protected void hookOnSubscribe(Subscription subscription) {}
+
+          @Override
+          protected void hookOnNext(ByteBuffer buffer) {
+            entered.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        };
+    blocked.content().subscribe(blockedReader);
+    CompletableFuture.runAsync(() -> blockedReader.request(1));
+    assertThat(entered.await(10, TimeUnit.SECONDS), is(true));
+
+    try {
+      // Subscribing alone would block on a monitor held by the blocked reader
+      val read = CompletableFuture.supplyAsync(() -> join(other.content()));
+      assertThat("Other reader must get the content", read.get(10, TimeUnit.SECONDS), is(content));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  @DisplayName("Reads after a fetch completed start a new one")
+  void completed() {
+    val sharedReads = sharedReads();
+    assertThat(
+        "Content must be preserved",
+        join(open(sharedReads, chunks(0)).block().content()),
+        is(content));
+    assertThat(
+        "Content must be preserved",
+        join(open(sharedReads, chunks(0)).block().content()),
+        is(content));
+    assertThat("Content must be fetched again", opened.get(), is(2));
+  }
+}
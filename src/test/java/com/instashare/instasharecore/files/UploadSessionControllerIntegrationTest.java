@@ -0,0 +1,198 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.users.UserService;
+import com.instashare.instasharecore.util.*;
+import lombok.val;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+
+import static java.lang.String.format;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.testcontainers.shaded.org.apache.commons.lang3.RandomStringUtils.randomAlphabetic;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@Testcontainers
+@ExtendWith(NettyLeakDetectionExtension.class)
+@DisplayName("Resumable upload tests")
+class UploadSessionControllerIntegrationTest {
+
+  @Container static MyMongoDbContainer mongo = MyMongoDbContainer.getInstance();
+
+  @Container static MyRabbitContainer rabbit = MyRabbitContainer.getInstance();
+
+  private final WebClient webClient = WebClient.builder().build();
+
+  @Autowired UserService userService;
+
+  @Value("classpath:sample.txt")
+  @Autowired
+  Resource sampleFile;
+
+  @LocalServerPort private int serverPort;
+
+  private String validAccessToken;
+
+  @DynamicPropertySource
+  static void configure(DynamicPropertyRegistry registry) {
+    registry.add("spring.data.mongodb.uri", () -> mongo.getConnectionString() + "/instashared-dev");
+    registry.add("spring.rabbitmq.host", rabbit::getHost);
+    registry.add("spring.rabbitmq.port", rabbit::getAmqpPort);
+  }
+
+  @BeforeEach
+  void setup() {
+    val validUser = new User(randomAlphabetic(6) + "@gmail.com", "1234");
+    userService.save(validUser.email(), validUser.password()).block();
+    val body = new SignInRequest(validUser.email(), validUser.password());
+    validAccessToken =
+        webClient
+            .post()
+            .uri(format("http://localhost:%d/v1/signin", serverPort))
+            .bodyValue(body)
+            .retrieve()
+            .bodyToMono(SignInResponse.class)
+            .timeout(Duration.ofSeconds(2))
+            .block()
+            .accessToken();
+  }
+
+  private Mono<UploadSessionResponse> createSession() {
+    return webClient
+        .post()
+        .uri(format("http://localhost:%d/v1/uploads", serverPort))
+        .header("Authorization", "Bearer " + validAccessToken)
+        .bodyValue(new CreateUploadSessionRequest(randomAlphabetic(10) + ".txt", "text/plain"))
+        .retrieve()
+        .bodyToMono(UploadSessionResponse.class)
+        .timeout(Duration.ofSeconds(10));
+  }
+
+  @Test
+  @DisplayName("An upload can be resumed from the offset reported by its session")
+  void resume() throws IOException {
+    val session = createSession().block();
+    assertThat("A new session starts at offset 0", session.offset(), is(0L));
+
+    webClient
+        .put()
+        .uri(format("http://localhost:%d/v1/uploads/%s/parts/1", serverPort, session.sessionId()))
+        .header("Authorization", "Bearer " + validAccessToken)
+        .contentLength(sampleFile.contentLength())
+        .body(BodyInserters.fromResource(sampleFile))
+        .retrieve()
+        .toBodilessEntity()
+        .timeout(Duration.ofSeconds(10))
+        .block();
+
+    // A reconnecting client only knows the session id
+    val resumed =
+        webClient
+            .get()
+            .uri(format("http://localhost:%d/v1/uploads/%s", serverPort, session.sessionId()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .retrieve()
+            .bodyToMono(UploadSessionResponse.class)
+            .timeout(Duration.ofSeconds(2))
+            .block();
+    assertThat("Offset must cover part 1", resumed.offset(), is(sampleFile.contentLength()));
+    assertThat("Part 1 must be listed", resumed.parts(), is(List.of(1)));
+
+    val status =
+        webClient
+            .post()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/uploads/%s/complete", serverPort, session.sessionId()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .exchangeToMono(response -> Mono.just(response.statusCode()))
+            .timeout(Duration.ofSeconds(10));
+    assertThat("Should be 201", status.block(), is(HttpStatus.CREATED));
+  }
+
+  @Test
+  @DisplayName("A session without parts cannot be completed")
+  void completeWithoutParts() {
+    val session = createSession().block();
+    val status =
+        webClient
+            .post()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/uploads/%s/complete", serverPort, session.sessionId()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .exchangeToMono(response -> Mono.just(response.statusCode()))
+            .timeout(Duration.ofSeconds(10));
+    assertThat("Should be 400", status.block(), is(HttpStatus.BAD_REQUEST));
+  }
+
+  @Test
+  @DisplayName("Parts can be uploaded straight to S3 with presigned URLs")
+  void uploadWithPresignedUrls() throws IOException {
+    val session = createSession().block();
+    val presigned =
+        webClient
+            .get()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/uploads/%s/part-urls?parts=1",
+                    serverPort, session.sessionId()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .retrieve()
+            .bodyToMono(PresignedPartsResponse.class)
+            .timeout(Duration.ofSeconds(2))
+            .block();
+    assertThat("A URL must be returned per part", presigned.parts().size(), is(1));
+
+    // Straight to S3, without the access token
+    webClient
+        .put()
+        .uri(URI.create(presigned.parts().get(0).url()))
+        .contentLength(sampleFile.contentLength())
+        .body(BodyInserters.fromResource(sampleFile))
+        .retrieve()
+        .toBodilessEntity()
+        .timeout(Duration.ofSeconds(10))
+        .block();
+
+    val status =
+        webClient
+            .post()
+            .uri(
+                format(
+                    "http://localhost:%d/v1/uploads/%s/complete", serverPort, session.sessionId()))
+            .header("Authorization", "Bearer " + validAccessToken)
+            .exchangeToMono(response -> Mono.just(response.statusCode()))
+            .timeout(Duration.ofSeconds(10));
+    assertThat("Should be 201", status.block(), is(HttpStatus.CREATED));
+  }
+
+  record CreateUploadSessionRequest(String fileName, String mimeType) {}
+
+  record UploadSessionResponse(
+      String sessionId, String fileName, long partSize, long offset, List<Integer> parts) {}
+
+  record PresignedPartsResponse(String sessionId, List<PresignedPartUrl> parts) {}
+
+  record PresignedPartUrl(int partNumber, String url) {}
+}
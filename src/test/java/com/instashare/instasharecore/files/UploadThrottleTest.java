@@ -0,0 +1,96 @@
+package com.instashare.instasharecore.files;
+
+import com.instashare.instasharecore.config.S3ClientConfigurationProperties;
+import com.instashare.instasharecore.files.exceptions.UploadThrottledException;
+import com.instashare.instasharecore.files.exceptions.UploadTooLargeException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+@DisplayName("Upload throttle tests")
+class UploadThrottleTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private UploadThrottle throttle(long bufferedBytes) {
+    val s3Config = new S3ClientConfigurationProperties();
+    s3Config.setMultipartMaxBufferedBytes(bufferedBytes);
+    s3Config.setMultipartBufferWaitTimeout(Duration.ofMillis(100));
+    return new UploadThrottle(s3Config, meterRegistry);
+  }
+
+  private double bufferUsed() {
+    return meterRegistry.get("instashare.upload.buffer.used").gauge().value();
+  }
+
+  @Test
+  @DisplayName("Reservations wait for released buffer space")
+  void reservationsWaitForSpace() {
+    val throttle = throttle(100);
+    val first = throttle.reserveBuffer(80).block();
+    assertThat("Used bytes must be reported", bufferUsed(), is(80.0));
+
+    StepVerifier.create(throttle.reserveBuffer(50))
+        .then(first::release)
+        .expectNextCount(1)
+        .verifyComplete();
+    assertThat("Only the granted reservation must be held", bufferUsed(), is(50.0));
+  }
+
+  @Test
+  @DisplayName("Waiting too long for buffer space fails the upload")
+  void reservationsTimeOut() {
+    val throttle = throttle(100);
+    val held = throttle.reserveBuffer(60).block();
+    val other = throttle.reserveBuffer(40).block();
+
+    StepVerifier.create(throttle.reserveBuffer(1))
+        .expectError(UploadThrottledException.class)
+        .verify(Duration.ofSeconds(2));
+    assertThat(
+        "Rejections must be counted",
+        meterRegistry.get("instashare.upload.buffer.rejected").counter().count(),
+        is(1.0));
+
+    held.release();
+    held.release();
+    assertThat("Releasing twice must not free space twice", bufferUsed(), is(40.0));
+    other.release();
+  }
+
+  @Test
+  @DisplayName("Parts larger than the whole buffer are rejected right away")
+  void oversizedReservations() {
+    val throttle = throttle(100);
+
+    StepVerifier.create(throttle.reserveBuffer(101))
+        .expectError(UploadTooLargeException.class)
+        .verify(Duration.ofSeconds(1));
+    assertThat("No buffer space must be held", bufferUsed(), is(0.0));
+  }
+
+  @Test
+  @DisplayName("Reservations grow with the part they hold")
+  void reservationsGrow() {
+    val throttle = throttle(100);
+    val reservation = throttle.reserveBuffer(10).block();
+
+    reservation.grow(30).block();
+    assertThat("Grown bytes must be held", bufferUsed(), is(40.0));
+    StepVerifier.create(reservation.grow(61))
+        .expectError(UploadTooLargeException.class)
+        .verify(Duration.ofSeconds(1));
+
+    reservation.release();
+    assertThat("The whole reservation must be released", bufferUsed(), is(0.0));
+    reservation.grow(10).block();
+    assertThat("Growing a released reservation must not hold space", bufferUsed(), is(0.0));
+  }
+}
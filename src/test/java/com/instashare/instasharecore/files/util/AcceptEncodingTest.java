@@ -0,0 +1,43 @@
+package com.instashare.instasharecore.files.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+@DisplayName("AcceptEncoding tests")
+class AcceptEncodingTest {
+
+  private static boolean acceptsGzip(String acceptEncoding) {
+    HttpHeaders headers = new HttpHeaders();
+    if (acceptEncoding != null) headers.set(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+    return AcceptEncoding.accepts(headers, "gzip");
+  }
+
+  @Test
+  @DisplayName("Listed codings are accepted unless their quality is 0")
+  void explicit() {
+    assertThat(acceptsGzip("gzip, deflate, br"), is(true));
+    assertThat(acceptsGzip("br;q=1.0, GZIP;q=0.5"), is(true));
+    assertThat(acceptsGzip("x-gzip"), is(true));
+    assertThat(acceptsGzip("gzip;q=0"), is(false));
+    assertThat(acceptsGzip("deflate"), is(false));
+  }
+
+  @Test
+  @DisplayName("The wildcard only applies to codings not listed")
+  void wildcard() {
+    assertThat(acceptsGzip("*"), is(true));
+    assertThat(acceptsGzip("*;q=0"), is(false));
+    assertThat(acceptsGzip("gzip;q=0, *"), is(false));
+  }
+
+  @Test
+  @DisplayName("Without Accept-Encoding only identity is accepted")
+  void missing() {
+    assertThat(acceptsGzip(null), is(false));
+    assertThat(acceptsGzip("identity"), is(false));
+  }
+}
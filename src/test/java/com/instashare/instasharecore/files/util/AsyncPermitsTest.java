@@ -0,0 +1,89 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import reactor.test.util.RaceTestUtils;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+@DisplayName("Async permits tests")
+class AsyncPermitsTest {
+
+  @Test
+  @DisplayName("No more than capacity actions run at the same time")
+  void boundsConcurrency() {
+    val permits = new AsyncPermits(3);
+    val running = new AtomicInteger();
+    val maxRunning = new AtomicInteger();
+    val work =
+        Flux.range(0, 50)
+            .flatMap(
+                i ->
+                    permits.withPermits(
+                        1,
+                        Mono.fromRunnable(
+                                () ->
+                                    maxRunning.accumulateAndGet(
+                                        running.incrementAndGet(), Math::max))
+                            .delayElement(Duration.ofMillis(5))
+                            .doFinally(signal -> running.decrementAndGet())
+                            .thenReturn(i)),
+                50);
+    StepVerifier.create(work).expectNextCount(50).verifyComplete();
+    assertThat("Concurrency must be bounded", maxRunning.get(), lessThanOrEqualTo(3));
+    assertThat("All permits must be returned", permits.getAvailable(), is(3L));
+  }
+
+  @Test
+  @DisplayName("Cancelled waiters give their permits back")
+  void cancelledWaitersDoNotLeak() {
+    val permits = new AsyncPermits(1);
+    StepVerifier.create(permits.acquire(1)).expectNext(1L).verifyComplete();
+    StepVerifier.create(permits.acquire(1)).expectSubscription().thenCancel().verify();
+    assertThat("Waiter must be removed", permits.getWaiting(), is(0));
+    permits.release(1);
+    assertThat("Permit must be available", permits.getAvailable(), is(1L));
+  }
+
+  @Test
+  @DisplayName("Grants racing a cancellation give their permits back")
+  void grantRacingCancel() {
+    val permits = new AsyncPermits(1);
+    for (int i = 0; i < 500; i++) {
+      permits.acquire(1).block();
+      val waiting = permits.withPermits(1, Mono.never()).subscribe();
+      RaceTestUtils.race(() -> permits.release(1), waiting::dispose);
+      assertThat("The permit must be returned", permits.getAvailable(), is(1L));
+    }
+  }
+
+  @Test
+  @DisplayName("Requests larger than the capacity fail")
+  void oversizedRequestsFail() {
+    val permits = new AsyncPermits(10);
+    StepVerifier.create(permits.acquire(11)).expectError(IllegalArgumentException.class).verify();
+    assertThat("No permit must be taken", permits.getAvailable(), is(10L));
+  }
+
+  @Test
+  @DisplayName("Permits are only tried while they are available and nobody waits")
+  void tryAcquire() {
+    val permits = new AsyncPermits(10);
+    assertThat(permits.tryAcquire(6), is(true));
+    assertThat("Taken permits must not be available", permits.tryAcquire(6), is(false));
+    val waiting = permits.acquire(5).subscribe();
+    assertThat("Waiters must keep their turn", permits.tryAcquire(1), is(false));
+    waiting.dispose();
+    permits.release(6);
+    assertThat("All permits must be returned", permits.getAvailable(), is(10L));
+  }
+}
@@ -0,0 +1,115 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DisplayName("ByteRanges tests")
+class ByteRangesTest {
+
+  private static HttpHeaders rangeHeaders(String range, String ifRange) {
+    val headers = new HttpHeaders();
+    headers.set(HttpHeaders.RANGE, range);
+    if (ifRange != null) headers.set(HttpHeaders.IF_RANGE, ifRange);
+    return headers;
+  }
+
+  @Test
+  @DisplayName("Without a Range header nothing is requested")
+  void noRange() {
+    assertThat(ByteRanges.requested(new HttpHeaders(), "\"a\""), is(empty()));
+  }
+
+  @Test
+  @DisplayName("Malformed ranges and too many ranges fall back to the whole file")
+  void invalidRanges() {
+    assertThat(ByteRanges.requested(rangeHeaders("bytes=x-y", null), null), is(empty()));
+    val many = new StringBuilder("bytes=0-0");
+    for (int i = 1; i <= ByteRanges.MAX_RANGES; i++)
+      many.append(",").append(i).append("-").append(i);
+    assertThat(ByteRanges.requested(rangeHeaders(many.toString(), null), null), is(empty()));
+  }
+
+  @Test
+  @DisplayName("If-Range only allows a partial response for a matching ETag")
+  void ifRange() {
+    assertThat(ByteRanges.requested(rangeHeaders("bytes=0-1", "\"a\""), "\"a\""), hasSize(1));
+    assertThat(ByteRanges.requested(rangeHeaders("bytes=0-1", "\"b\""), "\"a\""), is(empty()));
+    assertThat(
+        ByteRanges.requested(rangeHeaders("bytes=0-1", "Wed, 21 Oct 2015 07:28:00 GMT"), "\"a\""),
+        is(empty()));
+    assertThat(ByteRanges.requested(rangeHeaders("bytes=0-1", "\"a\""), null), is(empty()));
+  }
+
+  @Test
+  @DisplayName("Ranges resolve against the representation length")
+  void resolve() {
+    val segments = ByteRanges.resolve(HttpRange.parseRanges("bytes=0-9,90-,-5,95-200"), 100);
+
+    assertThat(
+        segments,
+        is(
+            List.of(
+                new ByteRanges.Segment(0, 10),
+                new ByteRanges.Segment(90, 10),
+                new ByteRanges.Segment(95, 5),
+                new ByteRanges.Segment(95, 5))));
+    assertThat(ByteRanges.contentRange(segments.get(0), 100), is("bytes 0-9/100"));
+  }
+
+  @Test
+  @DisplayName("Ranges starting past the end are dropped, none left is not satisfiable")
+  void unsatisfiable() {
+    assertThat(ByteRanges.resolve(HttpRange.parseRanges("bytes=100-,0-0"), 100), hasSize(1));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> ByteRanges.resolve(HttpRange.parseRanges("bytes=100-"), 100));
+  }
+
+  @Test
+  @DisplayName("The multipart body has the announced length")
+  void multipartBody() {
+    val content = "0123456789".getBytes(StandardCharsets.US_ASCII);
+    val segments = ByteRanges.resolve(HttpRange.parseRanges("bytes=0-1,8-"), content.length);
+    val boundary = ByteRanges.newBoundary();
+
+    val output = new ByteArrayOutputStream();
+    ByteRanges.multipartBody(
+            boundary,
+            "text/plain",
+            segments,
+            content.length,
+            (offset, length) ->
+                Flux.just(ByteBuffer.wrap(content, offset.intValue(), length.intValue())))
+        .doOnNext(
+            buffer -> {
+              val bytes = new byte[buffer.remaining()];
+              buffer.get(bytes);
+              output.writeBytes(bytes);
+            })
+        .blockLast();
+    val body = output.toString(StandardCharsets.US_ASCII);
+
+    assertThat(
+        (long) output.size(),
+        is(ByteRanges.multipartLength(boundary, "text/plain", segments, content.length)));
+    assertThat(body, containsString("Content-Range: bytes 0-1/10\r\n\r\n01\r\n"));
+    assertThat(body, containsString("Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+    assertThat(body, containsString("--" + boundary + "--\r\n"));
+  }
+}
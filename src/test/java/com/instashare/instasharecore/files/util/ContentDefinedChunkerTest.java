@@ -0,0 +1,83 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+@DisplayName("Content-defined chunker tests")
+class ContentDefinedChunkerTest {
+
+  private static final int MIN = 2 * 1024;
+  private static final int AVG = 8 * 1024;
+  private static final int MAX = 32 * 1024;
+
+  private static List<byte[]> chunk(byte[] content, int bufferSize) {
+    val chunker = new ContentDefinedChunker(MIN, AVG, MAX);
+    List<byte[]> chunks = new ArrayList<>();
+    for (int offset = 0; offset < content.length; offset += bufferSize) {
+      val length = Math.min(bufferSize, content.length - offset);
+      chunks.addAll(chunker.update(ByteBuffer.wrap(content, offset, length)));
+    }
+    val last = chunker.finish();
+    if (last != null) chunks.add(last);
+    return chunks;
+  }
+
+  private static byte[] randomBytes(int size) {
+    val bytes = new byte[size];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  @DisplayName("Chunks concatenate back to the content and respect the size bounds")
+  void chunksCoverContent() {
+    val content = randomBytes(1024 * 1024);
+    val chunks = chunk(content, 4096);
+    val joined = new ByteArrayOutputStream();
+    chunks.forEach(joined::writeBytes);
+    assertThat("Content must be preserved", Arrays.equals(joined.toByteArray(), content), is(true));
+    for (int i = 0; i < chunks.size(); i++) {
+      assertThat(chunks.get(i).length, lessThanOrEqualTo(MAX));
+      if (i < chunks.size() - 1) assertThat(chunks.get(i).length, greaterThanOrEqualTo(MIN));
+    }
+  }
+
+  @Test
+  @DisplayName("Boundaries do not depend on how the content is buffered")
+  void boundariesIgnoreBuffering() {
+    val content = randomBytes(512 * 1024);
+    val expected = chunk(content, 1000).stream().map(c -> c.length).toList();
+    assertThat(chunk(content, 65536).stream().map(c -> c.length).toList(), is(expected));
+  }
+
+  @Test
+  @DisplayName("An insertion only changes the chunks around it")
+  void insertionKeepsMostChunks() {
+    val original = randomBytes(1024 * 1024);
+    val edited = new ByteArrayOutputStream();
+    edited.write(original, 0, 500_000);
+    edited.writeBytes("an edit in the middle".getBytes());
+    edited.write(original, 500_000, original.length - 500_000);
+
+    val before = new HashSet<String>();
+    chunk(original, 4096).forEach(c -> before.add(Arrays.toString(c)));
+    val after = chunk(edited.toByteArray(), 4096);
+    val shared = after.stream().filter(c -> before.contains(Arrays.toString(c))).count();
+    assertThat("Most chunks must be shared", shared, greaterThan(after.size() - 4L));
+  }
+}
@@ -0,0 +1,142 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+@DisplayName("Gzip tests")
+class GzipTest {
+
+  private static byte[] join(Flux<ByteBuffer> buffers) {
+    val output = new ByteArrayOutputStream();
+    buffers
+        .doOnNext(
+            buffer -> {
+              val bytes = new byte[buffer.remaining()];
+              buffer.get(bytes);
+              output.writeBytes(bytes);
+            })
+        .blockLast();
+    return output.toByteArray();
+  }
+
+  private static Flux<ByteBuffer> split(byte[] content, int size) {
+    return Flux.range(0, (content.length + size - 1) / size)
+        .map(i -> ByteBuffer.wrap(content, i * size, Math.min(size, content.length - i * size)));
+  }
+
+  @Test
+  @DisplayName("Compressed streams can be read by GZIPInputStream")
+  void compressedStreamsAreStandardGzip() throws IOException {
+    val content = new byte[1024 * 1024];
+    val random = new Random(7);
+    // Half random, half repetitive
+    random.nextBytes(content);
+    Arrays.fill(content, content.length / 2, content.length, (byte) 'a');
+
+    val compressed = join(Gzip.compress(split(content, 8192), Deflater.DEFAULT_COMPRESSION));
+    assertThat("Content must shrink", compressed.length, lessThan(content.length));
+    try (val input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      assertThat(
+          "Content must be preserved", Arrays.equals(input.readAllBytes(), content), is(true));
+    }
+  }
+
+  @Test
+  @DisplayName("Inputs are released once the deflater consumed them")
+  void inputsAreReleased() throws IOException {
+    val content = new byte[256 * 1024];
+    new Random(7).nextBytes(content);
+    val inputs = split(content, 8192).collectList().block();
+    val released = new ArrayList<ByteBuffer>();
+
+    val compressed =
+        join(
+            Gzip.compress(
+                Flux.fromIterable(inputs),
+                ByteBuffer::duplicate,
+                released::add,
+                Deflater.DEFAULT_COMPRESSION));
+
+    assertThat("Every input must be released", released, is(inputs));
+    try (val input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      assertThat(
+          "Content must be preserved", Arrays.equals(input.readAllBytes(), content), is(true));
+    }
+  }
+
+  @Test
+  @DisplayName("Empty content compresses to a valid gzip stream")
+  void emptyContent() throws IOException {
+    val compressed = join(Gzip.compress(Flux.empty(), Deflater.DEFAULT_COMPRESSION));
+    try (val input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      assertThat(input.readAllBytes().length, is(0));
+    }
+  }
+
+  @Test
+  @DisplayName("Decompression restores content split at any byte")
+  void decompressRoundTrip() throws IOException {
+    val content = new byte[256 * 1024];
+    new Random(11).nextBytes(content);
+    Arrays.fill(content, 0, content.length / 2, (byte) 'b');
+
+    // Written by the JDK, with a file name in the header
+    val output = new ByteArrayOutputStream();
+    try (val gzip = new GZIPOutputStream(output)) {
+      gzip.write(content);
+    }
+    val compressed = output.toByteArray();
+
+    assertThat(
+        "Content must be preserved",
+        Arrays.equals(join(Gzip.decompress(split(compressed, 1))), content),
+        is(true));
+    assertThat(
+        "Content must be preserved",
+        Arrays.equals(join(Gzip.decompress(split(compressed, 8192))), content),
+        is(true));
+  }
+
+  @Test
+  @DisplayName("Concatenated members are decompressed one after the other")
+  void decompressMembers() {
+    val first = join(Gzip.compress(Flux.just(ByteBuffer.wrap("abc".getBytes())), 6));
+    val second = join(Gzip.compress(Flux.just(ByteBuffer.wrap("def".getBytes())), 6));
+
+    val decompressed =
+        join(Gzip.decompress(Flux.just(ByteBuffer.wrap(first), ByteBuffer.wrap(second))));
+
+    assertThat(new String(decompressed), is("abcdef"));
+  }
+
+  @Test
+  @DisplayName("Truncated streams fail")
+  void decompressTruncated() {
+    val compressed = join(Gzip.compress(Flux.just(ByteBuffer.wrap("abc".getBytes())), 6));
+
+    StepVerifier.create(
+            Gzip.decompress(Flux.just(ByteBuffer.wrap(compressed, 0, compressed.length - 1))))
+        .thenConsumeWhile(block -> true)
+        .expectError(UncheckedIOException.class)
+        .verify();
+  }
+}
@@ -0,0 +1,102 @@
+package com.instashare.instasharecore.files.util;
+
+import lombok.val;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+@DisplayName("ZIP stream tests")
+class ZipStreamTest {
+
+  @TempDir Path directory;
+
+  private Path write(Flux<ZipStream.Entry> entries) throws IOException {
+    val archive = directory.resolve("archive.zip");
+    try (val channel =
+        FileChannel.open(archive, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      for (val buffer : entries.transform(ZipStream::write).toIterable()) channel.write(buffer);
+    }
+    return archive;
+  }
+
+  private static Flux<ByteBuffer> split(byte[] content, int size) {
+    return Flux.range(0, (content.length + size - 1) / size)
+        .map(i -> ByteBuffer.wrap(content, i * size, Math.min(size, content.length - i * size)));
+  }
+
+  @Test
+  @DisplayName("Entries are readable in order with their content")
+  void write() throws IOException {
+    val random = new Random(42);
+    val contents = new byte[][] {new byte[100_000], new byte[0], "héllo".getBytes()};
+    random.nextBytes(contents[0]);
+    val names = new String[] {"data.bin", "empty.txt", "ünïcode.txt"};
+    val entries =
+        Flux.range(0, contents.length)
+            .map(
+                i ->
+                    new ZipStream.Entry(
+                        names[i],
+                        contents[i].length,
+                        Instant.parse("2024-05-01T10:15:30Z"),
+                        split(contents[i], 8192)));
+
+    try (val zipFile = new ZipFile(write(entries).toFile())) {
+      val archived = Collections.list(zipFile.entries());
+      assertThat("Every entry must be written", archived.size(), is(contents.length));
+      for (int i = 0; i < contents.length; i++) {
+        val entry = archived.get(i);
+        assertThat("Names must be kept", entry.getName(), is(names[i]));
+        assertThat("Sizes must be recorded", entry.getSize(), is((long) contents[i].length));
+        val crc = new CRC32();
+        crc.update(contents[i]);
+        assertThat("CRCs must be recorded", entry.getCrc(), is(crc.getValue()));
+        try (val input = zipFile.getInputStream(entry)) {
+          assertThat(
+              "Content must be preserved",
+              Arrays.equals(input.readAllBytes(), contents[i]),
+              is(true));
+        }
+      }
+    }
+  }
+
+  @Test
+  @DisplayName("Empty archives are valid")
+  void writeEmpty() throws IOException {
+    try (val zipFile = new ZipFile(write(Flux.empty()).toFile())) {
+      assertThat("No entries must be written", zipFile.size(), is(0));
+    }
+  }
+
+  @Test
+  @DisplayName("Content of an unexpected size fails the archive")
+  void writeSizeMismatch() {
+    val entries =
+        Flux.just(
+            new ZipStream.Entry("short.txt", 10, null, Flux.just(ByteBuffer.wrap(new byte[5]))));
+
+    StepVerifier.create(ZipStream.write(entries))
+        .thenConsumeWhile(buffer -> true)
+        .expectError(ZipException.class)
+        .verify();
+  }
+}
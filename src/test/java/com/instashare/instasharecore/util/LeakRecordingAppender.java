@@ -0,0 +1,27 @@
+package com.instashare.instasharecore.util;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** Collects the leak reports Netty's ResourceLeakDetector logs, see logback.xml. */
+public class LeakRecordingAppender extends AppenderBase<ILoggingEvent> {
+
+  private static final Queue<String> leaks = new ConcurrentLinkedQueue<>();
+
+  public static List<String> drain() {
+    final List<String> drained = new ArrayList<>();
+    String leak;
+    while ((leak = leaks.poll()) != null) drained.add(leak);
+    return drained;
+  }
+
+  @Override
+  protected void append(ILoggingEvent event) {
+    leaks.add(event.getFormattedMessage());
+  }
+}
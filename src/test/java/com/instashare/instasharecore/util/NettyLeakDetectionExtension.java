@@ -0,0 +1,30 @@
+package com.instashare.instasharecore.util;
+
+import io.netty.buffer.ByteBufAllocator;
+import lombok.val;
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Fails the test class when Netty reports leaked buffers. Reports are only produced once the leaked
+ * buffers are garbage collected and the detector gets to run, so both are forced here. Surefire
+ * runs the tests with {@code io.netty.leakDetection.level=paranoid}.
+ */
+public class NettyLeakDetectionExtension implements AfterAllCallback {
+
+  @Override
+  public void afterAll(ExtensionContext context) throws InterruptedException {
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(100);
+      // Every tracked allocation polls the detector's reference queue
+      ByteBufAllocator.DEFAULT.buffer(1).release();
+    }
+    val leaks = LeakRecordingAppender.drain();
+    if (!leaks.isEmpty()) {
+      fail(leaks.size() + " Netty buffer leak(s) detected:\n" + String.join("\n", leaks));
+    }
+  }
+}